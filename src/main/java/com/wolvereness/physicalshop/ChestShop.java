@@ -8,8 +8,10 @@ import org.bukkit.block.BlockFace;
 import org.bukkit.block.BlockState;
 import org.bukkit.block.Sign;
 import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.InventoryHolder;
 
+import com.wolvereness.physicalshop.config.Localized;
 import com.wolvereness.physicalshop.exception.InvalidExchangeException;
 import com.wolvereness.physicalshop.exception.InvalidSignException;
 
@@ -18,6 +20,10 @@ import com.wolvereness.physicalshop.exception.InvalidSignException;
  */
 public class ChestShop extends Shop {
 	private final InventoryHolder chest;
+	/**
+	 * The chest as it was before the trade in progress, until the player side is done
+	 */
+	private ShopItemStack[] undo;
 	/**
 	 * Creates a Shop with a chest
 	 * @param sign sign to consider
@@ -55,7 +61,7 @@ public class ChestShop extends Shop {
 	@Override
 	protected boolean buy(final Player player, final PhysicalShop plugin) {
 		if (!canBuy()) {
-			plugin.getLocale().sendMessage(player, NO_BUY);
+			plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, true), NO_BUY);
 			return false;
 		}
 		final ShopItemStack[] items = InventoryHelpers.getItems(chest.getInventory());
@@ -65,11 +71,12 @@ public class ChestShop extends Shop {
 		} catch (final InvalidExchangeException e) {
 			switch (e.getType()) {
 			case ADD:
-				plugin.getLocale().sendMessage(player, CHEST_INVENTORY_FULL);
+				plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, true), CHEST_INVENTORY_FULL);
 				break;
 			case REMOVE:
-				plugin.getLocale().sendMessage(
+				plugin.getLocale().sendRepeatableMessage(
 					player,
+					getTradeAttempt(player, true),
 					NOT_ENOUGH_SHOP_ITEMS,
 					getMaterial().toString(plugin.getMaterialConfig())
 					);
@@ -79,13 +86,19 @@ public class ChestShop extends Shop {
 			return false;
 		}
 
+		undo = items;
 		if (!super.buy(player, plugin)) {
-			InventoryHelpers.setItems(chest.getInventory(), items);
+			undoShopExchange();
 			return false;
 		}
+		undo = null;
 		return true;
 	}
 	@Override
+	protected long getInventoryDigest(final Player player) {
+		return InventoryHelpers.digest(chest.getInventory(), super.getInventoryDigest(player));
+	}
+	@Override
 	/**
 	 * Gets the current amount of shop's currency in the chest.
 	 * @return
@@ -94,6 +107,10 @@ public class ChestShop extends Shop {
 		return InventoryHelpers.getCount(chest.getInventory(), getBuyCurrency());
 	}
 	@Override
+	protected Inventory getShopInventory() {
+		return chest.getInventory();
+	}
+	@Override
 	public int getShopItems() {
 		return InventoryHelpers.getCount(chest.getInventory(), getMaterial());
 	}
@@ -115,7 +132,7 @@ public class ChestShop extends Shop {
 	@Override
 	public boolean sell(final Player player, final PhysicalShop plugin) {
 		if (!canSell()) {
-			plugin.getLocale().sendMessage(player, NO_SELL);
+			plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, false), NO_SELL);
 			return false;
 		}
 		final ShopItemStack[] items = InventoryHelpers.getItems(chest.getInventory());
@@ -129,81 +146,92 @@ public class ChestShop extends Shop {
 		} catch (final InvalidExchangeException e) {
 			switch (e.getType()) {
 			case ADD:
-				plugin.getLocale().sendMessage(player, CHEST_INVENTORY_FULL);
+				plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, false), CHEST_INVENTORY_FULL);
 				break;
 			case REMOVE:
-				plugin.getLocale().sendMessage(player, NOT_ENOUGH_SHOP_MONEY, getSellCurrency().toString(plugin.getMaterialConfig()));
+				plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, false), NOT_ENOUGH_SHOP_MONEY, getSellCurrency().toString(plugin.getMaterialConfig()));
 				break;
 			}
 
 			return false;
 		}
 
+		undo = items;
 		if (!super.sell(player, plugin)) {
-			InventoryHelpers.setItems(chest.getInventory(), items);
+			undoShopExchange();
 			return false;
 		}
+		undo = null;
 		return true;
 	}
 	@Override
-	public void status(final Player p, final PhysicalShop plugin) {
+	protected void undoShopExchange() {
+		if (undo == null) return;
+		InventoryHelpers.setItems(chest.getInventory(), undo);
+		undo = null;
+	}
+	@Override
+	protected void appendStatus(
+			final StringBuilder builder,
+			final PhysicalShop plugin,
+			final int items,
+			final int buyCapital,
+			final int sellCapital,
+			final String materialName,
+			final String buyCurrencyName,
+			final String sellCurrencyName) {
+		final Localized locale = plugin.getLocale();
 		if (!plugin.getPluginConfig().isDetailedOutput()) {
 			if (!canSell()) {
-				plugin.getLocale().sendMessage(
-					p,
+				appendLine(builder, locale.formatMessage(
 					STATUS_ONE_MATERIAL,
-					getShopItems(),
-					getMaterial().toString(plugin.getMaterialConfig())
-					);
+					items,
+					materialName
+					));
 			} else if (!canBuy()) {
-				plugin.getLocale().sendMessage(
-					p,
+				appendLine(builder, locale.formatMessage(
 					STATUS_ONE_MATERIAL,
-					getShopSellCapital(),
-					getSellCurrency().toString(plugin.getMaterialConfig())
-					);
+					sellCapital,
+					sellCurrencyName
+					));
 			} else {
-				plugin.getLocale().sendMessage(
-					p,
+				appendLine(builder, locale.formatMessage(
 					STATUS_ONE_CURRENCY,
-					getShopSellCapital(),
-					getSellCurrency().toString(plugin.getMaterialConfig()),
-					getShopItems(),
-					getMaterial().toString(plugin.getMaterialConfig())
-					);
+					sellCapital,
+					sellCurrencyName,
+					items,
+					materialName
+					));
 			}
 		} else if (!canBuy()) {
-			plugin.getLocale().sendMessage(
-				p,
+			appendLine(builder, locale.formatMessage(
 				STATUS_ONE_CURRENCY,
-				getShopSellCapital(),
-				getSellCurrency().toString(plugin.getMaterialConfig()),
-				getShopItems(),
-				getMaterial().toString(plugin.getMaterialConfig())
-				);
+				sellCapital,
+				sellCurrencyName,
+				items,
+				materialName
+				));
 		} else if (!canSell() || getSellCurrency().equals(getBuyCurrency())) {
-			plugin.getLocale().sendMessage(
-				p,
+			appendLine(builder, locale.formatMessage(
 				STATUS_ONE_CURRENCY,
-				getShopBuyCapital(),
-				getBuyCurrency().toString(plugin.getMaterialConfig()),
-				getShopItems(),
-				getMaterial().toString(plugin.getMaterialConfig())
-				);
+				buyCapital,
+				buyCurrencyName,
+				items,
+				materialName
+				));
 		} else {
-			plugin.getLocale().sendMessage(
-				p,
+			appendLine(builder, locale.formatMessage(
 				STATUS,
-				getShopBuyCapital(),
-				getBuyCurrency().toString(plugin.getMaterialConfig()),
-				getShopSellCapital(),
-				getSellCurrency().toString(plugin.getMaterialConfig()),
-				getShopItems(),
-				getMaterial().toString(plugin.getMaterialConfig())
-				);
+				buyCapital,
+				buyCurrencyName,
+				sellCapital,
+				sellCurrencyName,
+				items,
+				materialName
+				));
 		}
 
-		super.status(p, plugin);
+		super.appendStatus(builder, plugin, items, buyCapital, sellCapital, materialName, buyCurrencyName, sellCurrencyName);
 	}
 
 }
@@ -0,0 +1,105 @@
+package com.wolvereness.physicalshop;
+
+import static com.wolvereness.physicalshop.config.ConfigOptions.LANGUAGE;
+import static com.wolvereness.physicalshop.config.ConfigOptions.WATCH_FILES;
+import static java.util.logging.Level.SEVERE;
+
+import java.io.File;
+
+import com.wolvereness.physicalshop.config.ConfigBundle;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Polls config.yml, the locale file and Items.yml from an async repeating task, reloading what changed once it stops changing.
+ * A change to config.yml reloads everything, as the other files depend on it,
+ * while a change to the locale or the items only rebuilds that part.
+ * Installing any configuration takes the current state of the files as unchanged, so the files written while loading are not picked up.
+ */
+public class ConfigWatcher implements Runnable {
+	/**
+	 * Part of the configuration, as a bit in {@link #changed}
+	 */
+	private static final int CORE = 1, LOCALE = 2, MATERIALS = 4;
+	/**
+	 * Time the files must go unchanged before they are read, so a burst of writes is one reload
+	 */
+	private static final long QUIET = 1000;
+	private int changed;
+	private long changedAt;
+	private boolean enabled;
+	private final File[] files = new File[3];
+	private final long[] lengths = new long[3];
+	private final long[] modified = new long[3];
+	private final PhysicalShop plugin;
+	/**
+	 * @param plugin The active PhysicalShop plugin
+	 */
+	public ConfigWatcher(final PhysicalShop plugin) {
+		this.plugin = plugin;
+	}
+	private void install(final ConfigBundle base, final ConfigBundle bundle, final int parts) {
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				if ((parts & CORE) == 0 && plugin.getConfigBundle() != base) return; // Replaced meanwhile, which read the files again
+				plugin.install(bundle);
+				plugin.getLogger().info("Reloaded "
+					+ ((parts & CORE) != 0 ? "the configuration" : (parts & LOCALE) != 0 ? (parts & MATERIALS) != 0 ? "the locale and items" : "the locale" : "the items")
+					+ " after the files changed");
+			}});
+	}
+	/**
+	 * Takes the current state of the files as unchanged, and starts or stops watching. This should only be called from the main thread.
+	 * @param bundle the configuration being installed
+	 */
+	public synchronized void reset(final ConfigBundle bundle) {
+		final File folder = plugin.getDataFolder();
+		final File locales = new File(folder, "Locales");
+		files[0] = new File(folder, "config.yml");
+		files[1] = new File(locales, String.valueOf(bundle.getConfig().get(LANGUAGE)).toUpperCase() + ".yml");
+		files[2] = new File(locales, "Items.yml");
+		for (int i = 0; i < files.length; i++) {
+			modified[i] = files[i].lastModified();
+			lengths[i] = files[i].length();
+		}
+		changed = 0;
+		enabled = bundle.getConfig().getBoolean(WATCH_FILES);
+	}
+	public void run() {
+		final int parts;
+		synchronized (this) {
+			if (!enabled) return;
+			final long now = System.currentTimeMillis();
+			for (int i = 0; i < files.length; i++) {
+				final long lastModified = files[i].lastModified();
+				final long length = files[i].length();
+				if (lastModified != modified[i] || length != lengths[i]) {
+					modified[i] = lastModified;
+					lengths[i] = length;
+					changed |= 1 << i;
+					changedAt = now;
+				}
+			}
+			if (changed == 0 || now - changedAt < QUIET) return;
+			parts = changed;
+			changed = 0;
+		}
+		final ConfigBundle base = plugin.getConfigBundle();
+		try {
+			if ((parts & CORE) != 0) {
+				install(base, ConfigBundle.load(plugin), parts);
+				return;
+			}
+			ConfigBundle bundle = base;
+			if ((parts & LOCALE) != 0) {
+				bundle = bundle.reloadLocale(plugin);
+			}
+			if ((parts & MATERIALS) != 0) {
+				bundle = bundle.reloadMaterials(plugin);
+			}
+			install(base, bundle, parts);
+		} catch (final Exception e) {
+			plugin.getLogger().log(SEVERE, "Failed to reload the changed configuration files, keeping the current configuration", e);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.wolvereness.physicalshop;
+
+import static java.util.logging.Level.SEVERE;
+import static org.bukkit.permissions.PermissionDefault.OP;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.bukkit.Material;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.wolvereness.physicalshop.journal.TradeAggregate;
+import com.wolvereness.physicalshop.journal.TradeHistory.AggregateVisitor;
+import com.wolvereness.physicalshop.journal.TradeHistory.Visitor;
+import com.wolvereness.physicalshop.journal.TradeJournal;
+import com.wolvereness.physicalshop.journal.TradeRecord;
+import com.wolvereness.util.CommandHandler;
+import com.wolvereness.util.PermissionHandler;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Exports data to a file in the exports folder of the plugin:<br>
+ * {@code export shops <file>}, for the shops in loaded chunks, while the shop index is kept<br>
+ * {@code export trades <file>}, for the trades in the journal<br>
+ * {@code export aggregates <file>}, for the hourly totals of compacted journal segments<br>
+ * A file ending in .json is written as newline delimited JSON, anything else as CSV.
+ * Rows are streamed to the file from an async task, one at a time.
+ */
+public class ExportCommand implements CommandHandler {
+	private static final String[] AGGREGATE_COLUMNS = {
+		"hour", "direction", "world", "x", "y", "z",
+		"material", "trades", "amount", "price", "currency" };
+	private static final Pattern FILE_NAME = Pattern.compile("[\\w-][\\w.-]*");
+	private static final String[] SHOP_COLUMNS = {
+		"world", "x", "y", "z", "owner", "material",
+		"buy_amount", "buy_price", "buy_currency",
+		"sell_amount", "sell_price", "sell_currency" };
+	private static final String[] TRADE_COLUMNS = {
+		"time", "player", "direction", "world", "x", "y", "z",
+		"material", "amount", "price", "currency" };
+	private static final String USAGE = "Usage: export <shops|trades|aggregates> <file>";
+	private static String materialName(final int key) {
+		final Material material = Material.getMaterial(key >>> 16);
+		if (material == null) return (key >>> 16) + ":" + (key & 0xFFFF);
+		return new ShopMaterial(material, (short) key, null).toString();
+	}
+	private final String PERMISSION;
+	private final PhysicalShop plugin;
+	/**
+	 * @param plugin The active PhysicalShop plugin
+	 * @param permissionHandler Permission Handler to use
+	 */
+	public ExportCommand(final PhysicalShop plugin, final PermissionHandler permissionHandler) {
+		this.plugin = plugin;
+		PERMISSION = permissionHandler.getPermission("export", OP);
+	}
+	private void export(final CommandSender sender, final String kind, final File file, final ExportFormat format) {
+		final long start = System.nanoTime();
+		long rows = 0;
+		String error = null;
+		try {
+			if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) throw new IOException("Could not create " + file.getParentFile());
+			final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			try {
+				if (kind.equals("trades")) {
+					rows = exportTrades(out, format);
+				} else if (kind.equals("aggregates")) {
+					rows = exportAggregates(out, format);
+				} else {
+					rows = exportShops(out, format);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (final IOException e) {
+			plugin.getLogger().log(SEVERE, sender.getName() + " failed to export to " + file, e);
+			error = e.getMessage();
+		}
+		final long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+		final String message = error != null
+			? "Export to " + file.getName() + " failed after " + rows + " rows: " + error
+			: "Exported " + rows + " " + kind + " to " + file.getName()
+				+ " in " + millis + "ms (" + rows * 1000 / millis + " rows/s)";
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				sender.sendMessage(message);
+			}});
+	}
+	private long exportAggregates(final Writer out, final ExportFormat format) throws IOException {
+		final TradeJournal journal = plugin.getJournal();
+		if (journal == null) throw new IOException("The trade journal is not enabled");
+		format.writeHeader(out, AGGREGATE_COLUMNS);
+		final Object[] values = new Object[AGGREGATE_COLUMNS.length];
+		final SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		time.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final Date date = new Date();
+		return journal.getHistory().visitAggregates(new AggregateVisitor() {
+			public void visit(final TradeAggregate aggregate) throws IOException {
+				date.setTime(aggregate.getHour());
+				values[0] = time.format(date);
+				values[1] = aggregate.isBuy() ? "buy" : "sell";
+				values[2] = aggregate.getWorld();
+				values[3] = aggregate.getX();
+				values[4] = aggregate.getY();
+				values[5] = aggregate.getZ();
+				values[6] = materialName(aggregate.getMaterial());
+				values[7] = aggregate.getTrades();
+				values[8] = aggregate.getAmount();
+				values[9] = aggregate.getPrice();
+				values[10] = materialName(aggregate.getCurrency());
+				format.writeRow(out, AGGREGATE_COLUMNS, values);
+			}});
+	}
+	private long exportShops(final Writer out, final ExportFormat format) throws IOException {
+		format.writeHeader(out, SHOP_COLUMNS);
+		final Object[] values = new Object[SHOP_COLUMNS.length];
+		long rows = 0;
+		for (final ShopIndex.Entry shop : plugin.getShopIndex().getEntries()) {
+			values[0] = shop.getWorld();
+			values[1] = shop.getX();
+			values[2] = shop.getY();
+			values[3] = shop.getZ();
+			values[4] = shop.getOwner();
+			values[5] = shop.getMaterial().toString();
+			setRate(values, 6, shop.getBuyRate());
+			setRate(values, 9, shop.getSellRate());
+			format.writeRow(out, SHOP_COLUMNS, values);
+			rows++;
+		}
+		return rows;
+	}
+	private long exportTrades(final Writer out, final ExportFormat format) throws IOException {
+		final TradeJournal journal = plugin.getJournal();
+		if (journal == null) throw new IOException("The trade journal is not enabled");
+		format.writeHeader(out, TRADE_COLUMNS);
+		final Object[] values = new Object[TRADE_COLUMNS.length];
+		final SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		time.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final Date date = new Date();
+		return journal.getHistory().visitAll(new Visitor() {
+			public void visit(final TradeRecord trade) throws IOException {
+				date.setTime(trade.getTimestamp());
+				values[0] = time.format(date);
+				values[1] = trade.getPlayer();
+				values[2] = trade.isBuy() ? "buy" : "sell";
+				values[3] = trade.getWorld();
+				values[4] = trade.getX();
+				values[5] = trade.getY();
+				values[6] = trade.getZ();
+				values[7] = materialName(trade.getMaterial());
+				values[8] = trade.getAmount();
+				values[9] = trade.getPrice();
+				values[10] = materialName(trade.getCurrency());
+				format.writeRow(out, TRADE_COLUMNS, values);
+			}});
+	}
+	public boolean onCommand(final CommandSender sender, final String[] args, final PermissionHandler permissionHandler) {
+		if (sender instanceof Player && !permissionHandler.checkPerm((Player) sender, PERMISSION)) {
+			sender.sendMessage("You don't have permission to do that.");
+			return true;
+		}
+		if (args.length != 3 || !FILE_NAME.matcher(args[2]).matches()) {
+			sender.sendMessage(USAGE);
+			return true;
+		}
+		final String kind = args[1].toLowerCase();
+		if (kind.equals("trades") || kind.equals("aggregates")) {
+			if (plugin.getJournal() == null) {
+				sender.sendMessage("The trade journal is not enabled.");
+				return true;
+			}
+		} else if (kind.equals("shops")) {
+			if (!plugin.getShopIndex().isEnabled()) {
+				sender.sendMessage("The shop index is not enabled.");
+				return true;
+			}
+		} else {
+			sender.sendMessage(USAGE);
+			return true;
+		}
+		final ExportFormat format = ExportFormat.forFile(args[2]);
+		final String name = args[2].indexOf('.') == -1 ? args[2] + format.getExtension() : args[2];
+		final File file = new File(new File(plugin.getDataFolder(), "exports"), name);
+		plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				export(sender, kind, file, format);
+			}});
+		sender.sendMessage("Exporting " + kind + " to " + name + "...");
+		return true;
+	}
+	private static void setRate(final Object[] values, final int index, final Rate rate) {
+		if (rate == null) {
+			values[index] = values[index + 1] = values[index + 2] = null;
+			return;
+		}
+		values[index] = rate.getAmount();
+		values[index + 1] = rate.getPrice();
+		values[index + 2] = rate.getMaterial().toString();
+	}
+}
@@ -0,0 +1,161 @@
+package com.wolvereness.physicalshop;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * File formats for exports, written one row at a time.
+ * Values may be null, a Number, or anything else written as a string.
+ */
+public enum ExportFormat {
+	/**
+	 * Comma separated values, with a header row
+	 */
+	CSV(".csv") {
+		@Override
+		public void writeHeader(final Writer out, final String[] columns) throws IOException {
+			for (int i = 0; i < columns.length; i++) {
+				if (i != 0) {
+					out.write(',');
+				}
+				out.write(columns[i]);
+			}
+			out.write('\n');
+		}
+		@Override
+		public void writeRow(final Writer out, final String[] columns, final Object[] values) throws IOException {
+			for (int i = 0; i < values.length; i++) {
+				if (i != 0) {
+					out.write(',');
+				}
+				final Object value = values[i];
+				if (value == null) {
+					continue;
+				}
+				final String string = value.toString();
+				if (value instanceof Number || !needsQuotes(string)) {
+					out.write(string);
+					continue;
+				}
+				out.write('"');
+				for (int j = 0; j < string.length(); j++) {
+					final char c = string.charAt(j);
+					if (c == '"') {
+						out.write('"');
+					}
+					out.write(c);
+				}
+				out.write('"');
+			}
+			out.write('\n');
+		}
+	},
+	/**
+	 * One JSON object per line
+	 */
+	NDJSON(".json") {
+		@Override
+		public void writeHeader(final Writer out, final String[] columns) {
+		}
+		@Override
+		public void writeRow(final Writer out, final String[] columns, final Object[] values) throws IOException {
+			out.write('{');
+			for (int i = 0; i < values.length; i++) {
+				if (i != 0) {
+					out.write(',');
+				}
+				writeString(out, columns[i]);
+				out.write(':');
+				final Object value = values[i];
+				if (value == null) {
+					out.write("null");
+				} else if (value instanceof Number) {
+					out.write(value.toString());
+				} else {
+					writeString(out, value.toString());
+				}
+			}
+			out.write("}\n");
+		}
+	},
+	;
+	/**
+	 * Picks the format for a file name, defaulting to {@link #CSV}
+	 * @param fileName name of the file to export to
+	 * @return the format matching the extension
+	 */
+	public static ExportFormat forFile(final String fileName) {
+		final String name = fileName.toLowerCase();
+		if (name.endsWith(".json") || name.endsWith(".ndjson") || name.endsWith(".jsonl")) return NDJSON;
+		return CSV;
+	}
+	private static boolean needsQuotes(final String string) {
+		for (int i = 0; i < string.length(); i++) {
+			switch (string.charAt(i)) {
+			case ',':
+			case '"':
+			case '\n':
+			case '\r':
+				return true;
+			}
+		}
+		return false;
+	}
+	private static void writeString(final Writer out, final String string) throws IOException {
+		out.write('"');
+		for (int i = 0; i < string.length(); i++) {
+			final char c = string.charAt(i);
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+	private final String extension;
+	private ExportFormat(final String extension) {
+		this.extension = extension;
+	}
+	/**
+	 * @return the default file extension
+	 */
+	public String getExtension() {
+		return extension;
+	}
+	/**
+	 * Writes the start of the file
+	 * @param out writer for the file
+	 * @param columns names of the columns
+	 * @throws IOException if the header could not be written
+	 */
+	public abstract void writeHeader(Writer out, String[] columns) throws IOException;
+	/**
+	 * Writes a row
+	 * @param out writer for the file
+	 * @param columns names of the columns
+	 * @param values values for each column
+	 * @throws IOException if the row could not be written
+	 */
+	public abstract void writeRow(Writer out, String[] columns, Object[] values) throws IOException;
+}
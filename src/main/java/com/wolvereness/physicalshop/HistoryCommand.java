@@ -0,0 +1,149 @@
+package com.wolvereness.physicalshop;
+
+import static java.util.logging.Level.SEVERE;
+import static org.bukkit.permissions.PermissionDefault.OP;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.wolvereness.physicalshop.journal.TradeJournal;
+import com.wolvereness.physicalshop.journal.TradeQuery;
+import com.wolvereness.physicalshop.journal.TradeRecord;
+import com.wolvereness.util.CommandHandler;
+import com.wolvereness.util.PermissionHandler;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Looks up trades in the journal, one page at a time:<br>
+ * {@code history player <name> [page] [days]}<br>
+ * {@code history shop [page] [days]}, for the shop being looked at<br>
+ * The lookup is done off the main thread, and the page is sent when ready.
+ */
+public class HistoryCommand implements CommandHandler {
+	private static final int PAGE_SIZE = 8;
+	private static final String USAGE = "Usage: history player <name> [page] [days], or history shop [page] [days]";
+	private static int parse(final String[] args, final int index, final int def) {
+		if (args.length <= index) return def;
+		try {
+			return Math.max(1, Integer.parseInt(args[index]));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+	private final String PERMISSION;
+	private final PhysicalShop plugin;
+	/**
+	 * @param plugin The active PhysicalShop plugin
+	 * @param permissionHandler Permission Handler to use
+	 */
+	public HistoryCommand(final PhysicalShop plugin, final PermissionHandler permissionHandler) {
+		this.plugin = plugin;
+		PERMISSION = permissionHandler.getPermission("history", OP);
+	}
+	private String describe(final TradeRecord trade, final SimpleDateFormat format) {
+		return String.format(
+			"%s %s %s %d %s for %d %s at %s (%d, %d, %d)",
+			format.format(new Date(trade.getTimestamp())),
+			trade.getPlayer(),
+			trade.isBuy() ? "bought" : "sold",
+			trade.getAmount(),
+			materialName(trade.getMaterial()),
+			trade.getPrice(),
+			materialName(trade.getCurrency()),
+			trade.getWorld(),
+			trade.getX(),
+			trade.getY(),
+			trade.getZ());
+	}
+	private String materialName(final int key) {
+		final Material material = Material.getMaterial(key >>> 16);
+		if (material == null) return "#" + (key >>> 16) + ":" + (key & 0xFFFF);
+		return new ShopMaterial(material, (short) key, null).toString(plugin.getMaterialConfig());
+	}
+	public boolean onCommand(final CommandSender sender, final String[] args, final PermissionHandler permissionHandler) {
+		if (sender instanceof Player && !permissionHandler.checkPerm((Player) sender, PERMISSION)) {
+			sender.sendMessage("You don't have permission to do that.");
+			return true;
+		}
+		final TradeJournal journal = plugin.getJournal();
+		if (journal == null) {
+			sender.sendMessage("The trade journal is not enabled.");
+			return true;
+		}
+		final String title;
+		final int argument;
+		final long now = System.currentTimeMillis();
+		final TradeQuery query;
+		if (args.length >= 3 && args[1].equalsIgnoreCase("player")) {
+			argument = 3;
+			final int days = parse(args, argument + 1, 0);
+			query = TradeQuery.byPlayer(args[2], days > 0 ? now - days * 86400000L : 0, Long.MAX_VALUE);
+			title = args[2];
+		} else if (args.length >= 2 && args[1].equalsIgnoreCase("shop") && sender instanceof Player) {
+			argument = 2;
+			final Block block = ((Player) sender).getTargetBlock(null, 8);
+			if (ShopHelpers.getShop(block, plugin) == null) {
+				sender.sendMessage("You are not looking at a shop.");
+				return true;
+			}
+			final int days = parse(args, argument + 1, 0);
+			query = TradeQuery.byShop(
+				block.getWorld().getName(),
+				block.getX(),
+				block.getY(),
+				block.getZ(),
+				days > 0 ? now - days * 86400000L : 0,
+				Long.MAX_VALUE);
+			title = "shop at " + block.getX() + ", " + block.getY() + ", " + block.getZ();
+		} else {
+			sender.sendMessage(USAGE);
+			return true;
+		}
+		final int page = parse(args, argument, 1);
+		if (page == -1 || parse(args, argument + 1, 0) == -1) {
+			sender.sendMessage(USAGE);
+			return true;
+		}
+		plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				List<TradeRecord> trades = null;
+				try {
+					trades = journal.getHistory().query(query, (page - 1) * PAGE_SIZE, PAGE_SIZE + 1);
+				} catch (final IOException e) {
+					plugin.getLogger().log(SEVERE, "Failed to look up trade history for " + sender.getName(), e);
+				}
+				final List<TradeRecord> results = trades;
+				plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						send(sender, title, page, results);
+					}});
+			}});
+		return true;
+	}
+	private void send(final CommandSender sender, final String title, final int page, final List<TradeRecord> trades) {
+		if (trades == null) {
+			sender.sendMessage("An issue occured, please check server logs for more information!");
+			return;
+		}
+		if (trades.isEmpty()) {
+			sender.sendMessage("No trades found for " + title + (page > 1 ? " on page " + page : ""));
+			return;
+		}
+		sender.sendMessage("Trades for " + title + ", page " + page + ":");
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		for (int i = 0; i < trades.size() && i < PAGE_SIZE; i++) {
+			sender.sendMessage(describe(trades.get(i), format));
+		}
+		if (trades.size() > PAGE_SIZE) {
+			sender.sendMessage("Use page " + (page + 1) + " for more.");
+		}
+	}
+}
@@ -82,6 +82,19 @@ public class InventoryHelpers {
 		}
 	}
 
+	/**
+	 * Combines the contents of an inventory into a digest, ignoring enchantments
+	 * @param inventory the inventory to consider
+	 * @param digest the digest to continue from
+	 * @return the new digest
+	 */
+	public static long digest(final Inventory inventory, long digest) {
+		for (final ItemStack i : inventory.getContents()) {
+			final long item = i == null ? 0 : (long) i.getTypeId() << 32 | (i.getDurability() & 0xFFFFL) << 16 | i.getAmount() & 0xFFFF;
+			digest = (digest ^ item) * 0x100000001B3L;
+		}
+		return digest;
+	}
 	/**
 	 * Finds how much of given material is in given inventory
 	 * @param inventory the inventory to consider
@@ -103,6 +116,31 @@ public class InventoryHelpers {
 		return amount;
 	}
 
+	/**
+	 * Finds how much of each given material is in given inventory, reading the inventory once
+	 * @param inventory the inventory to consider
+	 * @param materials the materials to consider, which may be null
+	 * @return the amount of each material in said inventory, 0 for null materials
+	 */
+	public static int[] getCounts(final Inventory inventory, final ShopMaterial...materials) {
+		final int[] amounts = new int[materials.length];
+
+		for (final ItemStack i : inventory.getContents()) {
+			if (i == null || !i.getEnchantments().isEmpty()) {
+				continue;
+			}
+			for (int j = 0; j < materials.length; j++) {
+				if (	(materials[j] != null)
+						&& (i.getType() == materials[j].getMaterial())
+						&& (i.getDurability() == materials[j].getDurability())) {
+					amounts[j] += i.getAmount();
+				}
+			}
+		}
+
+		return amounts;
+	}
+
 	/**
 	 * Makes a set of shop item stacks to represent this inventory
 	 * @param inventory the inventory to consider
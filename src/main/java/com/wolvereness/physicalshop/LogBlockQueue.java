@@ -0,0 +1,156 @@
+package com.wolvereness.physicalshop;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+
+import de.diddiz.LogBlock.Consumer;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * A fixed size ring of chest access records waiting to be handed to LogBlock.
+ * The main thread is the only producer, and records are drained in batches from a scheduled task.
+ * When the ring is full, the record is handed to LogBlock directly instead, so nothing is lost.
+ */
+public class LogBlockQueue {
+	/**
+	 * Type id LogBlock uses for chest access
+	 */
+	private static final int CHEST = 54;
+	private final int[] amounts;
+	private volatile Consumer consumer;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong logged = new AtomicLong();
+	private final int mask;
+	private final AtomicLong overflowed = new AtomicLong();
+	private final String[] players;
+	private final AtomicLong tail = new AtomicLong();
+	private final int[] types;
+	private final World[] worlds;
+	private final int[] xs;
+	private final int[] ys;
+	private final int[] zs;
+	/**
+	 * @param capacity the amount of records to hold, rounded up to a power of two
+	 */
+	public LogBlockQueue(final int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		amounts = new int[size];
+		players = new String[size];
+		types = new int[size];
+		worlds = new World[size];
+		xs = new int[size];
+		ys = new int[size];
+		zs = new int[size];
+	}
+	/**
+	 * Hands all queued records to LogBlock. Records are dropped if LogBlock is no longer hooked.
+	 * @return the amount of records drained
+	 */
+	public synchronized int drain() {
+		final long end = head.get();
+		long position = tail.get();
+		if (position == end) return 0;
+		final Consumer consumer = this.consumer;
+		final int count = (int) (end - position);
+		for (; position < end; position++) {
+			final int i = (int) position & mask;
+			if (consumer != null) {
+				queue(consumer, players[i], worlds[i], xs[i], ys[i], zs[i], types[i], amounts[i]);
+			}
+			players[i] = null;
+			worlds[i] = null;
+		}
+		tail.lazySet(end);
+		(consumer == null ? dropped : logged).addAndGet(count);
+		return count;
+	}
+	/**
+	 * Queues a chest access, splitting amounts too large for LogBlock
+	 */
+	private static void queue(
+			final Consumer consumer,
+			final String player,
+			final World world,
+			final int x,
+			final int y,
+			final int z,
+			final int type,
+			int amount) {
+		final Location location = new Location(world, x, y, z);
+		while (amount > Short.MAX_VALUE) {
+			consumer.queueChestAccess(player, location, CHEST, (short) type, Short.MAX_VALUE, (byte) 0);
+			amount -= Short.MAX_VALUE;
+		}
+		while (amount < -Short.MAX_VALUE) {
+			consumer.queueChestAccess(player, location, CHEST, (short) type, (short) -Short.MAX_VALUE, (byte) 0);
+			amount += Short.MAX_VALUE;
+		}
+		consumer.queueChestAccess(player, location, CHEST, (short) type, (short) amount, (byte) 0);
+	}
+	/**
+	 * Records a chest access. This should only be called from the main thread.
+	 * @param player name of the player accessing the chest
+	 * @param world world of the chest
+	 * @param x x coordinate of the chest
+	 * @param y y coordinate of the chest
+	 * @param z z coordinate of the chest
+	 * @param type type id of the item
+	 * @param amount amount deposited into the chest, negative if taken
+	 */
+	public void offer(
+			final String player,
+			final World world,
+			final int x,
+			final int y,
+			final int z,
+			final int type,
+			final int amount) {
+		final long position = head.get();
+		if (position - tail.get() > mask) {
+			// Full, so apply back pressure by handing it over on this thread
+			final Consumer consumer = this.consumer;
+			if (consumer == null) {
+				dropped.incrementAndGet();
+			} else {
+				queue(consumer, player, world, x, y, z, type, amount);
+				overflowed.incrementAndGet();
+			}
+			return;
+		}
+		final int i = (int) position & mask;
+		players[i] = player;
+		worlds[i] = world;
+		xs[i] = x;
+		ys[i] = y;
+		zs[i] = z;
+		types[i] = type;
+		amounts[i] = amount;
+		head.lazySet(position + 1);
+	}
+	/**
+	 * @param consumer the LogBlock consumer to hand records to, or null if not hooked
+	 */
+	public void setConsumer(final Consumer consumer) {
+		this.consumer = consumer;
+	}
+	/**
+	 * Prints the counters for this queue
+	 * @param sender The person to send the output to
+	 */
+	public void verbose(final CommandSender sender) {
+		sender.sendMessage(
+			"LogBlock records: " + logged.get() + " logged, "
+			+ (head.get() - tail.get()) + " queued, "
+			+ overflowed.get() + " handed over directly, "
+			+ dropped.get() + " dropped");
+	}
+}
@@ -17,6 +17,7 @@ import java.util.logging.Level;
 import org.bukkit.block.Block;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
@@ -28,12 +29,18 @@ import com.daemitus.deadbolt.Deadbolt;
 import com.daemitus.deadbolt.DeadboltPlugin;
 import com.daemitus.deadbolt.Deadbolted;
 import com.griefcraft.lwc.LWCPlugin;
+import com.wolvereness.physicalshop.config.ConfigBundle;
 import com.wolvereness.physicalshop.config.Localized;
 import com.wolvereness.physicalshop.config.MaterialConfig;
 import com.wolvereness.physicalshop.config.StandardConfig;
+import com.wolvereness.physicalshop.journal.IntentLog;
+import com.wolvereness.physicalshop.journal.ShopFeed;
+import com.wolvereness.physicalshop.journal.TradeJournal;
 import com.wolvereness.physicalshop.showcase.ShowcaseListener;
+import com.wolvereness.physicalshop.stats.TradeStats;
 import com.wolvereness.util.CommandHandler;
 import com.wolvereness.util.CommandHandler.Reload;
+import com.wolvereness.util.CommandHandler.Reload.AsyncReloadable;
 import com.wolvereness.util.CommandHandler.ShortCommand;
 import com.wolvereness.util.CommandHandler.Verbose;
 import com.wolvereness.util.CommandHandler.Verbose.Verbosable;
@@ -46,11 +53,23 @@ import de.diddiz.LogBlock.LogBlock;
 /**
  *
  */
-public class PhysicalShop extends JavaPlugin implements Verbosable {
+public class PhysicalShop extends JavaPlugin implements AsyncReloadable, Verbosable {
+	/**
+	 * Command to export shops or trades
+	 */
+	public static final String EXPORT_COMMAND = "EXPORT";
+	/**
+	 * Command to look up trade history
+	 */
+	public static final String HISTORY_COMMAND = "HISTORY";
 	/**
 	 * Command to reload PhysicalShop
 	 */
 	public static final String RELOAD_COMMAND = "RELOAD";
+	/**
+	 * Command to show trade statistics
+	 */
+	public static final String STATS_COMMAND = "STATS";
 	/**
 	 * Command to update
 	 */
@@ -64,17 +83,23 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 	 */
 	public static final String VERSION_COMMAND = "VERSION";
 	private final HashMap<String,CommandHandler> commands = new HashMap<String,CommandHandler>();
-	private StandardConfig configuration;
+	private volatile ConfigBundle configuration;
 	private Consumer consumer = null;
 	private Plugin deadbolt = null;
+	private volatile ShopFeed feed;
 	private final PhysicalShopListener listener = new PhysicalShopListener(this);
-	private Localized locale;
+	private volatile IntentLog intentLog;
+	private volatile TradeJournal journal;
+	private final LogBlockQueue logBlockQueue = new LogBlockQueue(4096);
 	private Plugin lockette = null;
 	private LWCPlugin lwc = null;
-	private MaterialConfig materialConfig;
 	private Permissions permissions;
+	private volatile TradeStats stats;
+	private final ShopIndex shopIndex = new ShopIndex(this);
 	private final ShowcaseListener showcaseListener = new ShowcaseListener(this);
+	private final StatusCache statusCache = new StatusCache();
 	private final Set<String> updateSenders = new HashSet<String>();
+	private final ConfigWatcher watcher = new ConfigWatcher(this);
 	/**
 	 * This function checks for Deadbolt, thus letting player create shop over
 	 * existing chest
@@ -108,11 +133,46 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 		}
 		return new File(getServer().getUpdateFolderFile(), "PhysicalShop.jar");
 	}
+	/**
+	 * Gets the installed config.yml, loading it if nothing is installed yet
+	 * @return the raw config
+	 */
+	@Override
+	public FileConfiguration getConfig() {
+		if(configuration == null) {
+			reloadConfig();
+		}
+		return configuration.getConfig();
+	}
+	/**
+	 * @return the installed configuration
+	 */
+	public ConfigBundle getConfigBundle() {
+		return configuration;
+	}
+	/**
+	 * @return the shop change feed, or null if disabled
+	 */
+	public ShopFeed getFeed() {
+		return feed;
+	}
+	/**
+	 * @return the trade intent log, or null if disabled
+	 */
+	public IntentLog getIntentLog() {
+		return intentLog;
+	}
+	/**
+	 * @return the trade journal, or null if disabled
+	 */
+	public TradeJournal getJournal() {
+		return journal;
+	}
 	/**
 	 * @return the locale
 	 */
 	public Localized getLocale() {
-		return locale;
+		return configuration.getLocale();
 	}
 	/**
 	 * This function checks for LogBlock if not already found after plugin
@@ -123,11 +183,17 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 	public Consumer getLogBlock() {
 		return consumer;
 	}
+	/**
+	 * @return the queue of records waiting to be handed to LogBlock
+	 */
+	public LogBlockQueue getLogBlockQueue() {
+		return logBlockQueue;
+	}
 	/**
 	 * @return the MaterialConfig being used
 	 */
 	public MaterialConfig getMaterialConfig() {
-		return materialConfig;
+		return configuration.getMaterialConfig();
 	}
 	public Permissions getPermissionHandler() {
 		return permissions;
@@ -138,7 +204,168 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 	 * @return the configuration being used
 	 */
 	public StandardConfig getPluginConfig() {
-		return configuration;
+		return configuration.getStandardConfig();
+	}
+	/**
+	 * Reads a segment size in megabytes, clamped to what a single mapped file can hold
+	 * @param config the configuration to read from
+	 * @param option the option holding the size in megabytes
+	 * @return the segment size in bytes
+	 */
+	private int getSegmentSize(final FileConfiguration config, final String option) {
+		final long megabytes = config.getInt(option);
+		final long size = Math.max(1, Math.min(megabytes, Integer.MAX_VALUE >> 20)) << 20;
+		if (size != megabytes << 20) {
+			getLogger().severe(option + " must be between 1 and " + (Integer.MAX_VALUE >> 20) + " (megabytes), was " + megabytes + "; using " + (size >> 20));
+		}
+		return (int) size;
+	}
+	/**
+	 * @return the index of shops in loaded chunks
+	 */
+	public ShopIndex getShopIndex() {
+		return shopIndex;
+	}
+	/**
+	 * @return the rolling trade totals, or null if disabled
+	 */
+	public TradeStats getStats() {
+		return stats;
+	}
+	/**
+	 * @return the cache of rendered shop statuses
+	 */
+	public StatusCache getStatusCache() {
+		return statusCache;
+	}
+	/**
+	 * Installs loaded configuration, applying whatever changed that touches the server. This should only be called from the main thread.
+	 * @param bundle the configuration to install
+	 */
+	void install(final ConfigBundle bundle) {
+		final ConfigBundle previous = configuration;
+		if(previous != null && previous.getLocale() != bundle.getLocale()) {
+			previous.getLocale().flushRepeats(true);
+		}
+		if(previous != null && previous.getStandardConfig() == bundle.getStandardConfig()) {
+			// Only the locale or items changed, so nothing else needs to be applied again
+			configuration = bundle;
+			statusCache.clear();
+			if(!previous.hasSameSignFormat(bundle)) {
+				shopIndex.rescan();
+			}
+			watcher.reset(bundle);
+			return;
+		}
+		final FileConfiguration getConfig = bundle.getConfig();
+		configuration = bundle;
+		if(bundle.getStandardConfig().isExtendedNames() != NameCollection.isRegistered(this)) {
+			if(!bundle.getStandardConfig().isExtendedNames()) {
+				NameCollection.unregisterPlugin(this);
+			} else if(bundle.getNames() != null) {
+				NameCollection.registerPlugin(this, bundle.getNames());
+			} else {
+				// Registered by the time the names were read, and unregistered since
+				NameCollection.registerPlugin(this);
+			}
+		}
+		showcaseListener.setSlots(getConfig.getInt(SHOWCASE_SLOTS));
+		showcaseListener.setStatus(bundle.getStandardConfig().isShowcaseEnabled());
+		statusCache.clear();
+		try {
+			if (getConfig.getBoolean(LOG_BLOCK)) {
+				final Plugin logblockPlugin = getServer().getPluginManager().getPlugin("LogBlock");
+				if (logblockPlugin == null || !(logblockPlugin instanceof LogBlock)) {
+					getLogger().warning("Failed to find LogBlock");
+					consumer = null;
+				} else {
+					consumer = ((LogBlock) logblockPlugin).getConsumer();
+					if (consumer == null) {
+						getLogger().warning("Error getting LogBlock consumer");
+					} else {
+						getLogger().info("Sucessfully hooked into LogBlock");
+					}
+				}
+			} else {
+				consumer = null;
+				getLogger().info("Did not hook into LogBlock");
+			}
+		} catch (final Throwable t) {
+			consumer = null;
+			getLogger().log(Level.SEVERE, "Error handling LogBlock", t);
+		}
+		logBlockQueue.setConsumer(consumer);
+		if(getConfig.getBoolean(TRADE_JOURNAL)) {
+			if(journal == null) {
+				try {
+					journal = TradeJournal.open(
+						new File(getDataFolder(), "journal"),
+						getSegmentSize(getConfig, JOURNAL_SEGMENT_SIZE),
+						getLogger());
+				} catch (final IOException e) {
+					getLogger().log(SEVERE, "Failed to open the trade journal", e);
+				}
+			}
+			if(journal != null) {
+				journal.getCompactor().setRetention(getConfig.getInt(JOURNAL_RAW_DAYS), getConfig.getInt(JOURNAL_AGGREGATE_DAYS));
+			}
+		} else if(journal != null) {
+			journal.close();
+			journal = null;
+		}
+		if(getConfig.getBoolean(TRADE_INTENT_LOG)) {
+			if(intentLog == null) {
+				try {
+					intentLog = new IntentLog(new File(getDataFolder(), "journal"), getLogger());
+				} catch (final IOException e) {
+					getLogger().log(SEVERE, "Failed to open the trade intent log", e);
+				}
+			}
+			if(intentLog != null) {
+				// Otherwise intents are durable only after the next commit, which may be after the trade changed inventories
+				intentLog.setSyncBegin(getConfig.getBoolean(TRADE_INTENT_SYNC));
+			}
+		} else if(intentLog != null) {
+			intentLog.close();
+			intentLog = null;
+		}
+		if(!getConfig.getBoolean(TRADE_STATS)) {
+			stats = null;
+		} else if(stats == null) {
+			stats = new TradeStats(getConfig.getInt(TRADE_STATS_KEYS));
+		}
+		boolean stockCounted = true;
+		if(getConfig.getBoolean(SHOP_FEED)) {
+			if(feed == null) {
+				try {
+					feed = ShopFeed.open(
+						new File(getDataFolder(), "feed"),
+						getSegmentSize(getConfig, SHOP_FEED_SEGMENT_SIZE),
+						getConfig.getInt(SHOP_FEED_SEGMENTS),
+						this);
+					shopIndex.addChangeListener(feed);
+					// Stock is only counted while there are listeners
+					stockCounted = false;
+				} catch (final IOException e) {
+					getLogger().log(SEVERE, "Failed to open the shop feed", e);
+				}
+			}
+		} else if(feed != null) {
+			shopIndex.removeChangeListener(feed);
+			feed.close();
+			feed = null;
+		}
+		showcaseListener.setRadius(getConfig.getInt(SHOWCASE_RADIUS));
+		// Only kept for what reads it, as keeping it parses every sign of every chunk loaded
+		final boolean indexed = feed != null || getConfig.getInt(SHOWCASE_RADIUS) > 0 || getConfig.getBoolean(SHOP_INDEX);
+		if(indexed && shopIndex.isEnabled()) {
+			if(!stockCounted || previous == null || !previous.hasSameSignFormat(bundle)) {
+				shopIndex.rescan();
+			}
+		} else {
+			shopIndex.setEnabled(indexed);
+		}
+		watcher.reset(bundle);
 	}
 	/**
 	 * Method used to hook into lockette
@@ -180,11 +407,25 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 		return false;
 	}
 	/**
-	 * Does nothing as of yet.
+	 * Hands any remaining records to LogBlock, closes the trade journal, intent log and shop feed, and unregisters from the name collection.
 	 */
 	@Override
 	public void onDisable() {
-		if(configuration.isExtendedNames()) {
+		logBlockQueue.drain();
+		if(journal != null) {
+			journal.close();
+			journal = null;
+		}
+		if(intentLog != null) {
+			intentLog.close();
+			intentLog = null;
+		}
+		if(feed != null) {
+			shopIndex.removeChangeListener(feed);
+			feed.close();
+			feed = null;
+		}
+		if(configuration != null && configuration.getStandardConfig().isExtendedNames()) {
 			NameCollection.unregisterPlugin(this);
 		}
 	}
@@ -196,14 +437,48 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 		try
 		{
 			saveConfig();
+			watcher.reset(configuration);
 			permissions = new Permissions(this);
 			//Events
 			final PluginManager pm = getServer().getPluginManager();
 			pm.registerEvents(listener, this);
+			pm.registerEvents(shopIndex, this);
+			//Tasks
+			getServer().getScheduler().scheduleSyncRepeatingTask(this, new Runnable() {
+				public void run() {
+					getLocale().flushRepeats(false);
+				}}, 10, 10);
+			getServer().getScheduler().scheduleAsyncRepeatingTask(this, new Runnable() {
+				public void run() {
+					logBlockQueue.drain();
+				}}, 20, 20);
+			final int commitInterval = Math.max(1, getConfig().getInt(JOURNAL_COMMIT_INTERVAL));
+			getServer().getScheduler().scheduleAsyncRepeatingTask(this, new Runnable() {
+				public void run() {
+					final TradeJournal journal = PhysicalShop.this.journal;
+					if(journal != null) {
+						journal.commit();
+					}
+					final IntentLog intentLog = PhysicalShop.this.intentLog;
+					if(intentLog != null) {
+						intentLog.commit();
+					}
+				}}, commitInterval, commitInterval);
+			getServer().getScheduler().scheduleAsyncRepeatingTask(this, new Runnable() {
+				public void run() {
+					final TradeJournal journal = PhysicalShop.this.journal;
+					if(journal != null) {
+						journal.getCompactor().run();
+					}
+				}}, 1200, 72000);
+			getServer().getScheduler().scheduleAsyncRepeatingTask(this, watcher, 20, 20);
 			//Commands
 			commands.put(RELOAD_COMMAND, new Reload(this));
 			commands.put(VERSION_COMMAND, new Version(this,"%2$s version %1$s by Wolvereness, original by yli"));
 			commands.put(VERBOSE_COMMAND, new Verbose(this));
+			commands.put(EXPORT_COMMAND, new ExportCommand(this, this.permissions));
+			commands.put(HISTORY_COMMAND, new HistoryCommand(this, this.permissions));
+			commands.put(STATS_COMMAND, new StatsCommand(this, this.permissions));
 			commands.put(UPDATE_COMMAND, new ShortCommand(this.permissions, "update", OP) {
 				@Override
 				public boolean go(final CommandSender sender) {
@@ -245,52 +520,59 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 	@Override
 	public void onLoad() {
 	}
+	/**
+	 * Reads the configuration files and installs them, keeping the current configuration if they could not be read
+	 */
 	@Override
-	@SuppressWarnings("deprecation")
 	public void reloadConfig() {
-		if(configuration != null && configuration.isExtendedNames()) {
-			NameCollection.unregisterPlugin(this);
-		}
-		super.reloadConfig();
-		final FileConfiguration getConfig = getConfig();
-		getConfig.options().copyDefaults(true);
-		if(getConfig.isSet(BUY_PATTERN)) {
-			getConfig.getConfigurationSection(BUY_SECTION).set(PATTERN, getConfig.getString(BUY_PATTERN));
-			getConfig.set(BUY_PATTERN, null);
-		}
-		if(getConfig.isSet(SELL_PATTERN)) {
-			getConfig.getConfigurationSection(SELL_SECTION).set(PATTERN, getConfig.getString(SELL_PATTERN));
-			getConfig.set(SELL_PATTERN, null);
-		}
-		configuration = new StandardConfig(this);
-		if(configuration.isExtendedNames()) {
-			NameCollection.registerPlugin(this);
-		}
-		showcaseListener.setStatus(configuration.isShowcaseEnabled());
-		locale = new Localized(this);
-		materialConfig = new MaterialConfig(this);
+		final ConfigBundle bundle;
 		try {
-			if (getConfig.getBoolean(LOG_BLOCK)) {
-				final Plugin logblockPlugin = getServer().getPluginManager().getPlugin("LogBlock");
-				if (logblockPlugin == null || !(logblockPlugin instanceof LogBlock)) {
-					getLogger().warning("Failed to find LogBlock");
-					consumer = null;
-				} else {
-					consumer = ((LogBlock) logblockPlugin).getConsumer();
-					if (consumer == null) {
-						getLogger().warning("Error getting LogBlock consumer");
-					} else {
-						getLogger().info("Sucessfully hooked into LogBlock");
-					}
-				}
-			} else {
-				consumer = null;
-				getLogger().info("Did not hook into LogBlock");
-			}
-		} catch (final Throwable t) {
-			consumer = null;
-			getLogger().log(Level.SEVERE, "Error handling LogBlock", t);
+			bundle = ConfigBundle.load(this);
+		} catch (final Exception e) {
+			if(configuration == null) throw new IllegalStateException("Failed to load the configuration", e);
+			getLogger().log(SEVERE, "Failed to reload the configuration, keeping the current one", e);
+			return;
 		}
+		install(bundle);
+	}
+	/**
+	 * Reads the configuration files from an async task, then installs them on the main thread.
+	 * The current configuration stays in use until then, or if the files could not be read.
+	 * @param sender The person to tell once the reload is done or failed
+	 */
+	public void reloadConfig(final CommandSender sender) {
+		getServer().getScheduler().scheduleAsyncDelayedTask(this, new Runnable() {
+			public void run() {
+				final long start = System.nanoTime();
+				ConfigBundle bundle = null;
+				String error = null;
+				try {
+					bundle = ConfigBundle.load(PhysicalShop.this);
+				} catch (final IOException e) {
+					error = e.getMessage();
+					getLogger().log(SEVERE, sender.getName() + " failed to reload the configuration, keeping the current one", e);
+				} catch (final InvalidConfigurationException e) {
+					error = e.getMessage();
+					getLogger().log(SEVERE, sender.getName() + " failed to reload the configuration, keeping the current one", e);
+				} catch (final RuntimeException e) {
+					error = e.getMessage();
+					getLogger().log(SEVERE, sender.getName() + " failed to reload the configuration, keeping the current one", e);
+				}
+				final long loadMillis = (System.nanoTime() - start) / 1000000;
+				final ConfigBundle loaded = bundle;
+				final String failure = error;
+				getServer().getScheduler().scheduleSyncDelayedTask(PhysicalShop.this, new Runnable() {
+					public void run() {
+						if(loaded == null) {
+							sender.sendMessage("Reload failed, the current configuration is kept: " + failure);
+							return;
+						}
+						final long start = System.nanoTime();
+						install(loaded);
+						sender.sendMessage(getDescription().getFullName() + " reloaded, read in " + loadMillis
+							+ "ms and installed in " + (System.nanoTime() - start) / 1000000 + "ms.");
+					}});
+			}});
 	}
 	/**
 	 * @param sender The player to confirm the update
@@ -341,6 +623,16 @@ public class PhysicalShop extends JavaPlugin implements Verbosable {
 		sender.sendMessage("Update has started.");
 	}
 	public void verbose(final CommandSender sender) {
-		materialConfig.verbose(sender);
+		getMaterialConfig().verbose(sender);
+		logBlockQueue.verbose(sender);
+		showcaseListener.verbose(sender);
+		final TradeJournal journal = this.journal;
+		if(journal != null) {
+			journal.verbose(sender);
+		}
+		final ShopFeed feed = this.feed;
+		if(feed != null) {
+			feed.verbose(sender);
+		}
 	}
 }
@@ -1,7 +1,6 @@
 package com.wolvereness.physicalshop;
 
 import static com.wolvereness.physicalshop.ShopHelpers.*;
-import static com.wolvereness.physicalshop.config.ConfigOptions.SERVER_SHOP;
 import static com.wolvereness.physicalshop.config.Localized.Message.*;
 import static java.util.logging.Level.SEVERE;
 import static org.bukkit.Material.CHEST;
@@ -42,7 +41,6 @@ import com.wolvereness.physicalshop.events.ShopDestructionEvent;
 import com.wolvereness.physicalshop.events.ShopInteractEvent;
 import com.wolvereness.physicalshop.events.ShopSignCreationEvent;
 import com.wolvereness.physicalshop.exception.InvalidSignException;
-import com.wolvereness.physicalshop.exception.InvalidSignOwnerException;
 import com.wolvereness.util.NameCollection;
 import com.wolvereness.util.NameCollection.OutOfEntriesException;
 
@@ -247,7 +245,7 @@ public class PhysicalShopListener implements Listener {
 		if (shop == null) return;
 
 		if (!plugin.getPermissionHandler().hasUse(e.getPlayer())) {
-			plugin.getLocale().sendMessage(e.getPlayer(), CANT_USE);
+			plugin.getLocale().sendRepeatableMessage(e.getPlayer(), null, CANT_USE);
 			return;
 		}
 
@@ -272,9 +270,9 @@ public class PhysicalShopListener implements Listener {
 	 */
 	@EventHandler(ignoreCancelled = true)
 	public void onSignChange(final SignChangeEvent e) {
+		final Shop parsed;
 		try {
-			new Shop(e.getLines(), plugin);
-		} catch (final InvalidSignOwnerException ex) {
+			parsed = new Shop(e.getLines(), plugin, false);
 		} catch (final InvalidSignException ex) {
 			return;
 		}
@@ -285,8 +283,9 @@ public class PhysicalShopListener implements Listener {
 			return;
 		}
 
-		final ShopSignCreationEvent event = new ShopSignCreationEvent(e);
-		if (e.getLine(3).equalsIgnoreCase(plugin.getConfig().getString(SERVER_SHOP))) {
+		final String serverShop = plugin.getPluginConfig().getServerShop();
+		final ShopSignCreationEvent event = new ShopSignCreationEvent(e, parsed);
+		if (parsed.getOwnerName().equalsIgnoreCase(serverShop)) {
 			if (!plugin.getPermissionHandler().hasAdmin(e.getPlayer())) {
 				plugin.getLocale().sendMessage(e.getPlayer(), CANT_BUILD_SERVER);
 				e.setCancelled(true);
@@ -327,9 +326,10 @@ public class PhysicalShopListener implements Listener {
 		} else {
 			hasChest = e.getBlock().getRelative(DOWN).getState() instanceof InventoryHolder;
 		}
-		if(hasChest || e.getLine(3).equalsIgnoreCase(plugin.getConfig().getString(SERVER_SHOP))) {
+		if(hasChest || e.getLine(3).equalsIgnoreCase(serverShop)) {
 			try {
-				plugin.getServer().getPluginManager().callEvent(new ShopCreationEvent(e, new Shop(e.getLines(), plugin)));
+				// Only the owner line may have changed since parsing
+				plugin.getServer().getPluginManager().callEvent(new ShopCreationEvent(e, parsed.withOwner(e.getLine(3))));
 			} catch (final InvalidSignException ex) {
 				plugin.getLogger().log(SEVERE, "Unexpected invalid shop", ex);
 			}
@@ -1,7 +1,6 @@
 package com.wolvereness.physicalshop;
 
 
-import static com.wolvereness.physicalshop.config.ConfigOptions.TRIGGER_REDSTONE;
 import static com.wolvereness.physicalshop.config.Localized.Message.*;
 import static java.util.logging.Level.SEVERE;
 
@@ -14,17 +13,49 @@ import org.bukkit.craftbukkit.CraftChunk;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.Inventory;
 
+import com.wolvereness.physicalshop.config.Localized;
 import com.wolvereness.physicalshop.config.MaterialConfig;
 import com.wolvereness.physicalshop.exception.InvalidExchangeException;
 import com.wolvereness.physicalshop.exception.InvalidMaterialException;
 import com.wolvereness.physicalshop.exception.InvalidSignException;
 import com.wolvereness.physicalshop.exception.InvalidSignOwnerException;
+import com.wolvereness.physicalshop.journal.IntentLog;
+import com.wolvereness.physicalshop.journal.JournalFormat;
+import com.wolvereness.physicalshop.journal.TradeJournal;
+import com.wolvereness.physicalshop.stats.TradeStats;
 import com.wolvereness.util.NameCollection;
 
 /**
  *
  */
 public class Shop {
+	/**
+	 * Identifies a trade attempt, so a repeated failure can be recognized.
+	 * The inventories are part of the attempt, so a restock or freed space is a new attempt.
+	 */
+	private static final class TradeAttempt {
+		private final boolean buying;
+		private final long contents;
+		private final Location location;
+		TradeAttempt(final Location location, final boolean buying, final long contents) {
+			this.location = location;
+			this.buying = buying;
+			this.contents = contents;
+		}
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof TradeAttempt)) return false;
+			final TradeAttempt other = (TradeAttempt) obj;
+			return	buying == other.buying
+					&& contents == other.contents
+					&& location.equals(other.location);
+		}
+		@Override
+		public int hashCode() {
+			return location.hashCode() * 31 + (int) (contents ^ contents >>> 32) * 2 + (buying ? 1 : 0);
+		}
+	}
 	/**
 	 * Figures out the current material the shop uses.
 	 * @param lines text from sign
@@ -46,6 +77,10 @@ public class Shop {
 	public static String getOwnerName(final String[] lines) {
 		return lines[3];
 	}
+	private static boolean isSameRate(final Rate a, final Rate b) {
+		if (a == null || b == null) return a == b;
+		return a.getAmount() == b.getAmount() && a.getPrice() == b.getPrice() && a.getMaterial().equals(b.getMaterial());
+	}
 	@SuppressWarnings("deprecation")
 	private static void updateInventory(final Player player) {
 		player.updateInventory();
@@ -63,7 +98,7 @@ public class Shop {
 	 * @throws InvalidSignException If sign does not match correct pattern.
 	 */
 	public Shop(final Sign sign, final PhysicalShop plugin) throws InvalidSignException {
-		this(sign.getLines(), plugin, sign);
+		this(sign.getLines(), plugin, sign, true);
 	}
 	/**
 	 * Initializes a shop based off the lines from a sign. Used to check validity.
@@ -72,16 +107,28 @@ public class Shop {
 	 * @throws InvalidSignException If the sign text does not match correct pattern.
 	 */
 	public Shop(final String[] lines, final PhysicalShop plugin) throws InvalidSignException {
-		this(lines, plugin, null);
+		this(lines, plugin, null, true);
+	}
+	/**
+	 * Initializes a shop based off the lines from a sign, optionally accepting a missing owner.
+	 * Used when the owner will be filled in afterwards with {@link #withOwner(String)}.
+	 * @param lines the text from the sign to consider
+	 * @param plugin The active PhysicalShop plugin
+	 * @param requireOwner false if an empty fourth line should be accepted
+	 * @throws InvalidSignException If the sign text does not match correct pattern.
+	 */
+	public Shop(final String[] lines, final PhysicalShop plugin, final boolean requireOwner) throws InvalidSignException {
+		this(lines, plugin, null, requireOwner);
 	}
 	/**
 	 * Initializes a shop based off the lines from a sign. Used to check validity.
 	 * @param lines the text from the sign to consider
 	 * @param plugin The active PhysicalShop plugin
 	 * @param sign the sign to consider
+	 * @param requireOwner false if an empty fourth line should be accepted
 	 * @throws InvalidSignException If the sign text does not match correct pattern.
 	 */
-	private Shop(final String[] lines, final PhysicalShop plugin, final Sign sign) throws InvalidSignException {
+	private Shop(final String[] lines, final PhysicalShop plugin, final Sign sign, final boolean requireOwner) throws InvalidSignException {
 		this.sign = sign;
 		material = getMaterial(lines, plugin.getMaterialConfig());
 
@@ -92,7 +139,46 @@ public class Shop {
 
 		if (buyRate == null && sellRate == null) throw new InvalidSignException();
 
-		if (((this.ownerName = lines[3]) == null) || ownerName.length() == 0) throw new InvalidSignOwnerException();
+		if (lines[3] == null || lines[3].length() == 0) {
+			if (requireOwner) throw new InvalidSignOwnerException();
+			ownerName = "";
+		} else {
+			ownerName = lines[3];
+		}
+	}
+	/**
+	 * Copies an already parsed shop, replacing the owner.
+	 * @param shop the shop to copy
+	 * @param ownerName the new owner, already validated
+	 */
+	private Shop(final Shop shop, final String ownerName) {
+		this.sign = shop.sign;
+		this.material = shop.material;
+		this.buyRate = shop.buyRate;
+		this.sellRate = shop.sellRate;
+		this.ownerName = ownerName;
+	}
+	/**
+	 * Appends an intent for a trade about to happen, if the intent log is enabled
+	 * @return the id of the intent, or -1 if none
+	 */
+	private long beginIntent(final Player player, final boolean selling, final PhysicalShop plugin) {
+		final IntentLog log = plugin.getIntentLog();
+		final Rate rate = selling ? sellRate : buyRate;
+		if (log == null || rate == null || sign == null) return -1;
+		return log.begin(
+			player.getName(),
+			sign.getWorld().getName(),
+			sign.getX(),
+			sign.getY(),
+			sign.getZ(),
+			selling ? JournalFormat.SELL : JournalFormat.BUY,
+			material.getKey(),
+			rate.getAmount(),
+			rate.getMaterial().getKey(),
+			rate.getPrice(),
+			getInventoryDigest(player)
+			);
 	}
 	/**
 	 * Invokes the buy routine for player.
@@ -102,7 +188,7 @@ public class Shop {
 	 */
 	protected boolean buy(final Player player, final PhysicalShop plugin) {
 		if (!canBuy()) {
-			plugin.getLocale().sendMessage(player, NO_BUY);
+			plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, true), NO_BUY);
 			return false;
 		}
 
@@ -114,12 +200,14 @@ public class Shop {
 		try {
 			InventoryHelpers.exchange(inventory, material.getStack(amount), getBuyCurrency().getStack(price));
 		} catch (final InvalidExchangeException e) {
+			// Restored first, as the attempt includes the shop inventory as it will be on the next click
+			undoShopExchange();
 			switch (e.getType()) {
 			case ADD:
-				plugin.getLocale().sendMessage(player, PLAYER_INVENTORY_FULL);
+				plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, true), PLAYER_INVENTORY_FULL);
 				break;
 			case REMOVE:
-				plugin.getLocale().sendMessage(player, NOT_ENOUGH_PLAYER_MONEY, getBuyCurrency().toString(plugin.getMaterialConfig()));
+				plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, true), NOT_ENOUGH_PLAYER_MONEY, getBuyCurrency().toString(plugin.getMaterialConfig()));
 				break;
 			}
 
@@ -137,6 +225,7 @@ public class Shop {
 		updateInventory(player);
 
 		queryLogBlock(player, false, plugin);
+		recordTrade(player, false, plugin);
 		return true;
 	}
 	/**
@@ -151,6 +240,24 @@ public class Shop {
 	public boolean canSell() {
 		return sellRate != null;
 	}
+	/**
+	 * Finishes a trade worked out by a {@link TradePlan}, once it has checked nothing changed since. This should only be called from the main thread.
+	 * @param player the player trading
+	 * @param selling true if the player is selling to the shop
+	 * @param plan the plan of the exchange
+	 * @param plugin The active PhysicalShop plugin
+	 */
+	void commitPlan(final Player player, final boolean selling, final TradePlan plan, final PhysicalShop plugin) {
+		final long intent = beginIntent(player, selling, plugin);
+		plan.apply(player.getInventory(), getShopInventory());
+		player.sendMessage(plan.getMessage());
+		updateInventory(player);
+		queryLogBlock(player, selling, plugin);
+		recordTrade(player, selling, plugin);
+		endIntent(intent, true, plugin);
+		triggerRedstone(plugin);
+		updateIndex(selling, plugin);
+	}
 	@Override
 	public boolean equals(final Object o) {
 		if(o == this) return true;
@@ -185,6 +292,24 @@ public class Shop {
 	public Rate getBuyRate() {
 		return buyRate;
 	}
+	/**
+	 * Appends the completion marker for an intent, if there was one.
+	 * Not reached if the trade failed with an exception, leaving the intent to be reported.
+	 */
+	private void endIntent(final long intent, final boolean success, final PhysicalShop plugin) {
+		if (intent == -1) return;
+		final IntentLog log = plugin.getIntentLog();
+		if (log != null) {
+			log.end(intent, success);
+		}
+	}
+	/**
+	 * @param player the player trading
+	 * @return a digest of the inventories a trade changes, before the trade
+	 */
+	protected long getInventoryDigest(final Player player) {
+		return InventoryHelpers.digest(player.getInventory(), 0xCBF29CE484222325L);
+	}
 	/**
 	 * @return the material associated with this shop
 	 */
@@ -210,6 +335,12 @@ public class Shop {
 	public Rate getSellRate() {
 		return sellRate;
 	}
+	/**
+	 * @return the inventory stock is kept in, or null if the shop has unlimited stock
+	 */
+	protected Inventory getShopInventory() {
+		return null;
+	}
 	/**
 	 * Gets the current amount of shop's buying currency in the chest.
 	 *
@@ -233,12 +364,31 @@ public class Shop {
 	public int getShopSellCapital() {
 		return Integer.MAX_VALUE;
 	}
+	/**
+	 * @param player the player trading
+	 * @param buying true if the player is buying from the shop
+	 * @return an identifier for this attempt, or null if there is no sign
+	 */
+	protected Object getTradeAttempt(final Player player, final boolean buying) {
+		if (sign == null) return null;
+		return new TradeAttempt(sign.getBlock().getLocation(), buying, getInventoryDigest(player));
+	}
 	/**
 	 * @return the associated sign
 	 */
 	public Sign getSign() {
 		return sign;
 	}
+	/**
+	 * @param other another shop
+	 * @return true if both have the same owner, material and rates, regardless of where they are or their stock
+	 */
+	public boolean hasSameTerms(final Shop other) {
+		return	ownerName.equals(other.ownerName)
+				&& material.equals(other.material)
+				&& isSameRate(buyRate, other.buyRate)
+				&& isSameRate(sellRate, other.sellRate);
+	}
 	@Override
 	public int hashCode() {
 		if(hash == 0 && sign != null) {
@@ -257,14 +407,19 @@ public class Shop {
 	 */
 	public void interact(final Player player, final PhysicalShop plugin) {
 		final ShopMaterial item = new ShopMaterial(player.getItemInHand());
+		final Localized locale = plugin.getLocale();
 		try {
 			if (item.equals(getBuyCurrency())) {
-				if(buy(player, plugin)) {
-					triggerRedstone(plugin);
+				// Skip a trade that just failed the same way, until the repeat window passes.
+				// The attempt digests the inventories, so it is only built when a failure is pending.
+				if(locale.hasRepeat(player) && locale.isRepeating(player, getTradeAttempt(player, true))) return;
+				if(!TradePlan.start(this, player, false, plugin)) {
+					trade(player, false, plugin);
 				}
 			} else if (item.equals(material)) {
-				if(sell(player, plugin)) {
-					triggerRedstone(plugin);
+				if(locale.hasRepeat(player) && locale.isRepeating(player, getTradeAttempt(player, false))) return;
+				if(!TradePlan.start(this, player, true, plugin)) {
+					trade(player, true, plugin);
 				}
 			}
 		} catch (final Throwable t) {
@@ -296,43 +451,58 @@ public class Shop {
 	}
 	private void queryLogBlock(final Player player, final boolean selling, final PhysicalShop plugin) {
 		if (plugin.getLogBlock() == null) return;
-		final Location chestLocation = sign.getBlock().getRelative(BlockFace.DOWN).getLocation();
-		final short currencyDeposited = (short) (selling ? -getSellRate().getPrice() : getBuyRate().getPrice());
-		final short materialDeposited = (short) (selling ? getSellRate().getAmount() : -getBuyRate().getAmount());
-		if(currencyDeposited != 0) {
-			plugin
-				.getLogBlock()
-				.queueChestAccess(
-					player
-						.getName(),
-					chestLocation,
-					54,
-					(short) (
-						selling
-							? getSellCurrency()
-							: getBuyCurrency()
-						)
-						.getMaterial()
-						.getId(),
-					currencyDeposited,
-					(byte) 0
-					);
+		final LogBlockQueue queue = plugin.getLogBlockQueue();
+		final int currencyDeposited = selling ? -getSellRate().getPrice() : getBuyRate().getPrice();
+		final int materialDeposited = selling ? getSellRate().getAmount() : -getBuyRate().getAmount();
+		// The chest is directly below the sign
+		if (currencyDeposited != 0) {
+			queue.offer(
+				player.getName(),
+				sign.getWorld(),
+				sign.getX(),
+				sign.getY() - 1,
+				sign.getZ(),
+				(selling ? getSellCurrency() : getBuyCurrency()).getMaterial().getId(),
+				currencyDeposited
+				);
 		}
-		if (materialDeposited != 0 ) {
-			plugin
-				.getLogBlock()
-				.queueChestAccess(
-					player
-						.getName(),
-					chestLocation,
-					54,
-					(short) getMaterial()
-						.getMaterial()
-						.getId(),
-					materialDeposited,
-					(byte) 0
-					);
+		if (materialDeposited != 0) {
+			queue.offer(
+				player.getName(),
+				sign.getWorld(),
+				sign.getX(),
+				sign.getY() - 1,
+				sign.getZ(),
+				material.getMaterial().getId(),
+				materialDeposited
+				);
+		}
+	}
+	private void recordTrade(final Player player, final boolean selling, final PhysicalShop plugin) {
+		final Rate rate = selling ? getSellRate() : getBuyRate();
+		final TradeStats stats = plugin.getStats();
+		if (stats != null) {
+			stats.record(
+				sign.getBlock().getLocation(),
+				material.getKey(),
+				rate.getMaterial().getKey(),
+				rate.getAmount(),
+				rate.getPrice());
 		}
+		final TradeJournal journal = plugin.getJournal();
+		if (journal == null) return;
+		journal.record(
+			player.getName(),
+			sign.getWorld().getName(),
+			sign.getX(),
+			sign.getY(),
+			sign.getZ(),
+			selling ? JournalFormat.SELL : JournalFormat.BUY,
+			material.getKey(),
+			rate.getAmount(),
+			rate.getPrice(),
+			rate.getMaterial().getKey()
+			);
 	}
 	/**
 	 * performs sell operation for player
@@ -342,7 +512,7 @@ public class Shop {
 	 */
 	protected boolean sell(final Player player, final PhysicalShop plugin) {
 		if (!canSell()) {
-			plugin.getLocale().sendMessage(player, NO_SELL);
+			plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, false), NO_SELL);
 			return false;
 		}
 
@@ -354,12 +524,13 @@ public class Shop {
 		try {
 			InventoryHelpers.exchange(inventory, getSellCurrency().getStack(price), material.getStack(amount));
 		} catch (final InvalidExchangeException e) {
+			undoShopExchange();
 			switch (e.getType()) {
 			case ADD:
-				plugin.getLocale().sendMessage(player, PLAYER_INVENTORY_FULL);
+				plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, false), PLAYER_INVENTORY_FULL);
 				break;
 			case REMOVE:
-				plugin.getLocale().sendMessage(player, NOT_ENOUGH_PLAYER_ITEMS, material.toString(plugin.getMaterialConfig()));
+				plugin.getLocale().sendRepeatableMessage(player, getTradeAttempt(player, false), NOT_ENOUGH_PLAYER_ITEMS, material.toString(plugin.getMaterialConfig()));
 				break;
 			}
 
@@ -378,38 +549,107 @@ public class Shop {
 			);
 
 		queryLogBlock(player, true, plugin);
+		recordTrade(player, true, plugin);
 		return true;
 	}
 	/**
-	 * Messages player p the rates for current Shop.
-	 * @param p the player to message
+	 * Adds a line to a status being built
+	 * @param builder the status being built
+	 * @param line the line to add
+	 */
+	protected static void appendLine(final StringBuilder builder, final String line) {
+		if (builder.length() != 0) {
+			builder.append('\n');
+		}
+		builder.append(line);
+	}
+	/**
+	 * Adds the rates for this shop to the status being built.
+	 * @param builder the status being built
 	 * @param plugin The active PhysicalShop plugin
+	 * @param items amount of shop material in stock
+	 * @param buyCapital amount of buy currency in stock
+	 * @param sellCapital amount of sell currency in stock
+	 * @param materialName display name of the shop material
+	 * @param buyCurrencyName display name of the buy currency, or null if not buying
+	 * @param sellCurrencyName display name of the sell currency, or null if not selling
 	 */
-	public void status(final Player p, final PhysicalShop plugin) {
-		if (canBuy() && (getShopItems() >= buyRate.getAmount())) {
-			plugin.getLocale().sendMessage(
-				p,
+	protected void appendStatus(
+			final StringBuilder builder,
+			final PhysicalShop plugin,
+			final int items,
+			final int buyCapital,
+			final int sellCapital,
+			final String materialName,
+			final String buyCurrencyName,
+			final String sellCurrencyName) {
+		if (canBuy() && (items >= buyRate.getAmount())) {
+			appendLine(builder, plugin.getLocale().formatMessage(
 				BUY_RATE,
 				buyRate.getAmount(),
-				material.toString(plugin.getMaterialConfig()),
+				materialName,
 				buyRate.getPrice(),
-				getBuyCurrency().toString(plugin.getMaterialConfig())
-				);
+				buyCurrencyName
+				));
 		}
 
-		if (canSell() && (getShopSellCapital() >= sellRate.getPrice())) {
-			plugin.getLocale().sendMessage(
-				p,
+		if (canSell() && (sellCapital >= sellRate.getPrice())) {
+			appendLine(builder, plugin.getLocale().formatMessage(
 				SELL_RATE,
 				sellRate.getAmount(),
-				material.toString(plugin.getMaterialConfig()),
+				materialName,
 				sellRate.getPrice(),
-				getSellCurrency().toString(plugin.getMaterialConfig())
-				);
+				sellCurrencyName
+				));
+		}
+	}
+	/**
+	 * Renders the status of this shop with the given stock, resolving the display names once.
+	 * @param plugin The active PhysicalShop plugin
+	 * @param items amount of shop material in stock
+	 * @param buyCapital amount of buy currency in stock
+	 * @param sellCapital amount of sell currency in stock
+	 * @return the status lines, separated by new lines
+	 */
+	String renderStatus(final PhysicalShop plugin, final int items, final int buyCapital, final int sellCapital) {
+		final MaterialConfig materialConfig = plugin.getMaterialConfig();
+		final StringBuilder builder = new StringBuilder();
+		appendStatus(
+			builder,
+			plugin,
+			items,
+			buyCapital,
+			sellCapital,
+			material.toString(materialConfig),
+			canBuy() ? getBuyCurrency().toString(materialConfig) : null,
+			canSell() ? getSellCurrency().toString(materialConfig) : null
+			);
+		return builder.toString();
+	}
+	/**
+	 * Messages player p the status and rates for current Shop, as one message.
+	 * @param p the player to message
+	 * @param plugin The active PhysicalShop plugin
+	 */
+	public void status(final Player p, final PhysicalShop plugin) {
+		final String status = plugin.getStatusCache().getStatus(this, plugin);
+		if (status.length() != 0) {
+			p.sendMessage(status);
 		}
 	}
+	/**
+	 * Re-validates only the owner line, reusing the material and rates already parsed for this shop.
+	 * @param ownerName the text from the fourth line of the sign
+	 * @return this shop if the owner is unchanged, otherwise a copy with the new owner
+	 * @throws InvalidSignOwnerException if the owner line is empty
+	 */
+	public Shop withOwner(final String ownerName) throws InvalidSignOwnerException {
+		if (ownerName == null || ownerName.length() == 0) throw new InvalidSignOwnerException();
+		if (ownerName.equals(this.ownerName)) return this;
+		return new Shop(this, ownerName);
+	}
 	private void triggerRedstone(final PhysicalShop plugin) {
-		if(!plugin.getConfig().getBoolean(TRIGGER_REDSTONE)) return;
+		if(!plugin.getPluginConfig().isTriggerRedstone()) return;
 		final BlockFace face = ShopHelpers.getBack(sign);
 		switch(face) {
 			case NORTH:
@@ -450,4 +690,32 @@ public class Shop {
 		// This is Notch code for toggling something.
 		// This means I wont need to toggle the button back myself!
 	}
+	/**
+	 * Trades with the player right away. This should only be called from the main thread.
+	 * @param player the player trading
+	 * @param selling true if the player is selling to the shop
+	 * @param plugin The active PhysicalShop plugin
+	 */
+	void trade(final Player player, final boolean selling, final PhysicalShop plugin) {
+		final long intent = beginIntent(player, selling, plugin);
+		final boolean traded = selling ? sell(player, plugin) : buy(player, plugin);
+		endIntent(intent, traded, plugin);
+		if(traded) {
+			triggerRedstone(plugin);
+			updateIndex(selling, plugin);
+		}
+	}
+	/**
+	 * Undoes the shop side of a trade whose player side failed, before the failure is reported.
+	 * Nothing is changed on the shop side by default.
+	 */
+	protected void undoShopExchange() {
+	}
+	/**
+	 * Applies a trade to the stock seen by {@link ShopIndex}
+	 */
+	private void updateIndex(final boolean selling, final PhysicalShop plugin) {
+		if (sign == null) return;
+		plugin.getShopIndex().traded(sign.getBlock(), selling);
+	}
 }
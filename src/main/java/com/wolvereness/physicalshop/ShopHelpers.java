@@ -1,6 +1,5 @@
 package com.wolvereness.physicalshop;
 
-import static com.wolvereness.physicalshop.config.ConfigOptions.SERVER_SHOP;
 import static org.bukkit.Material.*;
 import static org.bukkit.block.BlockFace.*;
 
@@ -143,7 +142,7 @@ public class ShopHelpers {
 			if (	state instanceof InventoryHolder
 					&& !plugin.getPluginConfig().isBlacklistedShopType(state.getType())
 					) return new ChestShop(sign, plugin, (InventoryHolder) state);
-			else if (ownerName.equalsIgnoreCase(plugin.getConfig().getString(SERVER_SHOP))) return new Shop(sign, plugin);
+			else if (ownerName.equalsIgnoreCase(plugin.getPluginConfig().getServerShop())) return new Shop(sign, plugin);
 			else return null;
 		} catch (final InvalidSignException e) {
 			return null;
@@ -224,7 +223,7 @@ public class ShopHelpers {
 	 */
 	public static boolean hasAccess(final String player, final Shop shop, final PhysicalShop plugin) {
 		return shop == null || (
-			!plugin.getConfig().getString(SERVER_SHOP).equals(shop.getOwnerName())
+			!plugin.getPluginConfig().getServerShop().equals(shop.getOwnerName())
 			&& shop.isSmartOwner(player, plugin)
 			);
 	}
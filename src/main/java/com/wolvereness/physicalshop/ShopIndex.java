@@ -0,0 +1,798 @@
+package com.wolvereness.physicalshop;
+
+import static org.bukkit.event.EventPriority.MONITOR;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.DoubleChest;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.SignChangeEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+
+import com.google.common.base.Predicate;
+import com.wolvereness.physicalshop.events.ShopCreationEvent;
+import com.wolvereness.physicalshop.events.ShopDestructionEvent;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Index of the shops in loaded chunks, grouped by chunk.<br>
+ * The index is only kept while something uses it, see {@link #setEnabled(boolean)}.
+ * Chunks are scanned for shop signs as they load, and shops are added and removed as they are created and destroyed.
+ * Chunks already loaded are scanned a few each tick, see {@link #rescan()}.
+ * Stock is only counted while there are {@link ChangeListener}s, as it means reading every chest.
+ * It is then kept up to date from trades, and counted again when a shop chest is closed.
+ * The index is only changed from the main thread, each chunk being replaced as a whole,
+ * so it may be read from any thread without locking.
+ * This is the way for other plugins and async tasks to look up shops, as {@link Shop} wraps live blocks.<br>
+ * Changes are delivered to {@link ChangeListener}s in a batch at the end of each tick.
+ * A shop leaving a loaded chunk is removed from the index like a destroyed shop.
+ */
+public class ShopIndex implements Listener {
+	/**
+	 * @author Wolfe
+	 * A change to the index, with the shop as it was and as it is
+	 */
+	public static class Change {
+		private final boolean chunk;
+		private final Entry current;
+		private final Entry previous;
+		Change(final Entry previous, final Entry current, final boolean chunk) {
+			this.previous = previous;
+			this.current = current;
+			this.chunk = chunk;
+		}
+		/**
+		 * @return the shop as it is now, or null if it was removed
+		 */
+		public Entry getCurrent() {
+			return current;
+		}
+		/**
+		 * @return the shop as it was, or null if it was added
+		 */
+		public Entry getPrevious() {
+			return previous;
+		}
+		/**
+		 * @return true if the shop was not indexed before
+		 */
+		public boolean isAdded() {
+			return previous == null;
+		}
+		/**
+		 * @return true if the chunk of the shop loaded, unloaded or was scanned again, rather than the shop itself changing
+		 */
+		public boolean isChunk() {
+			return chunk;
+		}
+		/**
+		 * @return true if the shop is no longer indexed
+		 */
+		public boolean isRemoved() {
+			return current == null;
+		}
+	}
+	/**
+	 * @author Wolfe
+	 * Implemented by anything that follows changes to the index
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called from the main thread at the end of a tick with the changes during it, in order.
+		 * Anything slow should be handed to another thread.
+		 * @param changes the changes, which should not be kept after returning
+		 */
+		public void shopsChanged(List<Change> changes);
+	}
+	/**
+	 * @author Wolfe
+	 * An immutable view of an indexed shop
+	 */
+	public static class Entry {
+		private static int add(final int stock, final int amount) {
+			return stock == Integer.MAX_VALUE ? stock : stock + amount;
+		}
+		private static boolean same(final Rate a, final Rate b) {
+			if (a == null || b == null) return a == b;
+			return a.getAmount() == b.getAmount() && a.getPrice() == b.getPrice() && a.getMaterial().equals(b.getMaterial());
+		}
+		private final int buyCapital;
+		private final Rate buyRate;
+		private final int items;
+		private final ShopMaterial material;
+		private final String owner;
+		private final int sellCapital;
+		private final Rate sellRate;
+		private final String world;
+		private final int x;
+		private final int y;
+		private final int z;
+		Entry(final Block sign, final Shop shop, final boolean stock) {
+			this(sign, shop, stock, stock ? shop.getShopInventory() : null);
+		}
+		/**
+		 * @param inventory the inventory stock is kept in, or null if the shop has unlimited stock
+		 */
+		private Entry(final Block sign, final Shop shop, final boolean stock, final Inventory inventory) {
+			world = sign.getWorld().getName();
+			x = sign.getX();
+			y = sign.getY();
+			z = sign.getZ();
+			owner = shop.getOwnerName();
+			material = shop.getMaterial();
+			buyRate = shop.getBuyRate();
+			sellRate = shop.getSellRate();
+			if (!stock) {
+				items = buyCapital = sellCapital = -1;
+			} else if (inventory == null) {
+				items = Integer.MAX_VALUE;
+				buyCapital = shop.canBuy() ? Integer.MAX_VALUE : 0;
+				sellCapital = shop.canSell() ? Integer.MAX_VALUE : 0;
+			} else {
+				final int[] counts = InventoryHelpers.getCounts(inventory, material, shop.getBuyCurrency(), shop.getSellCurrency());
+				items = counts[0];
+				buyCapital = counts[1];
+				sellCapital = counts[2];
+			}
+		}
+		/**
+		 * Copies an entry, with the stock counted again
+		 */
+		private Entry(final Entry entry, final Inventory inventory) {
+			world = entry.world;
+			x = entry.x;
+			y = entry.y;
+			z = entry.z;
+			owner = entry.owner;
+			material = entry.material;
+			buyRate = entry.buyRate;
+			sellRate = entry.sellRate;
+			final int[] counts = InventoryHelpers.getCounts(
+				inventory,
+				material,
+				buyRate == null ? null : buyRate.getMaterial(),
+				sellRate == null ? null : sellRate.getMaterial());
+			items = counts[0];
+			buyCapital = counts[1];
+			sellCapital = counts[2];
+		}
+		/**
+		 * Copies an entry, with the stock changed by a trade
+		 */
+		private Entry(final Entry entry, final Rate rate, final boolean selling) {
+			world = entry.world;
+			x = entry.x;
+			y = entry.y;
+			z = entry.z;
+			owner = entry.owner;
+			material = entry.material;
+			buyRate = entry.buyRate;
+			sellRate = entry.sellRate;
+			final int amount = selling ? rate.getAmount() : -rate.getAmount();
+			final int price = selling ? -rate.getPrice() : rate.getPrice();
+			items = add(entry.items, delta(material, amount, rate.getMaterial(), price));
+			buyCapital = buyRate == null ? entry.buyCapital : add(entry.buyCapital, delta(buyRate.getMaterial(), amount, rate.getMaterial(), price));
+			sellCapital = sellRate == null ? entry.sellCapital : add(entry.sellCapital, delta(sellRate.getMaterial(), amount, rate.getMaterial(), price));
+		}
+		/**
+		 * @return how much of the stored material changes, when the shop material changes by amount and the currency by price
+		 */
+		private int delta(final ShopMaterial stored, final int amount, final ShopMaterial currency, final int price) {
+			return (stored.equals(material) ? amount : 0) + (stored.equals(currency) ? price : 0);
+		}
+		/**
+		 * @return the amount of the buying currency stored, as of when the shop was indexed,
+		 * {@link Integer#MAX_VALUE} for a server shop, or -1 if stock was not counted
+		 */
+		public int getBuyCapital() {
+			return buyCapital;
+		}
+		/**
+		 * @return the rate for buying from the shop, or null if the shop does not sell
+		 */
+		public Rate getBuyRate() {
+			return buyRate;
+		}
+		/**
+		 * @return the amount of the material stored, as of when the shop was indexed,
+		 * {@link Integer#MAX_VALUE} for a server shop, or -1 if stock was not counted
+		 */
+		public int getItems() {
+			return items;
+		}
+		/**
+		 * @return the material traded
+		 */
+		public ShopMaterial getMaterial() {
+			return material;
+		}
+		/**
+		 * @return the name on the sign of the owner
+		 */
+		public String getOwner() {
+			return owner;
+		}
+		/**
+		 * @return the amount of the selling currency stored, as of when the shop was indexed,
+		 * {@link Integer#MAX_VALUE} for a server shop, or -1 if stock was not counted
+		 */
+		public int getSellCapital() {
+			return sellCapital;
+		}
+		/**
+		 * @return the rate for selling to the shop, or null if the shop does not buy
+		 */
+		public Rate getSellRate() {
+			return sellRate;
+		}
+		/**
+		 * @return name of the world the shop is in
+		 */
+		public String getWorld() {
+			return world;
+		}
+		/**
+		 * @return x coordinate of the shop sign
+		 */
+		public int getX() {
+			return x;
+		}
+		/**
+		 * @return y coordinate of the shop sign
+		 */
+		public int getY() {
+			return y;
+		}
+		/**
+		 * @return z coordinate of the shop sign
+		 */
+		public int getZ() {
+			return z;
+		}
+		/**
+		 * @param other another entry
+		 * @return true if both have the same owner, material and rates, regardless of stock
+		 */
+		public boolean hasSameTerms(final Entry other) {
+			return	owner.equals(other.owner)
+					&& material.equals(other.material)
+					&& same(buyRate, other.buyRate)
+					&& same(sellRate, other.sellRate);
+		}
+		private boolean isAt(final int x, final int y, final int z) {
+			return this.x == x && this.y == y && this.z == z;
+		}
+		private boolean same(final Entry other) {
+			return	items == other.items
+					&& buyCapital == other.buyCapital
+					&& sellCapital == other.sellCapital
+					&& hasSameTerms(other);
+		}
+	}
+	private static final Entry[] EMPTY = new Entry[0];
+	/**
+	 * Chunks scanned each tick by a rescan
+	 */
+	private static final int SCAN_CHUNKS = 16;
+	private static long key(final int chunkX, final int chunkZ) {
+		return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+	}
+	private List<Change> changes = new ArrayList<Change>();
+	private volatile boolean enabled;
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			flush();
+		}};
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	private final PhysicalShop plugin;
+	private final Runnable scan = new Runnable() {
+		public void run() {
+			scan();
+		}};
+	private Iterator<Chunk> scanQueue;
+	private int scanTask = -1;
+	private final ConcurrentMap<String, ConcurrentMap<Long, Entry[]>> worlds = new ConcurrentHashMap<String, ConcurrentMap<Long, Entry[]>>();
+	/**
+	 * @param plugin The active PhysicalShop plugin
+	 */
+	public ShopIndex(final PhysicalShop plugin) {
+		this.plugin = plugin;
+	}
+	/**
+	 * Adds or replaces the shop at the sign. This should only be called from the main thread.
+	 * The shop may be parsed from the sign text alone, in which case the chest below is only read to count stock.
+	 * @param sign the sign block of the shop
+	 * @param shop the shop
+	 */
+	public void add(final Block sign, final Shop shop) {
+		if (!enabled) return;
+		final boolean stock = !listeners.isEmpty();
+		put(new Entry(sign, shop, stock, stock ? getInventory(sign, shop) : null));
+	}
+	/**
+	 * Starts delivering changes to the listener
+	 * @param listener the listener to add
+	 */
+	public void addChangeListener(final ChangeListener listener) {
+		listeners.add(listener);
+	}
+	private void changed(final Entry previous, final Entry current, final boolean chunk) {
+		if (listeners.isEmpty()) return;
+		if (changes.isEmpty() && plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, flush) == -1) return; // Not scheduled, likely disabling
+		changes.add(new Change(previous, current, chunk));
+	}
+	/**
+	 * Reports the differences between the old and new shops of a chunk
+	 */
+	private void changed(final Entry[] previous, final Entry[] current) {
+		if (listeners.isEmpty()) return;
+		outer: for (final Entry entry : current) {
+			for (final Entry old : previous) {
+				if (old.isAt(entry.x, entry.y, entry.z)) {
+					if (!old.same(entry)) {
+						changed(old, entry, true);
+					}
+					continue outer;
+				}
+			}
+			changed(null, entry, true);
+		}
+		outer: for (final Entry old : previous) {
+			for (final Entry entry : current) {
+				if (entry.isAt(old.x, old.y, old.z)) {
+					continue outer;
+				}
+			}
+			changed(old, null, true);
+		}
+	}
+	/**
+	 * Gets the indexed shops that match
+	 * @param filter the shops to include
+	 * @return a new list of the shops
+	 */
+	public List<Entry> find(final Predicate<? super Entry> filter) {
+		final List<Entry> found = new ArrayList<Entry>();
+		for (final Entry entry : getEntries()) {
+			if (filter.apply(entry)) {
+				found.add(entry);
+			}
+		}
+		return found;
+	}
+	private void flush() {
+		final List<Change> changes = this.changes;
+		this.changes = new ArrayList<Change>();
+		final List<Change> batch = Collections.unmodifiableList(changes);
+		for (final ChangeListener listener : listeners) {
+			try {
+				listener.shopsChanged(batch);
+			} catch (final Throwable t) {
+				plugin.getLogger().log(Level.SEVERE, "Shop change listener " + listener + " failed", t);
+			}
+		}
+	}
+	/**
+	 * Gets the shops indexed for a chunk
+	 * @param world name of the world
+	 * @param chunkX x coordinate of the chunk
+	 * @param chunkZ z coordinate of the chunk
+	 * @return the shops in the chunk, which should not be changed
+	 */
+	public Entry[] getChunk(final String world, final int chunkX, final int chunkZ) {
+		final ConcurrentMap<Long, Entry[]> chunks = worlds.get(world);
+		if (chunks == null) return EMPTY;
+		final Entry[] entries = chunks.get(key(chunkX, chunkZ));
+		return entries == null ? EMPTY : entries;
+	}
+	/**
+	 * @return the inventory stock of the shop is kept in, or null if it has unlimited stock
+	 */
+	private Inventory getInventory(final Block sign, final Shop shop) {
+		if (shop.getSign() != null) return shop.getShopInventory();
+		// Parsed from text, so the chest is found the way ShopHelpers.getShop would
+		final BlockState chest = sign.getRelative(BlockFace.DOWN).getState();
+		if (	chest instanceof InventoryHolder
+				&& !plugin.getPluginConfig().isBlacklistedShopType(chest.getType())
+				) return ((InventoryHolder) chest).getInventory();
+		return null;
+	}
+	private ConcurrentMap<Long, Entry[]> getChunks(final String world) {
+		ConcurrentMap<Long, Entry[]> chunks = worlds.get(world);
+		if (chunks == null) {
+			worlds.put(world, chunks = new ConcurrentHashMap<Long, Entry[]>());
+		}
+		return chunks;
+	}
+	/**
+	 * Gets every indexed shop. The shops are read as the iterator advances,
+	 * so changes made meanwhile may or may not be seen, but each chunk is seen as a whole.
+	 * @return the indexed shops
+	 */
+	public Iterable<Entry> getEntries() {
+		return new Iterable<Entry>() {
+			public Iterator<Entry> iterator() {
+				return new Iterator<Entry>() {
+					private Iterator<Entry[]> chunks = Collections.<Entry[]>emptyList().iterator();
+					private Entry[] entries = EMPTY;
+					private int index;
+					private final Iterator<ConcurrentMap<Long, Entry[]>> worlds = ShopIndex.this.worlds.values().iterator();
+					public boolean hasNext() {
+						while (index >= entries.length) {
+							while (!chunks.hasNext()) {
+								if (!worlds.hasNext()) return false;
+								chunks = worlds.next().values().iterator();
+							}
+							entries = chunks.next();
+							index = 0;
+						}
+						return true;
+					}
+					public Entry next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						return entries[index++];
+					}
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	/**
+	 * Gets the shop with its sign at a location
+	 * @param world name of the world
+	 * @param x x coordinate of the sign
+	 * @param y y coordinate of the sign
+	 * @param z z coordinate of the sign
+	 * @return the shop, or null if there is none indexed
+	 */
+	public Entry getEntry(final String world, final int x, final int y, final int z) {
+		for (final Entry entry : getChunk(world, x >> 4, z >> 4)) {
+			if (entry.isAt(x, y, z)) return entry;
+		}
+		return null;
+	}
+	/**
+	 * Gets the indexed shops with an owner
+	 * @param owner the name on the sign of the owner
+	 * @return a new list of the shops
+	 */
+	public List<Entry> getOwnedBy(final String owner) {
+		return find(new Predicate<Entry>() {
+			public boolean apply(final Entry entry) {
+				return entry.owner.equals(owner);
+			}});
+	}
+	/**
+	 * Gets the indexed shops trading a material
+	 * @param material the material traded
+	 * @return a new list of the shops
+	 */
+	public List<Entry> getTrading(final ShopMaterial material) {
+		return find(new Predicate<Entry>() {
+			public boolean apply(final Entry entry) {
+				return entry.material.equals(material);
+			}});
+	}
+	/**
+	 * @return true if the index is kept
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+	/**
+	 * Scans a chunk for shops, replacing anything indexed for it. This should only be called from the main thread.
+	 * @param chunk the chunk to scan
+	 */
+	public void load(final Chunk chunk) {
+		if (!enabled) return;
+		final boolean stock = !listeners.isEmpty();
+		Entry[] entries = EMPTY;
+		for (final BlockState state : chunk.getTileEntities()) {
+			if (!(state instanceof Sign)) {
+				continue;
+			}
+			final Block block = state.getBlock();
+			final Shop shop = ShopHelpers.getShop(block, plugin);
+			if (shop == null) {
+				continue;
+			}
+			final Entry[] copy = new Entry[entries.length + 1];
+			System.arraycopy(entries, 0, copy, 0, entries.length);
+			copy[entries.length] = new Entry(block, shop, stock);
+			entries = copy;
+		}
+		final ConcurrentMap<Long, Entry[]> chunks = getChunks(chunk.getWorld().getName());
+		final Entry[] previous = entries.length == 0
+			? chunks.remove(key(chunk.getX(), chunk.getZ()))
+			: chunks.put(key(chunk.getX(), chunk.getZ()), entries);
+		changed(previous == null ? EMPTY : previous, entries);
+	}
+	/**
+	 * Chunk Load event
+	 * @param e Event
+	 */
+	@EventHandler(priority = MONITOR)
+	public void onChunkLoad(final ChunkLoadEvent e) {
+		if (!enabled) return;
+		load(e.getChunk());
+	}
+	/**
+	 * Chunk Unload event
+	 * @param e Event
+	 */
+	@EventHandler(priority = MONITOR, ignoreCancelled = true)
+	public void onChunkUnload(final ChunkUnloadEvent e) {
+		if (!enabled) return;
+		removeChunk(e.getWorld().getName(), key(e.getChunk().getX(), e.getChunk().getZ()));
+	}
+	/**
+	 * Inventory Close event. Stock only changes with trades as far as the index knows,
+	 * so the chest of a shop is counted again once closed, as it may have been restocked or emptied by hand.
+	 * @param e Event
+	 */
+	@EventHandler(priority = MONITOR)
+	public void onInventoryClose(final InventoryCloseEvent e) {
+		if (!enabled || listeners.isEmpty()) return;
+		final Inventory inventory = e.getInventory();
+		final InventoryHolder holder = inventory.getHolder();
+		if (holder instanceof BlockState) {
+			recount(((BlockState) holder).getBlock(), inventory);
+		} else if (holder instanceof DoubleChest) {
+			// A shop may be over either half, and uses the whole inventory
+			final DoubleChest chest = (DoubleChest) holder;
+			if (chest.getLeftSide() instanceof BlockState) {
+				recount(((BlockState) chest.getLeftSide()).getBlock(), inventory);
+			}
+			if (chest.getRightSide() instanceof BlockState) {
+				recount(((BlockState) chest.getRightSide()).getBlock(), inventory);
+			}
+		}
+	}
+	/**
+	 * Shop Creation event
+	 * @param e Event
+	 */
+	@EventHandler(priority = MONITOR, ignoreCancelled = true)
+	public void onShopCreation(final ShopCreationEvent e) {
+		if (!enabled) return;
+		final Block block;
+		if (e.getShop().getSign() != null) {
+			block = e.getShop().getSign().getBlock();
+		} else if (e.getCause() instanceof SignChangeEvent) {
+			block = ((SignChangeEvent) e.getCause()).getBlock();
+		} else return;
+		final Shop shop = e.getShop();
+		final Cancellable cause = e.getCause();
+		// Added next tick, as a later listener of the cause may still cancel it
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				if (!cause.isCancelled()) {
+					add(block, shop);
+				}
+			}});
+	}
+	/**
+	 * Shop Destruction event
+	 * @param e Event
+	 */
+	@EventHandler(priority = MONITOR, ignoreCancelled = true)
+	public void onShopDestruction(final ShopDestructionEvent e) {
+		if (!enabled) return;
+		for (final Shop shop : e.getShops()) {
+			if (shop.getSign() != null) {
+				remove(shop.getSign().getBlock());
+			}
+		}
+	}
+	/**
+	 * World Unload event
+	 * @param e Event
+	 */
+	@EventHandler(priority = MONITOR, ignoreCancelled = true)
+	public void onWorldUnload(final WorldUnloadEvent e) {
+		if (!enabled) return;
+		removeWorld(e.getWorld().getName());
+	}
+	/**
+	 * Adds or replaces the entry at its sign
+	 */
+	private void put(final Entry entry) {
+		final ConcurrentMap<Long, Entry[]> chunks = getChunks(entry.world);
+		final Long key = key(entry.x >> 4, entry.z >> 4);
+		final Entry[] entries = chunks.get(key);
+		if (entries == null) {
+			chunks.put(key, new Entry[] { entry });
+			changed(null, entry, false);
+			return;
+		}
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].isAt(entry.x, entry.y, entry.z)) {
+				if (entries[i].same(entry)) return;
+				final Entry[] copy = entries.clone();
+				copy[i] = entry;
+				chunks.put(key, copy);
+				changed(entries[i], entry, false);
+				return;
+			}
+		}
+		final Entry[] copy = new Entry[entries.length + 1];
+		System.arraycopy(entries, 0, copy, 0, entries.length);
+		copy[entries.length] = entry;
+		chunks.put(key, copy);
+		changed(null, entry, false);
+	}
+	/**
+	 * Counts the stock of the shop over a chest again, if one is indexed, without parsing its sign
+	 */
+	private void recount(final Block chest, final Inventory inventory) {
+		final Entry entry = getEntry(chest.getWorld().getName(), chest.getX(), chest.getY() + 1, chest.getZ());
+		// Server shops have no chest, and shops indexed before stock was counted wait for the next scan
+		if (entry == null || entry.items == -1 || entry.items == Integer.MAX_VALUE) return;
+		put(new Entry(entry, inventory));
+	}
+	/**
+	 * Removes the shop at the sign, if any. This should only be called from the main thread.
+	 * @param sign the sign block of the shop
+	 */
+	public void remove(final Block sign) {
+		final ConcurrentMap<Long, Entry[]> chunks = worlds.get(sign.getWorld().getName());
+		if (chunks == null) return;
+		final Long key = key(sign.getX() >> 4, sign.getZ() >> 4);
+		final Entry[] entries = chunks.get(key);
+		if (entries == null) return;
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].isAt(sign.getX(), sign.getY(), sign.getZ())) {
+				if (entries.length == 1) {
+					chunks.remove(key);
+				} else {
+					final Entry[] copy = new Entry[entries.length - 1];
+					System.arraycopy(entries, 0, copy, 0, i);
+					System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+					chunks.put(key, copy);
+				}
+				changed(entries[i], null, false);
+				return;
+			}
+		}
+	}
+	/**
+	 * Scans every loaded chunk again over the next ticks, {@value #SCAN_CHUNKS} chunks each tick,
+	 * used when the index is enabled or the configuration changes how signs are read.
+	 * Chunks that unload meanwhile are skipped, and chunks that load meanwhile are scanned as they load.
+	 * This should only be called from the main thread.
+	 */
+	public void rescan() {
+		if (!enabled) return;
+		final List<Chunk> loaded = new ArrayList<Chunk>();
+		final Set<String> staleWorlds = new HashSet<String>(worlds.keySet());
+		for (final World world : plugin.getServer().getWorlds()) {
+			staleWorlds.remove(world.getName());
+			final Set<Long> stale = new HashSet<Long>(getChunks(world.getName()).keySet());
+			for (final Chunk chunk : world.getLoadedChunks()) {
+				stale.remove(key(chunk.getX(), chunk.getZ()));
+				loaded.add(chunk);
+			}
+			for (final Long key : stale) {
+				removeChunk(world.getName(), key);
+			}
+		}
+		for (final String world : staleWorlds) {
+			removeWorld(world);
+		}
+		scanQueue = loaded.iterator();
+		if (scanTask == -1) {
+			scanTask = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, scan, 1, 1);
+		}
+	}
+	private void scan() {
+		final Iterator<Chunk> queue = scanQueue;
+		for (int i = 0; i < SCAN_CHUNKS && queue.hasNext(); i++) {
+			final Chunk chunk = queue.next();
+			if (chunk.getWorld().isChunkLoaded(chunk.getX(), chunk.getZ())) {
+				load(chunk);
+			}
+		}
+		if (!queue.hasNext()) {
+			stopScan();
+		}
+	}
+	/**
+	 * Applies a trade to the stock of the indexed shop, without reading the chest again. This should only be called from the main thread.
+	 * A trade does not change the terms of a shop, so nothing is done unless stock is counted.
+	 * @param sign the sign block of the shop
+	 * @param selling true if the player sold to the shop
+	 */
+	public void traded(final Block sign, final boolean selling) {
+		if (!enabled || listeners.isEmpty()) return;
+		final ConcurrentMap<Long, Entry[]> chunks = worlds.get(sign.getWorld().getName());
+		if (chunks == null) return;
+		final Long key = key(sign.getX() >> 4, sign.getZ() >> 4);
+		final Entry[] entries = chunks.get(key);
+		if (entries == null) return;
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i].isAt(sign.getX(), sign.getY(), sign.getZ())) {
+				final Entry entry = entries[i];
+				final Rate rate = selling ? entry.sellRate : entry.buyRate;
+				// Not counted when indexed, which is only until the next scan
+				if (rate == null || entry.items == -1) return;
+				final Entry[] copy = entries.clone();
+				copy[i] = new Entry(entry, rate, selling);
+				chunks.put(key, copy);
+				changed(entry, copy[i], false);
+				return;
+			}
+		}
+	}
+	/**
+	 * Stops delivering changes to the listener
+	 * @param listener the listener to remove
+	 */
+	public void removeChangeListener(final ChangeListener listener) {
+		listeners.remove(listener);
+	}
+	private void removeChunk(final String world, final Long key) {
+		final ConcurrentMap<Long, Entry[]> chunks = worlds.get(world);
+		if (chunks == null) return;
+		final Entry[] entries = chunks.remove(key);
+		if (entries != null) {
+			changed(entries, EMPTY);
+		}
+	}
+	/**
+	 * Starts or stops keeping the index. Stopping forgets every shop, and starting scans every loaded chunk over the next ticks.
+	 * This should only be called from the main thread.
+	 * @param enabled true to keep the index
+	 */
+	public void setEnabled(final boolean enabled) {
+		if (this.enabled == enabled) return;
+		this.enabled = enabled;
+		if (enabled) {
+			rescan();
+			return;
+		}
+		stopScan();
+		for (final String world : new ArrayList<String>(worlds.keySet())) {
+			removeWorld(world);
+		}
+	}
+	private void stopScan() {
+		scanQueue = null;
+		if (scanTask != -1) {
+			plugin.getServer().getScheduler().cancelTask(scanTask);
+			scanTask = -1;
+		}
+	}
+	private void removeWorld(final String world) {
+		final ConcurrentMap<Long, Entry[]> chunks = worlds.remove(world);
+		if (chunks == null) return;
+		for (final Entry[] entries : chunks.values()) {
+			changed(entries, EMPTY);
+		}
+	}
+}
@@ -113,6 +113,12 @@ public class ShopMaterial {
 	public short getDurability() {
 		return durability;
 	}
+	/**
+	 * @return the type id and durability of this material packed into one int, ignoring enchantments
+	 */
+	public int getKey() {
+		return material.getId() << 16 | durability & 0xFFFF;
+	}
 	/**
 	 * @return the bukkit material for this material
 	 */
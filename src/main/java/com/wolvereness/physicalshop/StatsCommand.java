@@ -0,0 +1,214 @@
+package com.wolvereness.physicalshop;
+
+import static java.util.logging.Level.SEVERE;
+import static org.bukkit.permissions.PermissionDefault.OP;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import com.wolvereness.physicalshop.journal.TradeAggregate;
+import com.wolvereness.physicalshop.journal.TradeHistory.AggregateVisitor;
+import com.wolvereness.physicalshop.journal.TradeHistory.Visitor;
+import com.wolvereness.physicalshop.journal.TradeJournal;
+import com.wolvereness.physicalshop.journal.TradeRecord;
+import com.wolvereness.physicalshop.stats.Totals;
+import com.wolvereness.physicalshop.stats.TradeStats;
+import com.wolvereness.physicalshop.stats.TradeStats.Resolution;
+import com.wolvereness.util.CommandHandler;
+import com.wolvereness.util.PermissionHandler;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Shows rolling trade totals:<br>
+ * {@code stats [minute|hour|day] [count]}, for the most traded materials<br>
+ * {@code stats shop [minute|hour|day] [count]}, for the shop being looked at, per currency<br>
+ * {@code stats journal [days]}, for the most traded materials in the trade journal, including compacted aggregates<br>
+ * Count is the amount of latest buckets to add up, defaulting to all that are kept.
+ */
+public class StatsCommand implements CommandHandler {
+	private static final long DAY = 86400000L;
+	private static final int JOURNAL_DAYS = 30;
+	private static final int LINES = 8;
+	private static final String USAGE = "Usage: stats [shop] [minute|hour|day] [count] | stats journal [days]";
+	private final String PERMISSION;
+	private final PhysicalShop plugin;
+	/**
+	 * @param plugin The active PhysicalShop plugin
+	 * @param permissionHandler Permission Handler to use
+	 */
+	public StatsCommand(final PhysicalShop plugin, final PermissionHandler permissionHandler) {
+		this.plugin = plugin;
+		PERMISSION = permissionHandler.getPermission("stats", OP);
+	}
+	private static void add(final Map<Long, long[]> totals, final int material, final int currency, final long trades, final long amount, final long price) {
+		final Long key = TradeStats.key(material, currency);
+		long[] total = totals.get(key);
+		if (total == null) {
+			totals.put(key, total = new long[3]);
+		}
+		total[0] += trades;
+		total[1] += amount;
+		total[2] += price;
+	}
+	private static String describe(final Totals totals) {
+		return totals.getVolume() + " traded in " + totals.getTrades() + " trades for " + totals.getRevenue();
+	}
+	private boolean journal(final CommandSender sender, final String[] args) {
+		final TradeJournal journal = plugin.getJournal();
+		if (journal == null) {
+			sender.sendMessage("The trade journal is not enabled.");
+			return true;
+		}
+		int days = JOURNAL_DAYS;
+		if (args.length > 2) {
+			try {
+				days = Math.max(1, Integer.parseInt(args[2]));
+			} catch (final NumberFormatException e) {
+				sender.sendMessage(USAGE);
+				return true;
+			}
+		}
+		final String period = "last " + days + " day" + (days == 1 ? "" : "s");
+		final long from = System.currentTimeMillis() - days * DAY;
+		plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				final Map<Long, long[]> totals = new HashMap<Long, long[]>();
+				String error = null;
+				try {
+					journal.getHistory().visitAggregates(new AggregateVisitor() {
+						public void visit(final TradeAggregate aggregate) {
+							if (aggregate.getHour() >= from) {
+								add(totals, aggregate.getMaterial(), aggregate.getCurrency(), aggregate.getTrades(), aggregate.getAmount(), aggregate.getPrice());
+							}
+						}});
+					journal.getHistory().visitAll(new Visitor() {
+						public void visit(final TradeRecord trade) {
+							if (trade.getTimestamp() >= from) {
+								add(totals, trade.getMaterial(), trade.getCurrency(), 1, trade.getAmount(), trade.getPrice());
+							}
+						}});
+				} catch (final IOException e) {
+					plugin.getLogger().log(SEVERE, sender.getName() + " failed to read the trade journal", e);
+					error = e.getMessage();
+				}
+				final Map<Long, Totals> materials = new HashMap<Long, Totals>(totals.size() * 2);
+				for (final Map.Entry<Long, long[]> entry : totals.entrySet()) {
+					materials.put(entry.getKey(), new Totals(entry.getValue()));
+				}
+				final String failure = error;
+				plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						if (failure != null) {
+							sender.sendMessage("Failed to read the trade journal: " + failure);
+						} else {
+							sendMaterials(sender, period, materials);
+						}
+					}});
+			}});
+		return true;
+	}
+	private String materialName(final int key) {
+		final Material material = Material.getMaterial(key >>> 16);
+		if (material == null) return "#" + (key >>> 16) + ":" + (key & 0xFFFF);
+		return new ShopMaterial(material, (short) key, null).toString(plugin.getMaterialConfig());
+	}
+	public boolean onCommand(final CommandSender sender, final String[] args, final PermissionHandler permissionHandler) {
+		if (sender instanceof Player && !permissionHandler.checkPerm((Player) sender, PERMISSION)) {
+			sender.sendMessage("You don't have permission to do that.");
+			return true;
+		}
+		if (args.length > 1 && args[1].equalsIgnoreCase("journal")) return journal(sender, args);
+		final TradeStats stats = plugin.getStats();
+		if (stats == null) {
+			sender.sendMessage("Trade statistics are not enabled.");
+			return true;
+		}
+		int argument = 1;
+		final boolean shop = args.length > argument && args[argument].equalsIgnoreCase("shop");
+		if (shop) {
+			argument++;
+		}
+		Resolution resolution = Resolution.HOUR;
+		if (args.length > argument) {
+			try {
+				resolution = Resolution.valueOf(args[argument].toUpperCase());
+			} catch (final IllegalArgumentException e) {
+				sender.sendMessage(USAGE);
+				return true;
+			}
+			argument++;
+		}
+		int buckets = resolution.getBuckets();
+		if (args.length > argument) {
+			try {
+				buckets = Math.max(1, Math.min(buckets, Integer.parseInt(args[argument])));
+			} catch (final NumberFormatException e) {
+				sender.sendMessage(USAGE);
+				return true;
+			}
+		}
+		final String period = "last " + buckets + " " + resolution.name().toLowerCase() + (buckets == 1 ? "" : "s");
+		if (shop) {
+			if (!(sender instanceof Player)) {
+				sender.sendMessage(USAGE);
+				return true;
+			}
+			final Block block = ((Player) sender).getTargetBlock(null, 8);
+			if (ShopHelpers.getShop(block, plugin) == null) {
+				sender.sendMessage("You are not looking at a shop.");
+				return true;
+			}
+			final Map<Integer, Totals> currencies = stats.getShopTotals(block.getLocation(), resolution, buckets);
+			sender.sendMessage("Shop, " + period + ":");
+			int lines = 0;
+			for (final Map.Entry<Integer, Totals> entry : currencies.entrySet()) {
+				if (entry.getValue().getTrades() == 0) {
+					continue;
+				}
+				lines++;
+				sender.sendMessage(describe(entry.getValue()) + " " + materialName(entry.getKey()));
+			}
+			if (lines == 0) {
+				sender.sendMessage("No trades.");
+			}
+			return true;
+		}
+		sendMaterials(sender, period, stats.getMaterialTotals(resolution, buckets));
+		return true;
+	}
+	private void sendMaterials(final CommandSender sender, final String period, final Map<Long, Totals> totals) {
+		final List<Map.Entry<Long, Totals>> materials = new ArrayList<Map.Entry<Long, Totals>>(totals.entrySet());
+		Collections.sort(materials, new Comparator<Map.Entry<Long, Totals>>() {
+			public int compare(final Map.Entry<Long, Totals> o1, final Map.Entry<Long, Totals> o2) {
+				final long volume1 = o1.getValue().getVolume();
+				final long volume2 = o2.getValue().getVolume();
+				return volume1 > volume2 ? -1 : volume1 < volume2 ? 1 : 0;
+			}});
+		sender.sendMessage("Most traded materials, " + period + ":");
+		int lines = 0;
+		for (final Map.Entry<Long, Totals> entry : materials) {
+			if (lines >= LINES || entry.getValue().getTrades() == 0) {
+				break;
+			}
+			lines++;
+			sender.sendMessage(
+				materialName(TradeStats.getMaterial(entry.getKey())) + ": "
+				+ describe(entry.getValue()) + " "
+				+ materialName(TradeStats.getCurrency(entry.getKey())));
+		}
+		if (lines == 0) {
+			sender.sendMessage("No trades.");
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.wolvereness.physicalshop;
+
+import static com.wolvereness.physicalshop.config.Localized.Message.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bukkit.Location;
+
+import com.wolvereness.physicalshop.config.Localized;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Holds the last rendered status for recently clicked shops, so repeated
+ * status checks only need to count the stock. An entry is reused as long as
+ * the sign text and the stock are the same.
+ * This should only be used from the main thread.
+ */
+public class StatusCache {
+	private static class Entry {
+		private final int buyCapital;
+		private final int items;
+		private final String[] lines;
+		private final int sellCapital;
+		private final String status;
+		Entry(final String[] lines, final int items, final int buyCapital, final int sellCapital, final String status) {
+			this.lines = lines;
+			this.items = items;
+			this.buyCapital = buyCapital;
+			this.sellCapital = sellCapital;
+			this.status = status;
+		}
+		boolean matches(final String[] lines, final int items, final int buyCapital, final int sellCapital) {
+			return	this.items == items
+					&& this.buyCapital == buyCapital
+					&& this.sellCapital == sellCapital
+					&& Arrays.equals(this.lines, lines);
+		}
+	}
+	/**
+	 * The amount of shops to remember
+	 */
+	private static final int CAPACITY = 256;
+	@SuppressWarnings("serial")
+	private final Map<Location, Entry> entries = new LinkedHashMap<Location, Entry>(CAPACITY, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Location, Entry> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+	/**
+	 * Forgets all rendered statuses, used when the configuration or locale changes
+	 */
+	public void clear() {
+		entries.clear();
+	}
+	/**
+	 * Gets the status for the shop, rendering it if the stock or sign changed since last time
+	 * @param shop The shop to get the status of
+	 * @param plugin The active PhysicalShop plugin
+	 * @return the status lines, or an empty string if there is nothing to show
+	 */
+	public String getStatus(final Shop shop, final PhysicalShop plugin) {
+		// Only count what the output mode shows, the short status leaves out the buying currency
+		final boolean detailed = plugin.getPluginConfig().isDetailedOutput();
+		final int items = shop.canBuy() || detailed ? shop.getShopItems() : 0;
+		final int buyCapital = shop.canBuy() && detailed ? shop.getShopBuyCapital() : 0;
+		final int sellCapital;
+		if (!shop.canSell()) {
+			sellCapital = 0;
+		} else if (shop.canBuy() && detailed && shop.getSellCurrency().equals(shop.getBuyCurrency())) {
+			sellCapital = buyCapital;
+		} else {
+			sellCapital = shop.getShopSellCapital();
+		}
+
+		if (shop.getSign() == null || isVaried(plugin.getLocale()))
+			return shop.renderStatus(plugin, items, buyCapital, sellCapital);
+
+		final String[] lines = shop.getSign().getLines();
+		final Location location = shop.getSign().getBlock().getLocation();
+		final Entry entry = entries.get(location);
+		if (entry != null && entry.matches(lines, items, buyCapital, sellCapital)) return entry.status;
+
+		final String status = shop.renderStatus(plugin, items, buyCapital, sellCapital);
+		entries.put(location, new Entry(lines.clone(), items, buyCapital, sellCapital, status));
+		return status;
+	}
+	/**
+	 * Randomized messages should be picked again each time
+	 */
+	private boolean isVaried(final Localized locale) {
+		return	locale.isVaried(STATUS)
+				|| locale.isVaried(STATUS_ONE_CURRENCY)
+				|| locale.isVaried(STATUS_ONE_MATERIAL)
+				|| locale.isVaried(BUY_RATE)
+				|| locale.isVaried(SELL_RATE);
+	}
+}
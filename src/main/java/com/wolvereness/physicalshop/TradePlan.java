@@ -0,0 +1,321 @@
+package com.wolvereness.physicalshop;
+
+import static com.wolvereness.physicalshop.config.Localized.Message.*;
+import static java.util.logging.Level.SEVERE;
+
+import java.util.Arrays;
+
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Sign;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import com.wolvereness.physicalshop.config.Localized;
+import com.wolvereness.physicalshop.config.Localized.Message;
+import com.wolvereness.physicalshop.config.MaterialConfig;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * A trade worked out off the main thread, when 'trade-prevalidation' is set.<br>
+ * The main thread only copies the inventories involved. An async task works out the exchange on the copies
+ * the same way {@link InventoryHelpers#exchange(Inventory, ItemStack, ItemStack)} would, and renders the message.
+ * On the next tick the main thread commits the plan, if the sign text and inventories are as they were copied,
+ * or else trades right away with the shop as it is, as it would have without a plan.
+ * The sign is only parsed again if its text changed.
+ * This costs a tick of latency for trades.
+ */
+final class TradePlan implements Runnable {
+	/**
+	 * A copy of the contents of an inventory, as far as trades are concerned
+	 */
+	private static final class Contents {
+		private final int[] amounts;
+		private final short[] durabilities;
+		private final boolean[] enchanted;
+		private final int[] ids;
+		private Contents(final Contents contents) {
+			amounts = contents.amounts.clone();
+			durabilities = contents.durabilities.clone();
+			enchanted = contents.enchanted;
+			ids = contents.ids.clone();
+		}
+		private Contents(final Inventory inventory) {
+			final ItemStack[] contents = inventory.getContents();
+			amounts = new int[contents.length];
+			durabilities = new short[contents.length];
+			enchanted = new boolean[contents.length];
+			ids = new int[contents.length];
+			for (int i = 0; i < contents.length; i++) {
+				final ItemStack stack = contents[i];
+				if (stack == null) {
+					continue;
+				}
+				amounts[i] = stack.getAmount();
+				durabilities[i] = stack.getDurability();
+				enchanted[i] = !stack.getEnchantments().isEmpty();
+				ids[i] = stack.getTypeId();
+			}
+		}
+		/**
+		 * Works like InventoryHelpers.add, filling matching stacks before empty slots
+		 */
+		private boolean add(final ShopMaterial material, final int amount) {
+			final int id = material.getMaterial().getId();
+			final short durability = material.getDurability();
+			final int maxStackSize = material.getMaterial().getMaxStackSize();
+			int left = amount;
+			for (int pass = 0; pass < 2; ++pass) {
+				for (int i = 0; i < ids.length; ++i) {
+					if (left == 0) return true;
+					if (amounts[i] == 0) {
+						if (pass == 0) {
+							continue;
+						}
+					} else if (ids[i] != id || durabilities[i] != durability || enchanted[i]) {
+						continue;
+					}
+					final int size = amounts[i];
+					final int newSize = Math.min(maxStackSize, size + left);
+					amounts[i] = newSize;
+					ids[i] = id;
+					durabilities[i] = durability;
+					left -= newSize - size;
+				}
+			}
+			return left == 0;
+		}
+		/**
+		 * Sets the slots that differ from the original copy
+		 */
+		private void apply(final Inventory inventory, final Contents original) {
+			for (int i = 0; i < ids.length; i++) {
+				if (amounts[i] == original.amounts[i] && ids[i] == original.ids[i] && durabilities[i] == original.durabilities[i]) {
+					continue;
+				}
+				inventory.setItem(i, amounts[i] == 0 ? null : new ItemStack(ids[i], amounts[i], durabilities[i]));
+			}
+		}
+		private boolean matches(final Inventory inventory) {
+			final ItemStack[] contents = inventory.getContents();
+			if (contents.length != ids.length) return false;
+			for (int i = 0; i < contents.length; i++) {
+				final ItemStack stack = contents[i];
+				if (stack == null) {
+					if (amounts[i] != 0) return false;
+				} else if (	stack.getAmount() != amounts[i]
+							|| stack.getTypeId() != ids[i]
+							|| stack.getDurability() != durabilities[i]
+							|| stack.getEnchantments().isEmpty() == enchanted[i]) return false;
+			}
+			return true;
+		}
+		/**
+		 * Works like InventoryHelpers.remove
+		 */
+		private boolean remove(final ShopMaterial material, final int amount) {
+			final int id = material.getMaterial().getId();
+			final short durability = material.getDurability();
+			int left = amount;
+			for (int i = 0; i < ids.length && left != 0; i++) {
+				if (amounts[i] == 0 || ids[i] != id || durabilities[i] != durability || enchanted[i]) {
+					continue;
+				}
+				final int taken = Math.min(amounts[i], left);
+				amounts[i] -= taken;
+				left -= taken;
+			}
+			return left == 0;
+		}
+	}
+	private static boolean isPlain(final ShopMaterial material) {
+		return material.getStack(1).getEnchantments().isEmpty();
+	}
+	/**
+	 * Copies what the trade needs and starts working it out, if enabled. This should only be called from the main thread.
+	 * @param shop the shop to trade with
+	 * @param player the player trading
+	 * @param selling true if the player is selling to the shop
+	 * @param plugin The active PhysicalShop plugin
+	 * @return false if the trade should be done right away instead
+	 */
+	static boolean start(final Shop shop, final Player player, final boolean selling, final PhysicalShop plugin) {
+		if (!plugin.getPluginConfig().isTradePrevalidation() || shop.getSign() == null) return false;
+		final Rate rate = selling ? shop.getSellRate() : shop.getBuyRate();
+		// Enchanted stacks are never merged, so only plain materials are planned
+		if (rate == null || !isPlain(shop.getMaterial()) || !isPlain(rate.getMaterial())) return false;
+		final Inventory shopInventory = shop.getShopInventory();
+		final TradePlan plan = new TradePlan(
+			shop,
+			shop.getSign().getLines().clone(),
+			player,
+			selling,
+			rate,
+			plugin,
+			new Contents(player.getInventory()),
+			shopInventory == null ? null : new Contents(shopInventory));
+		return plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, plan) != -1;
+	}
+	private Object[] failureArgs;
+	private Message failure;
+	private final String[] lines;
+	private String message;
+	private final Contents player;
+	private Contents playerPlanned;
+	private final Player playerEntity;
+	private final PhysicalShop plugin;
+	private final Rate rate;
+	private final boolean selling;
+	private final Shop shop;
+	private final Contents shopContents;
+	private Contents shopPlanned;
+	private TradePlan(
+			final Shop shop,
+			final String[] lines,
+			final Player playerEntity,
+			final boolean selling,
+			final Rate rate,
+			final PhysicalShop plugin,
+			final Contents player,
+			final Contents shopContents) {
+		this.shop = shop;
+		this.lines = lines;
+		this.playerEntity = playerEntity;
+		this.selling = selling;
+		this.rate = rate;
+		this.plugin = plugin;
+		this.player = player;
+		this.shopContents = shopContents;
+	}
+	/**
+	 * Sets the slots the plan changes
+	 * @param playerInventory the inventory of the player
+	 * @param shopInventory the inventory of the shop, or null if it has unlimited stock
+	 */
+	void apply(final Inventory playerInventory, final Inventory shopInventory) {
+		playerPlanned.apply(playerInventory, player);
+		if (shopPlanned != null) {
+			shopPlanned.apply(shopInventory, shopContents);
+		}
+	}
+	/**
+	 * Checks the plan still holds, and commits it or trades right away. Runs on the main thread.
+	 */
+	private void commit() {
+		if (!playerEntity.isOnline()) return;
+		final BlockState state = shop.getSign().getBlock().getState();
+		if (!(state instanceof Sign)) {
+			// Destroyed meanwhile
+			plugin.getLocale().sendRepeatableMessage(playerEntity, null, selling ? NO_SELL : NO_BUY);
+			return;
+		}
+		if (!Arrays.equals(lines, ((Sign) state).getLines())) {
+			final Shop current = ShopHelpers.getShop(state.getBlock(), plugin);
+			if (current == null) {
+				// No longer a shop
+				plugin.getLocale().sendRepeatableMessage(playerEntity, null, selling ? NO_SELL : NO_BUY);
+				return;
+			}
+			if (!current.hasSameTerms(shop)) {
+				// Changed meanwhile, so the trade is with the shop as it is now
+				current.trade(playerEntity, selling, plugin);
+				return;
+			}
+		}
+		if (	!player.matches(playerEntity.getInventory())
+				|| shopContents != null && !shopContents.matches(shop.getShopInventory())) {
+			// Changed meanwhile, so the plan may not hold
+			shop.trade(playerEntity, selling, plugin);
+			return;
+		}
+		if (failure != null) {
+			plugin.getLocale().sendRepeatableMessage(playerEntity, shop.getTradeAttempt(playerEntity, !selling), failure, failureArgs);
+			return;
+		}
+		shop.commitPlan(playerEntity, selling, this, plugin);
+	}
+	private void fail(final Message failure, final Object...args) {
+		this.failure = failure;
+		this.failureArgs = args;
+	}
+	/**
+	 * @return the message for the player, once the plan worked out
+	 */
+	String getMessage() {
+		return message;
+	}
+	/**
+	 * Works out the exchange on the copies, like the shop would. Runs on an async task.
+	 */
+	private void plan() {
+		final MaterialConfig materialConfig = plugin.getMaterialConfig();
+		final Localized locale = plugin.getLocale();
+		final ShopMaterial material = shop.getMaterial();
+		final ShopMaterial currency = rate.getMaterial();
+		final int amount = rate.getAmount();
+		final int price = rate.getPrice();
+		// The shop gives what the player gets, the chest is exchanged before the player
+		final ShopMaterial shopGives = selling ? currency : material;
+		final int shopGivesAmount = selling ? price : amount;
+		final ShopMaterial shopGets = selling ? material : currency;
+		final int shopGetsAmount = selling ? amount : price;
+		if (shopContents != null) {
+			final Contents planned = new Contents(shopContents);
+			if (!planned.remove(shopGives, shopGivesAmount)) {
+				if (selling) {
+					fail(NOT_ENOUGH_SHOP_MONEY, currency.toString(materialConfig));
+				} else {
+					fail(NOT_ENOUGH_SHOP_ITEMS, material.toString(materialConfig));
+				}
+				return;
+			}
+			if (!planned.add(shopGets, shopGetsAmount)) {
+				fail(CHEST_INVENTORY_FULL);
+				return;
+			}
+			shopPlanned = planned;
+		}
+		final Contents planned = new Contents(player);
+		if (!planned.remove(shopGets, shopGetsAmount)) {
+			if (selling) {
+				fail(NOT_ENOUGH_PLAYER_ITEMS, material.toString(materialConfig));
+			} else {
+				fail(NOT_ENOUGH_PLAYER_MONEY, currency.toString(materialConfig));
+			}
+			return;
+		}
+		if (!planned.add(shopGives, shopGivesAmount)) {
+			fail(PLAYER_INVENTORY_FULL);
+			return;
+		}
+		playerPlanned = planned;
+		message = locale.formatMessage(
+			selling ? SELL : BUY,
+			amount,
+			material.toString(materialConfig),
+			price,
+			currency.toString(materialConfig)
+			);
+	}
+	public void run() {
+		try {
+			plan();
+		} catch (final Throwable t) {
+			plugin.getLogger().log(SEVERE, "Failed to plan a trade, trading right away instead", t);
+			failure = null;
+			playerPlanned = null;
+		}
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				if (failure == null && playerPlanned == null) {
+					// Planning failed
+					if (playerEntity.isOnline()) {
+						shop.trade(playerEntity, selling, plugin);
+					}
+					return;
+				}
+				commit();
+			}});
+	}
+}
@@ -0,0 +1,155 @@
+package com.wolvereness.physicalshop.config;
+
+import static com.wolvereness.physicalshop.config.ConfigOptions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import com.wolvereness.physicalshop.PhysicalShop;
+import com.wolvereness.util.NameCollection;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Everything read from the configuration files, loaded together so a reload can be read and parsed off the main thread
+ * and then installed as a whole. Nothing here is changed after it is loaded.
+ */
+public class ConfigBundle {
+	/**
+	 * The options of config.yml read when parsing a shop sign
+	 */
+	private static final String[] SIGN_OPTIONS = { BUY_SECTION, CURRENCIES, MATERIAL_PATTERN, SELL_SECTION, SERVER_SHOP, SHOP_BLOCK_BLACKLIST };
+	private static void flatten(final Map<String, Object> values, final String path, final Object value) {
+		if (!(value instanceof ConfigurationSection)) {
+			values.put(path, value);
+			return;
+		}
+		final ConfigurationSection section = (ConfigurationSection) value;
+		for (final String key : section.getKeys(false)) {
+			flatten(values, path + '.' + key, section.get(key));
+		}
+	}
+	/**
+	 * Reads and parses the configuration files. This does not touch the server, so it may be called from any thread.
+	 * The sign names for extended names are read as well, if they are enabled and not already registered.
+	 * @param plugin The active PhysicalShop plugin
+	 * @return the loaded configuration
+	 * @throws IOException if config.yml could not be read
+	 * @throws InvalidConfigurationException if config.yml is not valid
+	 * @throws RuntimeException if a locale or item file could not be read
+	 */
+	public static ConfigBundle load(final PhysicalShop plugin) throws IOException, InvalidConfigurationException {
+		final YamlConfiguration config = new YamlConfiguration();
+		final File file = new File(plugin.getDataFolder(), "config.yml");
+		if (file.exists()) {
+			config.load(file);
+		}
+		final InputStream defaults = plugin.getResource("config.yml");
+		if (defaults != null) {
+			config.setDefaults(YamlConfiguration.loadConfiguration(defaults));
+		}
+		config.options().copyDefaults(true);
+		if(config.isSet(BUY_PATTERN)) {
+			config.getConfigurationSection(BUY_SECTION).set(PATTERN, config.getString(BUY_PATTERN));
+			config.set(BUY_PATTERN, null);
+		}
+		if(config.isSet(SELL_PATTERN)) {
+			config.getConfigurationSection(SELL_SECTION).set(PATTERN, config.getString(SELL_PATTERN));
+			config.set(SELL_PATTERN, null);
+		}
+		final StandardConfig standardConfig = new StandardConfig(plugin, config);
+		return new ConfigBundle(
+			config,
+			standardConfig,
+			new Localized(plugin, config),
+			new MaterialConfig(plugin, config, standardConfig),
+			standardConfig.isExtendedNames() && !NameCollection.isRegistered(plugin) ? NameCollection.load(plugin) : null);
+	}
+	private final FileConfiguration config;
+	private final Localized locale;
+	private final MaterialConfig materialConfig;
+	private final NameCollection.Loaded names;
+	private final Map<String, Object> signFormat;
+	private final StandardConfig standardConfig;
+	private ConfigBundle(
+			final FileConfiguration config,
+			final StandardConfig standardConfig,
+			final Localized locale,
+			final MaterialConfig materialConfig,
+			final NameCollection.Loaded names) {
+		this.config = config;
+		this.standardConfig = standardConfig;
+		this.locale = locale;
+		this.materialConfig = materialConfig;
+		this.names = names;
+		signFormat = new HashMap<String, Object>();
+		for (final String option : SIGN_OPTIONS) {
+			flatten(signFormat, option, config.get(option));
+		}
+		flatten(signFormat, "Aliases", materialConfig.getAliases());
+		signFormat.put(EXTENDED_NAMES, standardConfig.isExtendedNames());
+	}
+	/**
+	 * @return the raw config.yml, with defaults
+	 */
+	public FileConfiguration getConfig() {
+		return config;
+	}
+	/**
+	 * @return the locale
+	 */
+	public Localized getLocale() {
+		return locale;
+	}
+	/**
+	 * @return the material configuration
+	 */
+	public MaterialConfig getMaterialConfig() {
+		return materialConfig;
+	}
+	/**
+	 * @return the sign names read for extended names, or null if they were not read
+	 */
+	public NameCollection.Loaded getNames() {
+		return names;
+	}
+	/**
+	 * @param other the configuration to compare with
+	 * @return true if both read shop signs the same way, so shops indexed with one need not be scanned again for the other
+	 */
+	public boolean hasSameSignFormat(final ConfigBundle other) {
+		return signFormat.equals(other.signFormat);
+	}
+	/**
+	 * Reads the locale file again, keeping everything else. This may be called from any thread.
+	 * @param plugin The active PhysicalShop plugin
+	 * @return a copy of this configuration with the new locale
+	 * @throws RuntimeException if the locale file could not be read
+	 */
+	public ConfigBundle reloadLocale(final PhysicalShop plugin) {
+		return new ConfigBundle(config, standardConfig, new Localized(plugin, config), materialConfig, names);
+	}
+	/**
+	 * Reads Items.yml again, keeping everything else. This may be called from any thread.
+	 * @param plugin The active PhysicalShop plugin
+	 * @return a copy of this configuration with the new material configuration
+	 * @throws RuntimeException if the item file could not be read
+	 */
+	public ConfigBundle reloadMaterials(final PhysicalShop plugin) {
+		return new ConfigBundle(config, standardConfig, locale, new MaterialConfig(plugin, config, standardConfig), names);
+	}
+	/**
+	 * @return the snapshot of config.yml
+	 */
+	public StandardConfig getStandardConfig() {
+		return standardConfig;
+	}
+}
@@ -42,6 +42,22 @@ public class ConfigOptions {
 	 * Config option, "ignore-mc-version"
 	 */
 	public static String IGNORE_VERSION = "ignore-mc-version";
+	/**
+	 * Config option, "journal-aggregate-days"
+	 */
+	public static String JOURNAL_AGGREGATE_DAYS = "journal-aggregate-days";
+	/**
+	 * Config option, "journal-commit-interval"
+	 */
+	public static String JOURNAL_COMMIT_INTERVAL = "journal-commit-interval";
+	/**
+	 * Config option, "journal-raw-days"
+	 */
+	public static String JOURNAL_RAW_DAYS = "journal-raw-days";
+	/**
+	 * Config option, "journal-segment-size"
+	 */
+	public static String JOURNAL_SEGMENT_SIZE = "journal-segment-size";
 	/**
 	 * Config option, "language"
 	 */
@@ -82,6 +98,10 @@ public class ConfigOptions {
 	 * Config option, "protect-explode"
 	 */
 	public static String PROTECT_EXPLODE = "protect-explode";
+	/**
+	 * Config option, "repeat-message-window"
+	 */
+	public static String REPEAT_MESSAGE_WINDOW = "repeat-message-window";
 	/**
 	 * Config option, "sell-pattern"
 	 */
@@ -99,10 +119,58 @@ public class ConfigOptions {
 	 * Config option, "shop-block-blacklist"
 	 */
 	public static String SHOP_BLOCK_BLACKLIST = "shop-block-blacklist";
+	/**
+	 * Config option, "shop-feed"
+	 */
+	public static String SHOP_FEED = "shop-feed";
+	/**
+	 * Config option, "shop-feed-segment-size"
+	 */
+	public static String SHOP_FEED_SEGMENT_SIZE = "shop-feed-segment-size";
+	/**
+	 * Config option, "shop-feed-segments"
+	 */
+	public static String SHOP_FEED_SEGMENTS = "shop-feed-segments";
+	/**
+	 * Config option, "shop-index"
+	 */
+	public static String SHOP_INDEX = "shop-index";
 	/**
 	 * Config option, "showcase-mode"
 	 */
 	public static String SHOWCASE_MODE = "showcase-mode";
+	/**
+	 * Config option, "showcase-radius"
+	 */
+	public static String SHOWCASE_RADIUS = "showcase-radius";
+	/**
+	 * Config option, "showcase-slots"
+	 */
+	public static String SHOWCASE_SLOTS = "showcase-slots";
+	/**
+	 * Config option, "trade-intent-log"
+	 */
+	public static String TRADE_INTENT_LOG = "trade-intent-log";
+	/**
+	 * Config option, "trade-intent-sync"
+	 */
+	public static String TRADE_INTENT_SYNC = "trade-intent-sync";
+	/**
+	 * Config option, "trade-prevalidation"
+	 */
+	public static String TRADE_PREVALIDATION = "trade-prevalidation";
+	/**
+	 * Config option, "trade-journal"
+	 */
+	public static String TRADE_JOURNAL = "trade-journal";
+	/**
+	 * Config option, "trade-stats"
+	 */
+	public static String TRADE_STATS = "trade-stats";
+	/**
+	 * Config option, "trade-stats-keys"
+	 */
+	public static String TRADE_STATS_KEYS = "trade-stats-keys";
 	/**
 	 * Config option, "trigger-redstone"
 	 */
@@ -111,4 +179,8 @@ public class ConfigOptions {
 	 * Config option, "update-url"
 	 */
 	public static String UPDATE_URL = "update-url";
+	/**
+	 * Config option, "watch-files"
+	 */
+	public static String WATCH_FILES = "watch-files";
 }
@@ -1,14 +1,17 @@
 package com.wolvereness.physicalshop.config;
 
 import static com.wolvereness.physicalshop.config.ConfigOptions.LANGUAGE;
+import static com.wolvereness.physicalshop.config.ConfigOptions.REPEAT_MESSAGE_WINDOW;
 import static java.util.logging.Level.SEVERE;
-import static org.bukkit.ChatColor.translateAlternateColorCodes;
-import static org.bukkit.configuration.file.YamlConfiguration.loadConfiguration;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Level;
@@ -17,8 +20,10 @@ import java.util.regex.Pattern;
 
 import org.apache.commons.lang.Validate;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
 import com.google.common.io.ByteStreams;
@@ -76,6 +81,11 @@ public class Localized {
 		 */
 		NOT_ENOUGH_SHOP_MONEY,
 		PLAYER_INVENTORY_FULL,
+		/**
+		 * Repeated message<br>
+		 * Times repeated
+		 */
+		REPEATED,
 		/**
 		 * Amount<br>
 		 * Material<br>
@@ -107,6 +117,32 @@ public class Localized {
 		STATUS_ONE_MATERIAL
 	}
 
+	/**
+	 * The last repeatable message sent to a recipient, and how many times it was repeated since
+	 */
+	private static final class Repeat {
+		private Object[] args;
+		private Object cause;
+		private int count;
+		private Message message;
+		private final CommandSender recipient;
+		private long start;
+		private String text;
+		Repeat(final CommandSender recipient) {
+			this.recipient = recipient;
+		}
+		/**
+		 * Sends the summary of repeated messages, if any
+		 */
+		void flush(final Localized locale) {
+			if (count == 0) return;
+			if (!(recipient instanceof Player) || ((Player) recipient).isOnline()) {
+				recipient.sendMessage(locale.formatMessage(Message.REPEATED, text, count));
+			}
+			count = 0;
+		}
+	}
+
 	/**
 	 * Regex to find the & symbols to be replaced
 	 * @deprecated Use {@link org.bukkit.ChatColor#translateAlternateColorCodes(char, String)}
@@ -116,27 +152,42 @@ public class Localized {
 	private final YamlConfiguration config;
 	private final Logger logger;
 	private final Random random;
+	private final HashMap<String, Repeat> repeats = new HashMap<String, Repeat>();
+	private final long repeatWindow;
+	/**
+	 * The compiled variants of each message, indexed by ordinal
+	 */
+	private final MessageTemplate[][] templates = new MessageTemplate[Message.values().length][];
 
 	/**
 	 * @param plugin plugin to consider for getting resources
+	 * @param pluginConfig the plugin config to read the language from, which may not be installed yet
 	 */
-	public Localized(final Plugin plugin) {
-		this(plugin, new Random());
+	public Localized(final Plugin plugin, final Configuration pluginConfig) {
+		this(plugin, pluginConfig, new Random());
 	}
 
 	/**
 	 * @param plugin plugin to consider for getting resources
+	 * @param pluginConfig the plugin config to read the language from, which may not be installed yet
 	 * @param random a random number generator, if messages have multiple outputs
+	 * @throws RuntimeException if the locale file could not be read, so it is not replaced with the defaults
 	 */
-	public Localized(final Plugin plugin, final Random random) {
+	public Localized(final Plugin plugin, final Configuration pluginConfig, final Random random) {
 		this.random = random;
 		this.logger = plugin.getLogger();
-		final String language = String.valueOf(plugin.getConfig().get(LANGUAGE)).toUpperCase();
+		this.repeatWindow = pluginConfig.getLong(REPEAT_MESSAGE_WINDOW, 1000);
+		final String language = String.valueOf(pluginConfig.get(LANGUAGE)).toUpperCase();
 		final File file = new File(plugin.getDataFolder(),"Locales" + File.separatorChar +  language + ".yml");
+		config = new YamlConfiguration();
 		if(file.exists()) {
-			config = loadConfiguration(file);
-		} else {
-			config = new YamlConfiguration();
+			try {
+				config.load(file);
+			} catch (final IOException e) {
+				throw new RuntimeException("Failed to read locale file " + file, e);
+			} catch (final InvalidConfigurationException e) {
+				throw new RuntimeException("Failed to read locale file " + file, e);
+			}
 		}
 		InputStream resource = plugin.getResource("Locales/" + language + ".yml");
 		final YamlConfiguration defaults = new YamlConfiguration();
@@ -162,6 +213,31 @@ public class Localized {
 		} catch (final IOException e) {
 			plugin.getLogger().log(Level.WARNING, "Failed to save locale file " + file, e);
 		}
+		for (final Message message : Message.values()) {
+			final List<MessageTemplate> variants = new ArrayList<MessageTemplate>(1);
+			addVariants(variants, config.get(message.name()));
+			templates[message.ordinal()] = variants.toArray(new MessageTemplate[variants.size()]);
+		}
+	}
+
+	/**
+	 * This recursion will only be a problem with nested values,
+	 * where an infinite loop is worse than stack overflow.
+	 */
+	private void addVariants(final List<MessageTemplate> variants, final Object obj) {
+		if (obj == null)
+			return;
+		if (obj.getClass().isArray()) {
+			for (int i = 0, length = Array.getLength(obj); i < length; i++) {
+				addVariants(variants, Array.get(obj, i));
+			}
+		} else if (obj instanceof List) {
+			for (final Object element : (List<?>) obj) {
+				addVariants(variants, element);
+			}
+		} else {
+			variants.add(new MessageTemplate(obj.toString()));
+		}
 	}
 
 	/**
@@ -169,24 +245,93 @@ public class Localized {
 	 * @return message stored
 	 */
 	public String getMessage(final Message message) {
-		final String string = toFormattableMessage(message);
-		return string == null ? null : translateAlternateColorCodes('&', string);
+		final MessageTemplate template = getTemplate(message);
+		return template == null ? null : template.getMessage();
+	}
+
+	private MessageTemplate getTemplate(final Message message) {
+		Validate.notNull(message, "Cannot retrieve message for null");
+		final MessageTemplate[] variants = templates[message.ordinal()];
+		switch (variants.length) {
+		case 0:
+			return null;
+		case 1:
+			return variants[0];
+		default:
+			return variants[random.nextInt(variants.length)];
+		}
 	}
 
 	/**
-	 * This recursion will only be a problem with nested values,
-	 * where an infinite loop is worse than stack overflow.
+	 * Formats a message located at the node defined, without sending it
+	 * @param message Message to format
+	 * @param args The arguments to String.format
+	 * @return the formatted message
 	 */
-	private String parseObject(final Object obj) {
-		if (obj == null)
-			return null;
-		if (obj.getClass().isArray())
-			return parseObject(Array.get(obj, (int) (random.nextDouble() * Array.getLength(obj))));
-		if (obj instanceof List) {
-			final List<?> list = (List<?>) obj;
-			return parseObject(list.get((int) (random.nextDouble() * list.size())));
+	public String formatMessage(final Message message, final Object...args) {
+		final MessageTemplate template = getTemplate(message);
+		if (template == null) {
+			logger.log(SEVERE,"Unknown message:" + message + " name:" + message.name(), new Exception());
+			return "ERROR_"+message;
+		}
+		return template.format(args);
+	}
+
+	/**
+	 * Sends the summaries for repeated messages whose window has passed, and forgets idle recipients.
+	 * This should be called periodically from the main thread.
+	 * @param all true to flush every recipient regardless of the window
+	 */
+	public void flushRepeats(final boolean all) {
+		if (repeats.isEmpty()) return;
+		final long now = System.currentTimeMillis();
+		final Iterator<Repeat> it = repeats.values().iterator();
+		while (it.hasNext()) {
+			final Repeat repeat = it.next();
+			if (all || now - repeat.start >= repeatWindow) {
+				repeat.flush(this);
+				it.remove();
+			}
 		}
-		return obj.toString();
+	}
+
+	/**
+	 * Checks if an action of the recipient failed within the repeat window,
+	 * so the action need only be built for {@link #isRepeating(CommandSender, Object)} when this is true.
+	 * @param recipient the player performing the action
+	 * @return true if a failed action of the recipient may be repeating
+	 */
+	public boolean hasRepeat(final CommandSender recipient) {
+		final Repeat repeat = repeats.get(recipient.getName());
+		return	repeat != null
+				&& repeat.cause != null
+				&& System.currentTimeMillis() - repeat.start < repeatWindow;
+	}
+
+	/**
+	 * Checks if the recipient is repeating an action that failed within the repeat window.
+	 * If so, it is counted as a repeat of the failure message, and the action may be skipped.
+	 * @param recipient the player performing the action
+	 * @param cause the action being performed, compared with {@link Object#equals(Object)}
+	 * @return true if the same action failed within the repeat window
+	 */
+	public boolean isRepeating(final CommandSender recipient, final Object cause) {
+		final Repeat repeat = repeats.get(recipient.getName());
+		if (	repeat == null
+				|| repeat.cause == null
+				|| !repeat.cause.equals(cause)
+				|| System.currentTimeMillis() - repeat.start >= repeatWindow
+				) return false;
+		repeat.count++;
+		return true;
+	}
+
+	/**
+	 * @param message message to check
+	 * @return true if the message has more than one variant to pick from randomly
+	 */
+	public boolean isVaried(final Message message) {
+		return templates[message.ordinal()].length > 1;
 	}
 
 	/**
@@ -196,17 +341,42 @@ public class Localized {
 	 * @param args The arguments to String.format
 	 */
 	public void sendMessage(final CommandSender recipient, final Message message, final Object...args) {
-		final String string = toFormattableMessage(message);
-		if (string == null) {
-			recipient.sendMessage("ERROR_"+message);
-			logger.log(SEVERE,"Unknown message:" + message + " name:" + message.name(), new Exception());
-		} else {
-			recipient.sendMessage(translateAlternateColorCodes('&', String.format(string, args)));
-		}
+		recipient.sendMessage(formatMessage(message, args));
 	}
 
-	private String toFormattableMessage(final Message message) {
-		Validate.notNull(message, "Cannot retrieve message for null");
-		return parseObject(config.get(message.name()));
+	/**
+	 * Sends the recipient a formatted message, unless it is identical to the last one sent within the repeat window.
+	 * Suppressed messages are summarized with a count once the window passes.
+	 * @param recipient Player to receive the message
+	 * @param cause the failed action this message is for, or null
+	 * @param message Message to send
+	 * @param args The arguments to String.format
+	 * @see #isRepeating(CommandSender, Object)
+	 */
+	public void sendRepeatableMessage(final CommandSender recipient, final Object cause, final Message message, final Object...args) {
+		if (repeatWindow <= 0) {
+			sendMessage(recipient, message, args);
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		Repeat repeat = repeats.get(recipient.getName());
+		if (repeat == null) {
+			repeats.put(recipient.getName(), repeat = new Repeat(recipient));
+		} else if (	repeat.message == message
+					&& now - repeat.start < repeatWindow
+					&& Arrays.equals(repeat.args, args)) {
+			repeat.count++;
+			repeat.cause = cause;
+			return;
+		} else {
+			repeat.flush(this);
+		}
+		final String text = formatMessage(message, args);
+		recipient.sendMessage(text);
+		repeat.message = message;
+		repeat.args = args;
+		repeat.cause = cause;
+		repeat.text = text;
+		repeat.start = now;
 	}
 }
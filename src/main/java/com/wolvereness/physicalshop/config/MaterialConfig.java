@@ -13,7 +13,9 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 
@@ -34,17 +36,32 @@ public class MaterialConfig {
 	private final Pattern junkCharacters = Pattern.compile("[^A-Za-z0-9:_]");
 	private final HashMap<ShopMaterial, String> names = new HashMap<ShopMaterial, String>();
 	private final PhysicalShop plugin;
+	private final StandardConfig standardConfig;
 	/**
 	 * Creates a MaterialConfiguration
 	 * @param plugin Plugin to use
+	 * @param pluginConfig the plugin config to read currencies from, which may not be installed yet
+	 * @param standardConfig the standard config made from pluginConfig
+	 * @throws RuntimeException if the item file could not be read, so it is not replaced with the defaults
 	 */
-	public MaterialConfig(final PhysicalShop plugin) {
+	public MaterialConfig(final PhysicalShop plugin, final Configuration pluginConfig, final StandardConfig standardConfig) {
 		this.plugin = plugin;
-		final ConfigurationSection currencySection = plugin.getConfig().getConfigurationSection(CURRENCIES);
+		this.standardConfig = standardConfig;
+		final ConfigurationSection currencySection = pluginConfig.getConfigurationSection(CURRENCIES);
 		for(final String currency : currencySection.getKeys(false)) {
 			addCurrency(currency, currencySection.getString(currency));
 		}
-		config = YamlConfiguration.loadConfiguration(file = new File(plugin.getDataFolder(), "Locales" + File.separatorChar +  "Items.yml"));
+		config = new YamlConfiguration();
+		file = new File(plugin.getDataFolder(), "Locales" + File.separatorChar +  "Items.yml");
+		if(file.exists()) {
+			try {
+				config.load(file);
+			} catch (final IOException e) {
+				throw new RuntimeException("Failed to read material configuration " + file, e);
+			} catch (final InvalidConfigurationException e) {
+				throw new RuntimeException("Failed to read material configuration " + file, e);
+			}
+		}
 		defaults();
 		try {
 			config.save(file);
@@ -78,7 +95,7 @@ public class MaterialConfig {
 		}
 	}
 	private String checkPattern(final String string) throws InvalidMaterialException {
-		final Matcher m = plugin.getPluginConfig().getMaterialPattern().matcher(string);
+		final Matcher m = standardConfig.getMaterialPattern().matcher(string);
 
 		if (!m.find()) throw new InvalidMaterialException();
 		return m.group(1);
@@ -106,6 +123,12 @@ public class MaterialConfig {
 			}
 		}
 	}
+	/**
+	 * @return the aliases section of the item file, as read
+	 */
+	ConfigurationSection getAliases() {
+		return config.getConfigurationSection("Aliases");
+	}
 	/**
 	 * Searches for ShopMaterial associated with currency character.
 	 * @param currencyIdentifier The character the shop will be associated with.
@@ -0,0 +1,176 @@
+package com.wolvereness.physicalshop.config;
+
+import static org.bukkit.ChatColor.translateAlternateColorCodes;
+
+import java.util.MissingFormatArgumentException;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * A single variant of a localized message, split at load time into literal
+ * segments (with colors already translated) and argument references.
+ * Only {@code %s}, {@code %d}, {@code %n} and {@code %%}, optionally with an
+ * explicit argument index, are precompiled. Anything else falls back to
+ * {@link String#format(String, Object...)}.
+ */
+final class MessageTemplate {
+	private static final char COLOR_CHAR = '&';
+	/**
+	 * Argument index for each reference, 0 based
+	 */
+	private final int[] arguments;
+	/**
+	 * The original format, only used if it could not be precompiled
+	 */
+	private final String format;
+	/**
+	 * Literal text around the references, one more than the amount of references
+	 */
+	private final String[] literals;
+	/**
+	 * The message with colors translated, but not formatted
+	 */
+	private final String message;
+	/**
+	 * A literal ends with the color character, so the result needs to be translated again
+	 */
+	private final boolean retranslate;
+	private final int size;
+
+	MessageTemplate(final String format) {
+		this.message = translateAlternateColorCodes(COLOR_CHAR, format);
+		final int length = format.length();
+		int specifiers = 0;
+		for (int i = 0; i < length; i++) {
+			if (format.charAt(i) == '%') {
+				specifiers++;
+				i++;
+			}
+		}
+		final String[] literals = new String[specifiers + 1];
+		final int[] arguments = new int[specifiers];
+		final StringBuilder literal = new StringBuilder(length);
+		int references = 0;
+		int ordinary = 0;
+		boolean compiled = true;
+		boolean retranslate = false;
+		parse: for (int i = 0; i < length; i++) {
+			final char c = format.charAt(i);
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+			if (++i == length) {
+				compiled = false;
+				break;
+			}
+			char conversion = format.charAt(i);
+			switch (conversion) {
+			case '%':
+				literal.append('%');
+				continue parse;
+			case 'n':
+				literal.append(System.getProperty("line.separator"));
+				continue parse;
+			}
+			final int argument;
+			if (conversion >= '1' && conversion <= '9') {
+				int index = 0;
+				while ((conversion = format.charAt(i)) >= '0' && conversion <= '9') {
+					index = index * 10 + (conversion - '0');
+					if (++i == length) {
+						compiled = false;
+						break parse;
+					}
+				}
+				if (conversion != '$' || ++i == length) {
+					compiled = false;
+					break;
+				}
+				argument = index - 1;
+				conversion = format.charAt(i);
+			} else {
+				argument = ordinary++;
+			}
+			if (conversion != 's' && conversion != 'd') {
+				compiled = false;
+				break;
+			}
+			final String translated = translateAlternateColorCodes(COLOR_CHAR, literal.toString());
+			retranslate |= translated.length() != 0 && translated.charAt(translated.length() - 1) == COLOR_CHAR;
+			literals[references] = translated;
+			arguments[references++] = argument;
+			literal.setLength(0);
+		}
+		if (!compiled) {
+			// Unsupported specifier, keep the whole format for String.format
+			this.format = format;
+			this.literals = null;
+			this.arguments = null;
+			this.retranslate = false;
+			this.size = 0;
+			return;
+		}
+		literals[references] = translateAlternateColorCodes(COLOR_CHAR, literal.toString());
+		int size = 0;
+		for (int i = 0; i <= references; i++) {
+			size += literals[i].length();
+		}
+		this.format = null;
+		this.literals = references == specifiers ? literals : copy(literals, references + 1);
+		this.arguments = references == specifiers ? arguments : copy(arguments, references);
+		this.retranslate = retranslate;
+		this.size = size;
+	}
+
+	private static int[] copy(final int[] array, final int length) {
+		final int[] copy = new int[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static String[] copy(final String[] array, final int length) {
+		final String[] copy = new String[length];
+		System.arraycopy(array, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * @param args The arguments to fill the message with
+	 * @return the formatted message, with colors translated
+	 */
+	String format(final Object...args) {
+		if (format != null) return translateAlternateColorCodes(COLOR_CHAR, String.format(format, args));
+		final String[] literals = this.literals;
+		final int[] arguments = this.arguments;
+		if (arguments.length == 0) return literals[0];
+
+		final StringBuilder builder = new StringBuilder(size + (arguments.length << 4));
+		boolean retranslate = this.retranslate;
+		builder.append(literals[0]);
+		for (int i = 0; i < arguments.length; i++) {
+			final int argument = arguments[i];
+			if (args == null || argument >= args.length)
+				throw new MissingFormatArgumentException("%" + (argument + 1) + "$");
+			final Object arg = args[argument];
+			if (arg instanceof Integer) {
+				builder.append(((Integer) arg).intValue());
+			} else {
+				final String string = String.valueOf(arg);
+				retranslate |= string.indexOf(COLOR_CHAR) != -1;
+				builder.append(string);
+			}
+			builder.append(literals[i + 1]);
+		}
+		final String result = builder.toString();
+		// Arguments used to be translated along with the message
+		return retranslate ? translateAlternateColorCodes(COLOR_CHAR, result) : result;
+	}
+
+	/**
+	 * @return the unformatted message, with colors translated
+	 */
+	String getMessage() {
+		return message;
+	}
+}
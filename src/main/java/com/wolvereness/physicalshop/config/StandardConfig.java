@@ -2,10 +2,10 @@ package com.wolvereness.physicalshop.config;
 
 import static com.wolvereness.physicalshop.config.ConfigOptions.*;
 
-import java.util.EnumSet;
 import java.util.regex.Pattern;
 
 import org.bukkit.Material;
+import org.bukkit.configuration.Configuration;
 import org.bukkit.plugin.Plugin;
 
 import com.google.common.collect.ImmutableList;
@@ -13,27 +13,58 @@ import com.wolvereness.physicalshop.showcase.PlayerHandler;
 
 /**
  * @author Wolfe
- * Licensed under GNU GPL v3
+ * Licensed under GNU GPL v3<br>
+ * Immutable snapshot of the config, read once when loaded so events never look up the YAML.
+ * A reload builds a new snapshot and replaces the old one as a whole.
  */
 public class StandardConfig {
-	private final EnumSet<Material> blacklist = EnumSet.noneOf(Material.class);
+	private final boolean autoFillName;
+	private final boolean[] blacklist;
 	private final PatternHandler buyPattern;
+	private final boolean detailedOutput;
+	private final boolean existingChestProtected;
+	private final boolean extendedNames;
 	private final Pattern materialPattern;
-	private final Plugin plugin;
+	private final boolean protectBreak;
+	private final boolean protectChestAccess;
+	private final boolean protectExplode;
 	private final PatternHandler sellPattern;
+	private final String serverShop;
+	private final boolean showcaseEnabled;
+	private final boolean tradePrevalidation;
+	private final boolean triggerRedstone;
+	private final boolean validVersion;
 	/**
 	 * makes a new standard config, loading up defaults
-	 * @param plugin Used to get the config
-	 */
-	public StandardConfig(final Plugin plugin) {
-		this.plugin = plugin;
-		buyPattern = new PatternHandler(plugin.getConfig().getConfigurationSection(BUY_SECTION));
-		materialPattern = Pattern.compile(plugin.getConfig().getString(MATERIAL_PATTERN));
-		sellPattern = new PatternHandler(plugin.getConfig().getConfigurationSection(SELL_SECTION));
-		if(!plugin.getConfig().isConfigurationSection(CURRENCIES)) {
-			plugin.getConfig().createSection(CURRENCIES).set("g", "Gold Ingot");
+	 * @param plugin Used for the server version and logging
+	 * @param config The config to read, which may not be installed yet
+	 */
+	public StandardConfig(final Plugin plugin, final Configuration config) {
+		autoFillName = config.getBoolean(AUTO_FILL_NAME, true);
+		detailedOutput = config.getBoolean(DETAILED_OUTPUT, true);
+		existingChestProtected = config.getBoolean(PROTECT_EXISTING_CHEST, true);
+		extendedNames = autoFillName && config.getBoolean(EXTENDED_NAMES);
+		protectBreak = config.getBoolean(PROTECT_BREAK, true);
+		protectChestAccess = config.getBoolean(PROTECT_CHEST_ACCESS, true);
+		protectExplode = config.getBoolean(PROTECT_EXPLODE, true);
+		serverShop = config.getString(SERVER_SHOP);
+		tradePrevalidation = config.getBoolean(TRADE_PREVALIDATION);
+		triggerRedstone = config.getBoolean(TRIGGER_REDSTONE);
+		validVersion = config.getBoolean(IGNORE_VERSION, false)
+			|| plugin.getServer().getVersion().contains(PlayerHandler.MC_VERSION);
+		showcaseEnabled = config.getBoolean(SHOWCASE_MODE, true) && validVersion;
+		buyPattern = new PatternHandler(config.getConfigurationSection(BUY_SECTION));
+		materialPattern = Pattern.compile(config.getString(MATERIAL_PATTERN));
+		sellPattern = new PatternHandler(config.getConfigurationSection(SELL_SECTION));
+		if(!config.isConfigurationSection(CURRENCIES)) {
+			config.createSection(CURRENCIES).set("g", "Gold Ingot");
 		}
-		for (final Object matObj : plugin.getConfig().getList(SHOP_BLOCK_BLACKLIST, ImmutableList.of())) {
+		int maxId = 0;
+		for (final Material mat : Material.values()) {
+			maxId = Math.max(maxId, mat.getId());
+		}
+		blacklist = new boolean[maxId + 1];
+		for (final Object matObj : config.getList(SHOP_BLOCK_BLACKLIST, ImmutableList.of())) {
 			if (matObj == null) {
 				continue;
 			}
@@ -46,7 +77,7 @@ public class StandardConfig {
 			if (mat == null) {
 				plugin.getLogger().warning(SHOP_BLOCK_BLACKLIST + " contains an invalid entry: " + matObj);
 			} else {
-				blacklist.add(mat);
+				blacklist[mat.getId()] = true;
 			}
 		}
 
@@ -75,13 +106,21 @@ public class StandardConfig {
 	public PatternHandler getSellPatternHandler() {
 		return sellPattern;
 	}
+	/**
+	 * Gets the 'server-shop' setting.
+	 *
+	 * @return the owner name marking shops run by the server
+	 */
+	public String getServerShop() {
+		return serverShop;
+	}
 	/**
 	 * Checks config to get the 'auto-fill-name' setting.
 	 *
 	 * @return if names should be auto-set
 	 */
 	public boolean isAutoFillName() {
-		return plugin.getConfig().getBoolean(AUTO_FILL_NAME, true);
+		return autoFillName;
 	}
 	/**
 	 * Checks the specified material to see if it is not allowed as a shop block
@@ -89,7 +128,8 @@ public class StandardConfig {
 	 * @return true if the material is not allowed
 	 */
 	public boolean isBlacklistedShopType(final Material type) {
-		return blacklist.contains(type);
+		final int id = type.getId();
+		return id < blacklist.length && blacklist[id];
 	}
 	/**
 	 * Checks config to get the 'detailed-output' setting
@@ -97,7 +137,7 @@ public class StandardConfig {
 	 * @return the config option for printing detailed chest output
 	 */
 	public boolean isDetailedOutput() {
-		return plugin.getConfig().getBoolean(DETAILED_OUTPUT, true);
+		return detailedOutput;
 	}
 	/**
 	 * Checks config to see if 'protect-existing-chest' is set
@@ -105,15 +145,14 @@ public class StandardConfig {
 	 * @return true
 	 */
 	public boolean isExistingChestProtected() {
-		return plugin.getConfig().getBoolean(PROTECT_EXISTING_CHEST, true);
+		return existingChestProtected;
 	}
 	/**
 	 * Checks config to see if extended names are enabled (only matters if auto-fill is on)
 	 * @return true if service is enabled
 	 */
 	public boolean isExtendedNames() {
-		return plugin.getConfig().getBoolean(AUTO_FILL_NAME, true)
-			&& plugin.getConfig().getBoolean(EXTENDED_NAMES);
+		return extendedNames;
 	}
 	/**
 	 * Checks config to get the 'protect-break' setting.
@@ -121,7 +160,7 @@ public class StandardConfig {
 	 * @return the config option for protection chest breaking
 	 */
 	public boolean isProtectBreak() {
-		return plugin.getConfig().getBoolean(PROTECT_BREAK, true);
+		return protectBreak;
 	}
 	/**
 	 * Checks config to get the 'protect-chest-access' setting.
@@ -129,7 +168,7 @@ public class StandardConfig {
 	 * @return the config option for protecting chest access
 	 */
 	public boolean isProtectChestAccess() {
-		return plugin.getConfig().getBoolean(PROTECT_CHEST_ACCESS, true);
+		return protectChestAccess;
 	}
 	/**
 	 * Checks config to get the 'protect-explode' setting.
@@ -137,7 +176,7 @@ public class StandardConfig {
 	 * @return the config option for protecting chests from explosions
 	 */
 	public boolean isProtectExplode() {
-		return plugin.getConfig().getBoolean(PROTECT_EXPLODE, true);
+		return protectExplode;
 	}
 	/**
 	 * Checks config to get the 'showcase-mode' setting.
@@ -145,14 +184,29 @@ public class StandardConfig {
 	 * @return the config option for showcase mode
 	 */
 	public boolean isShowcaseEnabled() {
-		return plugin.getConfig().getBoolean(SHOWCASE_MODE, true) && isValidVersion();
+		return showcaseEnabled;
 	}
 	/**
 	 * Checks config (for override option) or references the compiled against server version
 	 * @return if the ignore version option is active, or the server version matches the supported showcase version
 	 */
 	public boolean isValidVersion() {
-		return plugin.getConfig().getBoolean(IGNORE_VERSION, false)
-			|| plugin.getServer().getVersion().contains(PlayerHandler.MC_VERSION);
+		return validVersion;
+	}
+	/**
+	 * Checks config to get the 'trade-prevalidation' setting.
+	 *
+	 * @return if trades are worked out off the main thread and committed on the next tick
+	 */
+	public boolean isTradePrevalidation() {
+		return tradePrevalidation;
+	}
+	/**
+	 * Checks config to get the 'trigger-redstone' setting.
+	 *
+	 * @return if shops power the block behind them after a trade
+	 */
+	public boolean isTriggerRedstone() {
+		return triggerRedstone;
 	}
 }
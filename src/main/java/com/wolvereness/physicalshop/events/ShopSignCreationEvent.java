@@ -1,10 +1,15 @@
 package com.wolvereness.physicalshop.events;
 
+import org.bukkit.Bukkit;
 import org.bukkit.event.Cancellable;
 import org.bukkit.event.Event;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.block.SignChangeEvent;
 
+import com.wolvereness.physicalshop.PhysicalShop;
+import com.wolvereness.physicalshop.Shop;
+import com.wolvereness.physicalshop.exception.InvalidSignException;
+
 /**
  * @author Wolfe
  * Licensed under GNU GPL v3
@@ -19,11 +24,23 @@ public class ShopSignCreationEvent extends Event implements Cancellable {
     }
     private boolean checkExistingChest;
     private final SignChangeEvent event;
+    private Shop shop;
     /**
      * @param event The event that caused this sign creation
+     * @deprecated the sign is parsed again when {@link #getShop()} is first called,
+     * use {@link #ShopSignCreationEvent(SignChangeEvent, Shop)} with the shop already parsed
      */
+    @Deprecated
     public ShopSignCreationEvent(final SignChangeEvent event) {
+        this(event, null);
+    }
+    /**
+     * @param event The event that caused this sign creation
+     * @param shop The shop parsed from the sign, the owner may not be filled in yet
+     */
+    public ShopSignCreationEvent(final SignChangeEvent event, final Shop shop) {
         this.event = event;
+        this.shop = shop;
     }
     /**
      * @return the SignChangeEvent that caused this event
@@ -34,6 +51,21 @@ public class ShopSignCreationEvent extends Event implements Cancellable {
     @Override
 	public HandlerList getHandlers() {
         return handlers;
+    }
+    /**
+     * The shop already parsed from the sign, which listeners should use instead of parsing the lines again.
+     * The owner is empty if it has not been filled in yet.
+     * @return the shop parsed from the sign, or null if the event was made without one and the sign is not a valid shop
+     */
+    public Shop getShop() {
+    	if (shop == null) {
+    		try {
+    			shop = new Shop(event.getLines(), (PhysicalShop) Bukkit.getPluginManager().getPlugin("PhysicalShop"), false);
+    		} catch (final InvalidSignException e) {
+    			return null;
+    		}
+    	}
+    	return shop;
     }
 	public boolean isCancelled() {
 		return event.isCancelled();
@@ -0,0 +1,102 @@
+package com.wolvereness.physicalshop.journal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Lists the segments that have been compacted into aggregate files, with the time of the latest trade in each.
+ * A segment only counts as compacted once it is in the manifest,
+ * and the manifest is always replaced as a whole, through a synced temporary file.
+ */
+public class CompactionManifest {
+	private static final int MAGIC = 0x50534D31;
+	private final TreeMap<Long, Long> compacted = new TreeMap<Long, Long>();
+	private final File file;
+	private final File temp;
+	/**
+	 * Loads the manifest, or starts an empty one if there is none
+	 * @param file the manifest file
+	 * @throws IOException if the manifest exists but could not be read
+	 */
+	public CompactionManifest(final File file) throws IOException {
+		this.file = file;
+		temp = new File(file.getPath() + ".tmp");
+		if (file.exists()) {
+			read(file);
+			if (temp.exists() && !temp.delete()) throw new IOException("Could not delete " + temp);
+		} else if (temp.exists()) {
+			// Interrupted after removing the old manifest, so the new one is complete
+			read(temp);
+			if (!temp.renameTo(file)) throw new IOException("Could not rename " + temp);
+		}
+	}
+	/**
+	 * @param segment sequence number of the segment
+	 * @param end time of the latest trade in the segment
+	 */
+	public void add(final long segment, final long end) {
+		compacted.put(segment, end);
+	}
+	/**
+	 * @param segment sequence number of the segment
+	 * @return true if the segment has been compacted
+	 */
+	public boolean contains(final long segment) {
+		return compacted.containsKey(segment);
+	}
+	/**
+	 * @return the compacted segments, oldest first, mapped to the time of their latest trade
+	 */
+	public Map<Long, Long> getCompacted() {
+		return compacted;
+	}
+	private void read(final File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) throw new IOException(file + " is not a compaction manifest");
+			for (int count = in.readInt(); count > 0; count--) {
+				final long segment = in.readLong();
+				compacted.put(segment, in.readLong());
+			}
+		} finally {
+			in.close();
+		}
+	}
+	/**
+	 * @param segment sequence number of the segment to forget
+	 */
+	public void remove(final long segment) {
+		compacted.remove(segment);
+	}
+	/**
+	 * Replaces the manifest file with the current contents
+	 * @throws IOException if the manifest could not be written
+	 */
+	public void save() throws IOException {
+		final FileOutputStream stream = new FileOutputStream(temp);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(compacted.size());
+			for (final Map.Entry<Long, Long> entry : compacted.entrySet()) {
+				out.writeLong(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) throw new IOException("Could not replace " + file);
+	}
+}
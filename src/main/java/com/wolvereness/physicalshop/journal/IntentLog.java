@@ -0,0 +1,303 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.*;
+import static java.util.logging.Level.SEVERE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Write-ahead log of trade intents. An intent, with a digest of the inventories involved and the planned exchange,
+ * is appended before a trade changes anything, and a completion marker once the trade is done or rolled back.<br>
+ * Entries are buffered in memory and written and synced as a group by {@link #commit()}.
+ * By default an intent is only on disk after the next commit, so a crash within the commit interval
+ * may lose the intents of trades that already changed inventories. With {@link #setSyncBegin(boolean)},
+ * every intent is written and synced by {@link #begin(String, String, int, int, int, byte, int, int, int, int, long)}
+ * before the trade changes anything, at the cost of a disk sync on the main thread per trade.
+ * Inventories only reach the disk when the world is saved, long after the intent did.
+ * Intents left without a completion marker are reported when the log is opened, and copied to {@value #UNRESOLVED}.
+ */
+public class IntentLog {
+	private static final byte ABORT = 3;
+	private static final byte COMPLETE = 2;
+	/**
+	 * File name of the intent log in the journal folder
+	 */
+	public static final String FILE = "intents.log";
+	private static final byte INTENT = 1;
+	/**
+	 * Size the log may grow to before it is cleared, once no intents are open
+	 */
+	private static final long MAX_SIZE = 1 << 20;
+	/**
+	 * Time after which an open intent is reported while running
+	 */
+	private static final long STUCK = 5000;
+	/**
+	 * File name that unresolved intents are copied to, in the journal folder
+	 */
+	public static final String UNRESOLVED = "intents-unresolved.txt";
+	private static String describe(final DataInputStream in, final long id) throws IOException {
+		final long timestamp = in.readLong();
+		final String player = in.readUTF();
+		final String world = in.readUTF();
+		final long location = in.readLong();
+		final byte direction = in.readByte();
+		final int material = in.readInt();
+		final int amount = in.readInt();
+		final int currency = in.readInt();
+		final int price = in.readInt();
+		final long digest = in.readLong();
+		return String.format(
+			"Trade %d at %tF %<tT by %s with the shop at %s (%d, %d, %d): %s %d of %d:%d for %d of %d:%d, inventory digest %016x",
+			id,
+			new Date(timestamp),
+			player,
+			world,
+			unpackX(location),
+			unpackY(location),
+			unpackZ(location),
+			direction == BUY ? "buy" : "sell",
+			amount,
+			material >>> 16,
+			material & 0xFFFF,
+			price,
+			currency >>> 16,
+			currency & 0xFFFF,
+			digest);
+	}
+	private final CRC32 checksum = new CRC32();
+	private final Object commitLock = new Object();
+	private final Logger logger;
+	private long nextId;
+	private final ConcurrentHashMap<Long, Long> open = new ConcurrentHashMap<Long, Long>();
+	private RandomAccessFile out;
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private volatile boolean syncBegin;
+	private ByteArrayOutputStream writing = new ByteArrayOutputStream(4096);
+	/**
+	 * Opens the log in the folder, reporting any intents left unresolved
+	 * @param folder the journal folder
+	 * @param logger logger to report unresolved intents to
+	 * @throws IOException if the log could not be read or opened
+	 */
+	public IntentLog(final File folder, final Logger logger) throws IOException {
+		if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create " + folder);
+		this.logger = logger;
+		out = new RandomAccessFile(new File(folder, FILE), "rw");
+		recover(folder);
+	}
+	/**
+	 * Appends an intent, before a trade changes anything. This should only be called from the main thread.
+	 * The intent is only durable once this returns if {@link #setSyncBegin(boolean) sync-before-mutate} is set,
+	 * otherwise once the next {@link #commit()} has run.
+	 * @param player name of the player trading
+	 * @param world name of the world the shop is in
+	 * @param x x coordinate of the shop sign
+	 * @param y y coordinate of the shop sign
+	 * @param z z coordinate of the shop sign
+	 * @param direction {@link JournalFormat#BUY} or {@link JournalFormat#SELL}
+	 * @param material key of the shop material
+	 * @param amount amount of material to trade
+	 * @param currency key of the currency material
+	 * @param price amount of currency to trade
+	 * @param digest digest of the inventories involved, before the trade
+	 * @return the id of the intent, to pass to {@link #end(long, boolean)}
+	 */
+	public long begin(
+			final String player,
+			final String world,
+			final int x,
+			final int y,
+			final int z,
+			final byte direction,
+			final int material,
+			final int amount,
+			final int currency,
+			final int price,
+			final long digest) {
+		final long id = nextId++;
+		final long timestamp = System.currentTimeMillis();
+		try {
+			record.reset();
+			recordOut.writeByte(INTENT);
+			recordOut.writeLong(id);
+			recordOut.writeLong(timestamp);
+			recordOut.writeUTF(player);
+			recordOut.writeUTF(world);
+			recordOut.writeLong(pack(x, y, z));
+			recordOut.writeByte(direction);
+			recordOut.writeInt(material);
+			recordOut.writeInt(amount);
+			recordOut.writeInt(currency);
+			recordOut.writeInt(price);
+			recordOut.writeLong(digest);
+		} catch (final IOException e) {
+			// Not thrown by a byte array
+		}
+		open.put(id, timestamp);
+		append();
+		if (syncBegin) {
+			commit();
+		}
+		return id;
+	}
+	private synchronized void append() {
+		final int length = record.size();
+		pending.write(length >>> 8);
+		pending.write(length);
+		try {
+			record.writeTo(pending);
+		} catch (final IOException e) {
+			// Not thrown by a byte array
+		}
+		checksum.reset();
+		checksum.update(record.toByteArray(), 0, length);
+		final int crc = (int) checksum.getValue();
+		pending.write(crc >>> 24);
+		pending.write(crc >>> 16);
+		pending.write(crc >>> 8);
+		pending.write(crc);
+	}
+	/**
+	 * Writes the last group to disk and closes the log
+	 */
+	public void close() {
+		synchronized (commitLock) {
+			if (out == null) return;
+			commit();
+			try {
+				out.close();
+			} catch (final IOException e) {
+			}
+			out = null;
+		}
+	}
+	/**
+	 * Writes everything appended since the last call, and syncs it to disk as one group.
+	 * This is meant to be called periodically from a background thread,
+	 * and is also called by {@link #begin(String, String, int, int, int, byte, int, int, int, int, long)} if it syncs.
+	 */
+	public void commit() {
+		synchronized (commitLock) {
+			if (out == null) return;
+			final ByteArrayOutputStream group;
+			final boolean clear;
+			synchronized (this) {
+				if (pending.size() == 0) return;
+				group = pending;
+				pending = writing;
+				writing = group;
+				clear = open.isEmpty();
+			}
+			try {
+				if (clear && out.length() > MAX_SIZE) {
+					// Every intent so far is resolved, so the log can start over
+					out.setLength(0);
+				} else {
+					out.seek(out.length());
+					out.write(group.toByteArray());
+				}
+				out.getFD().sync();
+			} catch (final IOException e) {
+				logger.log(SEVERE, "Failed to write the trade intent log", e);
+			}
+			group.reset();
+		}
+		final long now = System.currentTimeMillis();
+		for (final Map.Entry<Long, Long> entry : open.entrySet()) {
+			if (now - entry.getValue() > STUCK && open.replace(entry.getKey(), entry.getValue(), Long.MAX_VALUE)) {
+				// Kept open, so the log is not cleared before the next start reports it
+				logger.warning("Trade " + entry.getKey() + " did not finish, it will be reported as unresolved on the next start");
+			}
+		}
+	}
+	/**
+	 * Appends the completion marker for an intent. This should only be called from the main thread.
+	 * @param id the id from {@link #begin(String, String, int, int, int, byte, int, int, int, int, long)}
+	 * @param success true if the trade went through, false if it was rolled back
+	 */
+	public void end(final long id, final boolean success) {
+		record.reset();
+		try {
+			recordOut.writeByte(success ? COMPLETE : ABORT);
+			recordOut.writeLong(id);
+		} catch (final IOException e) {
+			// Not thrown by a byte array
+		}
+		append();
+		open.remove(id);
+	}
+	/**
+	 * Reads the log left by the last run, reporting intents without a completion marker, then starts it over
+	 */
+	private void recover(final File folder) throws IOException {
+		final Map<Long, String> unresolved = new LinkedHashMap<Long, String>();
+		final byte[] header = new byte[2];
+		final byte[] trailer = new byte[4];
+		out.seek(0);
+		try {
+			while (true) {
+				out.readFully(header);
+				final byte[] payload = new byte[(header[0] & 0xFF) << 8 | header[1] & 0xFF];
+				out.readFully(payload);
+				out.readFully(trailer);
+				checksum.reset();
+				checksum.update(payload);
+				if ((int) checksum.getValue() != readInt(trailer, 0)) {
+					break;
+				}
+				final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				final byte type = in.readByte();
+				final long id = in.readLong();
+				nextId = Math.max(nextId, id + 1);
+				if (type == INTENT) {
+					unresolved.put(id, describe(in, id));
+				} else {
+					unresolved.remove(id);
+				}
+			}
+		} catch (final EOFException e) {
+			// A partially written group is the end of the log
+		}
+		if (!unresolved.isEmpty()) {
+			final PrintWriter report = new PrintWriter(new FileWriter(new File(folder, UNRESOLVED), true));
+			try {
+				for (final String intent : unresolved.values()) {
+					logger.warning("Unresolved " + intent);
+					report.println(intent);
+				}
+			} finally {
+				report.close();
+			}
+			logger.warning(unresolved.size() + " trades were interrupted, check the inventories involved. They are listed in " + UNRESOLVED);
+		}
+		out.setLength(0);
+		out.getFD().sync();
+	}
+	/**
+	 * @param syncBegin true to write and sync every intent before {@link #begin(String, String, int, int, int, byte, int, int, int, int, long)} returns,
+	 * false to leave it to the next periodic {@link #commit()}
+	 */
+	public void setSyncBegin(final boolean syncBegin) {
+		this.syncBegin = syncBegin;
+	}
+}
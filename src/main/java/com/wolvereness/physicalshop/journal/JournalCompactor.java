@@ -0,0 +1,258 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.*;
+import static java.util.logging.Level.SEVERE;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Background job keeping the journal size flat over time.<br>
+ * Sealed segments whose latest trade is older than the raw retention are compacted into
+ * hourly aggregates, and aggregates older than the aggregate retention are removed.
+ * The aggregate file is synced before it is added to the {@link CompactionManifest},
+ * and the segment is only removed afterwards, so an interrupted run is finished or redone by the next one.
+ */
+public class JournalCompactor implements Runnable {
+	private static final class Bucket {
+		private final int currency;
+		private final byte direction;
+		private final long hour;
+		private final long location;
+		private final int material;
+		private final int world;
+		private Bucket(final byte[] record) {
+			final long timestamp = readLong(record, 0);
+			hour = timestamp - timestamp % HOUR;
+			world = readInt(record, 8);
+			location = readLong(record, 12);
+			direction = record[24];
+			material = readInt(record, 28);
+			currency = readInt(record, 40);
+		}
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Bucket)) return false;
+			final Bucket other = (Bucket) obj;
+			return	hour == other.hour
+					&& world == other.world
+					&& location == other.location
+					&& direction == other.direction
+					&& material == other.material
+					&& currency == other.currency;
+		}
+		@Override
+		public int hashCode() {
+			int hash = (int) (hour ^ hour >>> 32);
+			hash = hash * 31 + world;
+			hash = hash * 31 + (int) (location ^ location >>> 32);
+			hash = hash * 31 + direction;
+			hash = hash * 31 + material;
+			hash = hash * 31 + currency;
+			return hash;
+		}
+	}
+	private static final long DAY = 86400000L;
+	private static final long HOUR = 3600000L;
+	/**
+	 * File name of the manifest in the journal folder
+	 */
+	public static final String MANIFEST = "manifest.dat";
+	private static void delete(final File file) {
+		if (file.exists() && !file.delete()) {
+			// Still mapped somewhere, the next run tries again
+			file.deleteOnExit();
+		}
+	}
+	private volatile long aggregateRetention;
+	private final TradeJournal journal;
+	private final Logger logger;
+	private CompactionManifest manifest;
+	private volatile long rawRetention;
+	JournalCompactor(final TradeJournal journal, final Logger logger) {
+		this.journal = journal;
+		this.logger = logger;
+	}
+	private void aggregate(final long segment, final MappedByteBuffer buffer, final int records, final long end) throws IOException {
+		final Map<Bucket, long[]> buckets = new LinkedHashMap<Bucket, long[]>();
+		final byte[] scratch = new byte[AGGREGATE_RECORD_SIZE];
+		final CRC32 checksum = new CRC32();
+		buffer.position(HEADER_SIZE);
+		for (int record = 0; record < records; record++) {
+			buffer.get(scratch, 0, RECORD_SIZE);
+			if (!isValid(scratch, checksum)) {
+				break;
+			}
+			final Bucket key = new Bucket(scratch);
+			long[] totals = buckets.get(key);
+			if (totals == null) {
+				buckets.put(key, totals = new long[3]);
+			}
+			totals[0]++;
+			totals[1] += readInt(scratch, 32);
+			totals[2] += readInt(scratch, 36);
+		}
+		final File file = new File(journal.getFolder(), aggregateName(segment));
+		final File temp = new File(file.getPath() + ".tmp");
+		final FileOutputStream stream = new FileOutputStream(temp);
+		final OutputStream out = new BufferedOutputStream(stream);
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			writeHeader(header, AGGREGATE_MAGIC, segment, end);
+			out.write(header.array());
+			for (final Map.Entry<Bucket, long[]> entry : buckets.entrySet()) {
+				final Bucket key = entry.getKey();
+				final long[] totals = entry.getValue();
+				writeAggregate(scratch, checksum, key.hour, key.world, key.location, key.direction, key.material, key.currency, totals[0], totals[1], totals[2]);
+				out.write(scratch, 0, AGGREGATE_RECORD_SIZE);
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) throw new IOException("Could not replace " + file);
+	}
+	/**
+	 * Finishes or undoes anything left by an interrupted run
+	 */
+	private void cleanup(final CompactionManifest manifest) throws IOException {
+		final File folder = journal.getFolder();
+		final String[] files = folder.list();
+		if (files == null) return;
+		boolean adopted = false;
+		for (final String name : files) {
+			if (name.startsWith("trades-") && name.endsWith(".tmp")) {
+				delete(new File(folder, name));
+				continue;
+			}
+			final long segment = parseName(name, AGGREGATE_EXTENSION);
+			if (segment != -1 && !manifest.contains(segment)) {
+				if (new File(folder, name(segment)).exists()) {
+					// Written, but not listed yet, so it gets redone
+					delete(new File(folder, name));
+				} else {
+					manifest.add(segment, readEnd(new File(folder, name)));
+					adopted = true;
+				}
+			}
+		}
+		if (adopted) {
+			manifest.save();
+		}
+		for (final long segment : manifest.getCompacted().keySet()) {
+			delete(new File(folder, name(segment)));
+			delete(new File(folder, indexName(segment)));
+		}
+	}
+	private void compact() throws IOException {
+		if (manifest == null) {
+			manifest = new CompactionManifest(new File(journal.getFolder(), MANIFEST));
+		}
+		cleanup(manifest);
+		final long now = System.currentTimeMillis();
+		final long active = journal.getSequence();
+		final TradeHistory history = journal.getHistory();
+		final long[] segments = history.getSegments();
+		// Oldest first, stopping at the first segment that is still recent
+		for (int i = segments.length - 1; i >= 0; i--) {
+			final long segment = segments[i];
+			if (segment >= active) {
+				break;
+			}
+			if (manifest.contains(segment)) {
+				continue;
+			}
+			final MappedByteBuffer buffer = history.map(segment);
+			if (buffer == null) {
+				continue;
+			}
+			final SegmentIndex index = history.getIndex(segment, buffer);
+			final long end = index.getRecords() == 0 ? 0 : index.getEnd();
+			if (now - end < rawRetention) {
+				break;
+			}
+			aggregate(segment, buffer, index.getRecords(), end);
+			manifest.add(segment, end);
+			manifest.save();
+			history.forget(segment);
+			delete(new File(journal.getFolder(), name(segment)));
+			delete(new File(journal.getFolder(), indexName(segment)));
+		}
+		if (aggregateRetention <= 0) return;
+		boolean removed = false;
+		for (final Iterator<Map.Entry<Long, Long>> it = manifest.getCompacted().entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<Long, Long> entry = it.next();
+			if (now - entry.getValue() < aggregateRetention) {
+				continue;
+			}
+			it.remove();
+			removed = true;
+		}
+		if (!removed) return;
+		manifest.save();
+		cleanupAggregates(manifest);
+	}
+	private void cleanupAggregates(final CompactionManifest manifest) {
+		final File folder = journal.getFolder();
+		final String[] files = folder.list();
+		if (files == null) return;
+		for (final String name : files) {
+			final long segment = parseName(name, AGGREGATE_EXTENSION);
+			if (segment != -1 && !manifest.contains(segment) && !new File(folder, name(segment)).exists()) {
+				delete(new File(folder, name));
+			}
+		}
+	}
+	private long readEnd(final File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final byte[] header = new byte[HEADER_SIZE];
+			int read = 0;
+			while (read < HEADER_SIZE) {
+				final int count = in.read(header, read, HEADER_SIZE - read);
+				if (count == -1) throw new IOException(file + " is not an aggregate file");
+				read += count;
+			}
+			if (readInt(header, 0) != AGGREGATE_MAGIC) throw new IOException(file + " is not an aggregate file");
+			return readLong(header, 24);
+		} finally {
+			in.close();
+		}
+	}
+	/**
+	 * Runs compaction once. This may take a while, and should not be run on the main thread.
+	 */
+	public synchronized void run() {
+		if (rawRetention <= 0) return;
+		try {
+			compact();
+		} catch (final IOException e) {
+			logger.log(SEVERE, "Failed to compact the trade journal", e);
+			// Start over from what is on disk
+			manifest = null;
+		}
+	}
+	/**
+	 * @param rawDays days to keep raw trades for, or 0 to never compact
+	 * @param aggregateDays days to keep hourly aggregates for, or 0 to keep them forever
+	 */
+	public void setRetention(final int rawDays, final int aggregateDays) {
+		rawRetention = rawDays * DAY;
+		aggregateRetention = aggregateDays * DAY;
+	}
+}
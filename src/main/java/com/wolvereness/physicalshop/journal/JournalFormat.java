@@ -0,0 +1,362 @@
+package com.wolvereness.physicalshop.journal;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Layout of the trade journal segment files.<br>
+ * Each segment starts with a {@value #HEADER_SIZE} byte header, followed by
+ * fixed size records of {@value #RECORD_SIZE} bytes:
+ * <pre>
+ *  0 long  timestamp, milliseconds
+ *  8 int   world id
+ * 12 long  packed shop coordinates
+ * 20 int   player id
+ * 24 byte  direction
+ * 25 byte  reserved
+ * 26 short reserved
+ * 28 int   material key
+ * 32 int   amount
+ * 36 int   price
+ * 40 int   currency key
+ * 44 int   checksum of the previous bytes
+ * </pre>
+ * World and player ids refer to the {@link NameTable} of the journal.
+ * Segments are preallocated, so the first record with a bad checksum marks the end.<br>
+ * Old segments are compacted into aggregate files, with the same header and
+ * records of {@value #AGGREGATE_RECORD_SIZE} bytes,
+ * holding hourly totals per shop, direction, material and currency:
+ * <pre>
+ *  0 long  start of the hour, milliseconds
+ *  8 int   world id
+ * 12 long  packed shop coordinates
+ * 20 byte  direction
+ * 21 byte  reserved
+ * 22 short reserved
+ * 24 int   material key
+ * 28 int   currency key
+ * 32 long  amount of trades
+ * 40 long  total amount
+ * 48 long  total price
+ * 56 int   reserved
+ * 60 int   checksum of the previous bytes
+ * </pre>
+ * The creation time in the header of an aggregate file is the time of the latest trade it covers.
+ */
+public final class JournalFormat {
+	/**
+	 * File extension of aggregate files
+	 */
+	public static final String AGGREGATE_EXTENSION = ".agg";
+	/**
+	 * Magic number at the start of each aggregate file, "PSA1"
+	 */
+	public static final int AGGREGATE_MAGIC = 0x50534131;
+	/**
+	 * Size of a single aggregate record
+	 */
+	public static final int AGGREGATE_RECORD_SIZE = 64;
+	/**
+	 * Version of the aggregate layout
+	 */
+	public static final int AGGREGATE_VERSION = 1;
+	/**
+	 * Direction of a trade where the player bought from the shop
+	 */
+	public static final byte BUY = 0;
+	/**
+	 * Size of the segment header
+	 */
+	public static final int HEADER_SIZE = 32;
+	/**
+	 * File extension of segment indexes
+	 */
+	public static final String INDEX_EXTENSION = ".idx";
+	/**
+	 * Magic number at the start of each segment, "PSJ1"
+	 */
+	public static final int MAGIC = 0x50534A31;
+	/**
+	 * Size of a single record
+	 */
+	public static final int RECORD_SIZE = 48;
+	/**
+	 * Direction of a trade where the player sold to the shop
+	 */
+	public static final byte SELL = 1;
+	/**
+	 * File extension of segments
+	 */
+	public static final String SEGMENT_EXTENSION = ".seg";
+	/**
+	 * Version of the layout
+	 */
+	public static final int VERSION = 1;
+
+	private static final int AGGREGATE_CHECKSUM = 60;
+	private static final int CHECKSUM = 44;
+
+	/**
+	 * @param segment sequence number of the segment
+	 * @return the file name for the aggregates of the segment
+	 */
+	public static String aggregateName(final long segment) {
+		return String.format("trades-%08d%s", segment, AGGREGATE_EXTENSION);
+	}
+
+	/**
+	 * @param segment sequence number of the segment
+	 * @return the file name for the index of the segment
+	 */
+	public static String indexName(final long segment) {
+		return String.format("trades-%08d%s", segment, INDEX_EXTENSION);
+	}
+
+	/**
+	 * @param buffer buffer positioned at the start of a record, position is unchanged
+	 * @param scratch a byte array of at least {@link #RECORD_SIZE}
+	 * @param checksum checksum to reuse
+	 * @return true if the record at the current position is complete
+	 */
+	public static boolean isValid(final ByteBuffer buffer, final byte[] scratch, final CRC32 checksum) {
+		final int position = buffer.position();
+		buffer.get(scratch, 0, RECORD_SIZE);
+		buffer.position(position);
+		return isValid(scratch, checksum);
+	}
+
+	/**
+	 * @param record bytes of a record
+	 * @param checksum checksum to reuse
+	 * @return true if the record is complete
+	 */
+	public static boolean isValid(final byte[] record, final CRC32 checksum) {
+		if (readLong(record, 0) == 0) return false;
+		checksum.reset();
+		checksum.update(record, 0, CHECKSUM);
+		return (int) checksum.getValue() == readInt(record, CHECKSUM);
+	}
+
+	/**
+	 * @param record bytes of an aggregate record
+	 * @param checksum checksum to reuse
+	 * @return true if the aggregate record is complete
+	 */
+	public static boolean isValidAggregate(final byte[] record, final CRC32 checksum) {
+		if (readLong(record, 0) == 0) return false;
+		checksum.reset();
+		checksum.update(record, 0, AGGREGATE_CHECKSUM);
+		return (int) checksum.getValue() == readInt(record, AGGREGATE_CHECKSUM);
+	}
+
+	/**
+	 * @param segment sequence number of the segment
+	 * @return the file name for the segment
+	 */
+	public static String name(final long segment) {
+		return String.format("trades-%08d%s", segment, SEGMENT_EXTENSION);
+	}
+
+	/**
+	 * Packs block coordinates into a single long, 26 bits for x and z, 12 for y
+	 * @param x x coordinate
+	 * @param y y coordinate
+	 * @param z z coordinate
+	 * @return the packed coordinates
+	 */
+	public static long pack(final int x, final int y, final int z) {
+		return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+	}
+
+	/**
+	 * @param name file name of a segment
+	 * @return the sequence number, or -1 if not a segment
+	 */
+	public static long parseName(final String name) {
+		return parseName(name, SEGMENT_EXTENSION);
+	}
+
+	/**
+	 * @param name file name of a segment, index, or aggregate file
+	 * @param extension the extension expected
+	 * @return the sequence number, or -1 if not a file with the extension
+	 */
+	public static long parseName(final String name, final String extension) {
+		if (!name.startsWith("trades-") || !name.endsWith(extension)) return -1;
+		try {
+			return Long.parseLong(name.substring(7, name.length() - extension.length()));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	static int readInt(final byte[] bytes, final int index) {
+		return	(bytes[index] & 0xFF) << 24
+				| (bytes[index + 1] & 0xFF) << 16
+				| (bytes[index + 2] & 0xFF) << 8
+				| (bytes[index + 3] & 0xFF);
+	}
+
+	static long readLong(final byte[] bytes, final int index) {
+		return (long) readInt(bytes, index) << 32 | readInt(bytes, index + 4) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @param packed packed coordinates
+	 * @return the x coordinate
+	 */
+	public static int unpackX(final long packed) {
+		return (int) (packed >> 38);
+	}
+
+	/**
+	 * @param packed packed coordinates
+	 * @return the y coordinate
+	 */
+	public static int unpackY(final long packed) {
+		return (int) (packed << 52 >> 52);
+	}
+
+	/**
+	 * @param packed packed coordinates
+	 * @return the z coordinate
+	 */
+	public static int unpackZ(final long packed) {
+		return (int) (packed << 26 >> 38);
+	}
+
+	/**
+	 * Encodes a record, including the checksum
+	 * @param scratch a byte array of at least {@link #RECORD_SIZE}, to write the record into
+	 * @param checksum checksum to reuse
+	 * @param timestamp time of the trade
+	 * @param world world id
+	 * @param location packed shop coordinates
+	 * @param player player id
+	 * @param direction {@link #BUY} or {@link #SELL}
+	 * @param material material key
+	 * @param amount amount of material
+	 * @param price amount of currency
+	 * @param currency currency key
+	 */
+	public static void write(
+			final byte[] scratch,
+			final CRC32 checksum,
+			final long timestamp,
+			final int world,
+			final long location,
+			final int player,
+			final byte direction,
+			final int material,
+			final int amount,
+			final int price,
+			final int currency) {
+		writeLong(scratch, 0, timestamp);
+		writeInt(scratch, 8, world);
+		writeLong(scratch, 12, location);
+		writeInt(scratch, 20, player);
+		scratch[24] = direction;
+		scratch[25] = 0;
+		scratch[26] = 0;
+		scratch[27] = 0;
+		writeInt(scratch, 28, material);
+		writeInt(scratch, 32, amount);
+		writeInt(scratch, 36, price);
+		writeInt(scratch, 40, currency);
+		checksum.reset();
+		checksum.update(scratch, 0, CHECKSUM);
+		writeInt(scratch, CHECKSUM, (int) checksum.getValue());
+	}
+
+	/**
+	 * Encodes an aggregate record, including the checksum
+	 * @param scratch a byte array of at least {@link #AGGREGATE_RECORD_SIZE}, to write the record into
+	 * @param checksum checksum to reuse
+	 * @param hour start of the hour
+	 * @param world world id
+	 * @param location packed shop coordinates
+	 * @param direction {@link #BUY} or {@link #SELL}
+	 * @param material material key
+	 * @param currency currency key
+	 * @param trades amount of trades
+	 * @param amount total amount of material
+	 * @param price total amount of currency
+	 */
+	public static void writeAggregate(
+			final byte[] scratch,
+			final CRC32 checksum,
+			final long hour,
+			final int world,
+			final long location,
+			final byte direction,
+			final int material,
+			final int currency,
+			final long trades,
+			final long amount,
+			final long price) {
+		writeLong(scratch, 0, hour);
+		writeInt(scratch, 8, world);
+		writeLong(scratch, 12, location);
+		scratch[20] = direction;
+		scratch[21] = 0;
+		scratch[22] = 0;
+		scratch[23] = 0;
+		writeInt(scratch, 24, material);
+		writeInt(scratch, 28, currency);
+		writeLong(scratch, 32, trades);
+		writeLong(scratch, 40, amount);
+		writeLong(scratch, 48, price);
+		writeInt(scratch, 56, 0);
+		checksum.reset();
+		checksum.update(scratch, 0, AGGREGATE_CHECKSUM);
+		writeInt(scratch, AGGREGATE_CHECKSUM, (int) checksum.getValue());
+	}
+
+	/**
+	 * Writes the segment header
+	 * @param buffer buffer to write at the current position
+	 * @param segment sequence number of the segment
+	 * @param created creation time of the segment
+	 */
+	public static void writeHeader(final ByteBuffer buffer, final long segment, final long created) {
+		writeHeader(buffer, MAGIC, segment, created);
+	}
+
+	/**
+	 * Writes a header
+	 * @param buffer buffer to write at the current position
+	 * @param magic {@link #MAGIC} for segments, or {@link #AGGREGATE_MAGIC} for aggregate files
+	 * @param segment sequence number of the segment
+	 * @param created creation time of the segment, or time of the latest trade for aggregate files
+	 */
+	public static void writeHeader(final ByteBuffer buffer, final int magic, final long segment, final long created) {
+		buffer.putInt(magic);
+		if (magic == AGGREGATE_MAGIC) {
+			buffer.putInt(AGGREGATE_VERSION);
+			buffer.putInt(AGGREGATE_RECORD_SIZE);
+		} else {
+			buffer.putInt(VERSION);
+			buffer.putInt(RECORD_SIZE);
+		}
+		buffer.putInt(0);
+		buffer.putLong(segment);
+		buffer.putLong(created);
+	}
+
+	private static void writeInt(final byte[] bytes, final int index, final int value) {
+		bytes[index] = (byte) (value >>> 24);
+		bytes[index + 1] = (byte) (value >>> 16);
+		bytes[index + 2] = (byte) (value >>> 8);
+		bytes[index + 3] = (byte) value;
+	}
+
+	private static void writeLong(final byte[] bytes, final int index, final long value) {
+		writeInt(bytes, index, (int) (value >>> 32));
+		writeInt(bytes, index + 4, (int) value);
+	}
+
+	private JournalFormat() {
+	}
+}
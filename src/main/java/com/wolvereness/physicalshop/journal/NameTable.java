@@ -0,0 +1,108 @@
+package com.wolvereness.physicalshop.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Append-only table of the world and player names referenced by journal records.
+ * Each entry is the id followed by the name, as written by {@link java.io.DataOutput}.
+ * Ids are assigned in order, starting at 0.
+ */
+public class NameTable {
+	private boolean dirty;
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+	private DataOutputStream out;
+	private final FileOutputStream stream;
+	/**
+	 * Loads the table from the file, and opens it for appending
+	 * @param file the file backing the table
+	 * @throws IOException if the file could not be read or opened
+	 */
+	public NameTable(final File file) throws IOException {
+		if (file.exists()) {
+			final RandomAccessFile in = new RandomAccessFile(file, "rw");
+			long valid = 0;
+			try {
+				while (true) {
+					final int id = in.readInt();
+					final String name = in.readUTF();
+					if (id != names.size()) throw new IOException("Name table " + file + " is out of order at " + id);
+					ids.put(name, id);
+					names.add(name);
+					valid = in.getFilePointer();
+				}
+			} catch (final EOFException e) {
+				// A partially written trailing entry is dropped, so new entries line up
+				in.setLength(valid);
+			} finally {
+				in.close();
+			}
+		}
+		stream = new FileOutputStream(file, true);
+		out = new DataOutputStream(new BufferedOutputStream(stream));
+	}
+	/**
+	 * Closes the table for appending
+	 */
+	public synchronized void close() {
+		if (out == null) return;
+		try {
+			out.close();
+		} catch (final IOException e) {
+		}
+		out = null;
+	}
+	/**
+	 * Gets the id of the name, adding it if needed. New entries are not durable until {@link #sync()}.
+	 * @param name the name to look up
+	 * @return the id of the name
+	 * @throws IOException if the name could not be added
+	 */
+	public synchronized int getId(final String name) throws IOException {
+		final Integer id = ids.get(name);
+		if (id != null) return id;
+		final int newId = names.size();
+		out.writeInt(newId);
+		out.writeUTF(name);
+		ids.put(name, newId);
+		names.add(name);
+		dirty = true;
+		return newId;
+	}
+	/**
+	 * @param name the name to look up
+	 * @return the id of the name, or -1 if it is not in the table
+	 */
+	public synchronized int findId(final String name) {
+		final Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+	/**
+	 * @param id id to look up
+	 * @return the name for the id, or null if unknown
+	 */
+	public synchronized String getName(final int id) {
+		return id < 0 || id >= names.size() ? null : names.get(id);
+	}
+	/**
+	 * Forces new entries to disk
+	 * @throws IOException if the entries could not be written
+	 */
+	public synchronized void sync() throws IOException {
+		if (out == null || !dirty) return;
+		out.flush();
+		stream.getFD().sync();
+		dirty = false;
+	}
+}
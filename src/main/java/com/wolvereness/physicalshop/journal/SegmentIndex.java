@@ -0,0 +1,226 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Sparse index of a segment. Records are grouped in blocks of {@value #BLOCK_RECORDS},
+ * and each block keeps its time range and Bloom filters of the players and shops in it,
+ * so a query only has to read the blocks that may match.
+ */
+public class SegmentIndex {
+	/**
+	 * Amount of records covered by each block
+	 */
+	public static final int BLOCK_RECORDS = 256;
+	/**
+	 * Bits in each Bloom filter, as longs
+	 */
+	private static final int FILTER_WORDS = 16;
+	private static final int MAGIC = 0x50534931;
+	private static final int VERSION = 1;
+	/**
+	 * Builds the index of the records in the buffer
+	 * @param segment buffer positioned at the first record, the position is unchanged
+	 * @return the index of all valid records
+	 */
+	public static SegmentIndex build(final ByteBuffer segment) {
+		final ByteBuffer buffer = segment.duplicate();
+		final byte[] scratch = new byte[RECORD_SIZE];
+		final CRC32 checksum = new CRC32();
+		final int capacity = buffer.remaining() / RECORD_SIZE;
+		final int maxBlocks = (capacity + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+		final long[] minTimes = new long[maxBlocks];
+		final long[] maxTimes = new long[maxBlocks];
+		final long[] players = new long[maxBlocks * FILTER_WORDS];
+		final long[] shops = new long[maxBlocks * FILTER_WORDS];
+		int records = 0;
+		while (records < capacity) {
+			buffer.get(scratch, 0, RECORD_SIZE);
+			if (!isValid(scratch, checksum)) {
+				break;
+			}
+			final int block = records / BLOCK_RECORDS;
+			final long timestamp = readLong(scratch, 0);
+			if (records % BLOCK_RECORDS == 0 || timestamp < minTimes[block]) {
+				minTimes[block] = timestamp;
+			}
+			if (timestamp > maxTimes[block]) {
+				maxTimes[block] = timestamp;
+			}
+			add(players, block, hash(readInt(scratch, 20)));
+			add(shops, block, shopHash(readInt(scratch, 8), readLong(scratch, 12)));
+			records++;
+		}
+		final int blocks = (records + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+		final SegmentIndex index = new SegmentIndex(records, blocks);
+		System.arraycopy(minTimes, 0, index.minTimes, 0, blocks);
+		System.arraycopy(maxTimes, 0, index.maxTimes, 0, blocks);
+		System.arraycopy(players, 0, index.players, 0, blocks * FILTER_WORDS);
+		System.arraycopy(shops, 0, index.shops, 0, blocks * FILTER_WORDS);
+		return index;
+	}
+	private static void add(final long[] filters, final int block, final int hash) {
+		final int base = block * FILTER_WORDS;
+		for (int i = 0, h = hash; i < 3; i++, h >>>= 10) {
+			final int bit = h & (FILTER_WORDS * 64 - 1);
+			filters[base + (bit >>> 6)] |= 1L << bit;
+		}
+	}
+	private static boolean contains(final long[] filters, final int block, final int hash) {
+		final int base = block * FILTER_WORDS;
+		for (int i = 0, h = hash; i < 3; i++, h >>>= 10) {
+			final int bit = h & (FILTER_WORDS * 64 - 1);
+			if ((filters[base + (bit >>> 6)] & 1L << bit) == 0) return false;
+		}
+		return true;
+	}
+	private static int hash(int h) {
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+	/**
+	 * Reads an index written by {@link #write(File)}
+	 * @param file the index file
+	 * @return the index, or null if the file is not a valid index
+	 * @throws IOException if the file could not be read
+	 */
+	public static SegmentIndex read(final File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != BLOCK_RECORDS) return null;
+			final int records = in.readInt();
+			final int blocks = in.readInt();
+			if (blocks != (records + BLOCK_RECORDS - 1) / BLOCK_RECORDS
+					|| file.length() != 20 + blocks * (16L + FILTER_WORDS * 16L)) return null;
+			final SegmentIndex index = new SegmentIndex(records, blocks);
+			for (int block = 0; block < blocks; block++) {
+				index.minTimes[block] = in.readLong();
+				index.maxTimes[block] = in.readLong();
+				for (int i = block * FILTER_WORDS, end = i + FILTER_WORDS; i < end; i++) {
+					index.players[i] = in.readLong();
+				}
+				for (int i = block * FILTER_WORDS, end = i + FILTER_WORDS; i < end; i++) {
+					index.shops[i] = in.readLong();
+				}
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+	/**
+	 * @param world world id
+	 * @param location packed coordinates
+	 * @return hash used for the shop filters
+	 */
+	private static int shopHash(final int world, final long location) {
+		return hash(world * 31 + (int) (location ^ location >>> 32));
+	}
+	private final int blocks;
+	private final long[] maxTimes;
+	private final long[] minTimes;
+	private final long[] players;
+	private final int records;
+	private final long[] shops;
+	private SegmentIndex(final int records, final int blocks) {
+		this.records = records;
+		this.blocks = blocks;
+		minTimes = new long[blocks];
+		maxTimes = new long[blocks];
+		players = new long[blocks * FILTER_WORDS];
+		shops = new long[blocks * FILTER_WORDS];
+	}
+	/**
+	 * @return the amount of blocks
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+	/**
+	 * @return the latest time in the segment, or 0 if empty
+	 */
+	public long getEnd() {
+		long end = 0;
+		for (int block = 0; block < blocks; block++) {
+			end = Math.max(end, maxTimes[block]);
+		}
+		return end;
+	}
+	/**
+	 * @return the amount of valid records
+	 */
+	public int getRecords() {
+		return records;
+	}
+	/**
+	 * @return the earliest time in the segment, or {@link Long#MAX_VALUE} if empty
+	 */
+	public long getStart() {
+		long start = Long.MAX_VALUE;
+		for (int block = 0; block < blocks; block++) {
+			start = Math.min(start, minTimes[block]);
+		}
+		return start;
+	}
+	/**
+	 * @param block the block to check
+	 * @param player player id to look for, or -1 for any
+	 * @param world world id to look for, or -1 for any shop
+	 * @param location packed coordinates of the shop, if looking for a shop
+	 * @param from earliest time to include
+	 * @param to latest time to include
+	 * @return false if the block definitely has no matching records
+	 */
+	public boolean mayContain(final int block, final int player, final int world, final long location, final long from, final long to) {
+		if (minTimes[block] > to || maxTimes[block] < from) return false;
+		if (player != -1 && !contains(players, block, hash(player))) return false;
+		if (world != -1 && !contains(shops, block, shopHash(world, location))) return false;
+		return true;
+	}
+	/**
+	 * Writes the index to a file, replacing it only once completely written
+	 * @param file the index file
+	 * @throws IOException if the file could not be written
+	 */
+	public void write(final File file) throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(BLOCK_RECORDS);
+			out.writeInt(records);
+			out.writeInt(blocks);
+			for (int block = 0; block < blocks; block++) {
+				out.writeLong(minTimes[block]);
+				out.writeLong(maxTimes[block]);
+				for (int i = block * FILTER_WORDS, end = i + FILTER_WORDS; i < end; i++) {
+					out.writeLong(players[i]);
+				}
+				for (int i = block * FILTER_WORDS, end = i + FILTER_WORDS; i < end; i++) {
+					out.writeLong(shops[i]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete() || !temp.renameTo(file)) throw new IOException("Could not replace " + file);
+	}
+}
@@ -0,0 +1,338 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.pack;
+import static java.util.logging.Level.SEVERE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+import com.wolvereness.physicalshop.Rate;
+import com.wolvereness.physicalshop.ShopIndex.Change;
+import com.wolvereness.physicalshop.ShopIndex.ChangeListener;
+import com.wolvereness.physicalshop.ShopIndex.Entry;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Feed of changes to the shop index, for external consumers such as map renderers.<br>
+ * Each tick's changes are encoded on the main thread and written by an async task to segment files,
+ * named for the offset of their first record, which are rotated once they pass the segment size.
+ * Every record is an int length followed by:<br>
+ * offset (long), type (byte), timestamp (long), world (UTF), packed location (long, see {@link JournalFormat#pack(int, int, int)}),
+ * owner (UTF), material key (int), buy rate and sell rate (each a boolean, then amount, price and currency key as ints if true),
+ * items, buy capital and sell capital (ints).<br>
+ * Offsets count records and carry on across restarts, so a consumer can resume from the segment
+ * with the greatest starting offset not past the last offset it read.
+ * Removals carry the shop as it was.<br>
+ * Records that fail to be written are kept and tried again, ahead of anything newer, so offsets never skip.
+ * After {@value #MAX_FAILURES} failures in a row the feed stops.
+ */
+public class ShopFeed implements ChangeListener {
+	/**
+	 * A shop was created
+	 */
+	public static final byte CREATED = 1;
+	/**
+	 * A shop was destroyed
+	 */
+	public static final byte DESTROYED = 2;
+	/**
+	 * Extension of the feed segments
+	 */
+	public static final String EXTENSION = ".feed";
+	/**
+	 * The chunk of a shop was loaded or scanned again
+	 */
+	public static final byte LOADED = 3;
+	/**
+	 * Failed writes in a row before the feed stops
+	 */
+	public static final int MAX_FAILURES = 10;
+	/**
+	 * The owner, material or rates of a shop changed
+	 */
+	public static final byte PRICE = 5;
+	private static final long RETRY_TICKS = 100;
+	/**
+	 * Only the stock of a shop changed
+	 */
+	public static final byte STOCK = 6;
+	/**
+	 * The chunk of a shop was unloaded
+	 */
+	public static final byte UNLOADED = 4;
+	/**
+	 * @param offset offset of the first record
+	 * @return the file name of the segment
+	 */
+	public static String name(final long offset) {
+		return String.format("shops-%016d%s", offset, EXTENSION);
+	}
+	/**
+	 * Opens the feed in the folder, continuing the offsets of the last segment
+	 * @param folder folder to keep the segments in
+	 * @param segmentSize size a segment may reach before rotating, in bytes
+	 * @param segments the amount of segments to keep
+	 * @param plugin plugin to schedule writes for
+	 * @return the opened feed
+	 * @throws IOException if the last segment could not be read
+	 */
+	public static ShopFeed open(final File folder, final int segmentSize, final int segments, final Plugin plugin) throws IOException {
+		if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create " + folder);
+		final ShopFeed feed = new ShopFeed(folder, segmentSize, segments, plugin);
+		final long[] starts = feed.listSegments();
+		if (starts.length == 0) {
+			feed.rotate(0);
+		} else {
+			feed.recover(starts[starts.length - 1]);
+		}
+		return feed;
+	}
+	/**
+	 * @param name file name of a segment
+	 * @return the offset of its first record, or -1 if not a segment
+	 */
+	public static long parseName(final String name) {
+		if (!name.startsWith("shops-") || !name.endsWith(EXTENSION)) return -1;
+		try {
+			return Long.parseLong(name.substring(6, name.length() - EXTENSION.length()));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+	private static void writeRate(final DataOutputStream out, final Rate rate) throws IOException {
+		out.writeBoolean(rate != null);
+		if (rate == null) return;
+		out.writeInt(rate.getAmount());
+		out.writeInt(rate.getPrice());
+		out.writeInt(rate.getMaterial().getKey());
+	}
+	private volatile boolean closed;
+	private int failures;
+	private final File folder;
+	private long nextOffset;
+	private RandomAccessFile out;
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+	private long pendingOffset;
+	private final Plugin plugin;
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+	private boolean scheduled;
+	private final int segments;
+	private final int segmentSize;
+	private final Runnable writeTask = new Runnable() {
+		public void run() {
+			write();
+		}};
+	private ByteArrayOutputStream writing = new ByteArrayOutputStream(4096);
+	private final Object writeLock = new Object();
+	private final AtomicLong written = new AtomicLong();
+	private String writingName;
+	private ShopFeed(final File folder, final int segmentSize, final int segments, final Plugin plugin) {
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		this.segments = Math.max(1, segments);
+		this.plugin = plugin;
+	}
+	/**
+	 * Writes anything pending and closes the feed. Changes delivered afterwards are ignored.
+	 */
+	public void close() {
+		synchronized (writeLock) {
+			if (out == null) return;
+			write();
+			stop();
+		}
+	}
+	private long[] listSegments() {
+		final String[] names = folder.list();
+		if (names == null) return new long[0];
+		long[] starts = new long[names.length];
+		int count = 0;
+		for (final String name : names) {
+			final long start = parseName(name);
+			if (start != -1) {
+				starts[count++] = start;
+			}
+		}
+		starts = Arrays.copyOf(starts, count);
+		Arrays.sort(starts);
+		return starts;
+	}
+	/**
+	 * Reads the last segment to find the next offset, cutting off a record left partially written
+	 */
+	private void recover(final long start) throws IOException {
+		final File file = new File(folder, name(start));
+		out = new RandomAccessFile(file, "rw");
+		writingName = file.getName();
+		long next = start;
+		long end = 0;
+		try {
+			while (true) {
+				out.seek(end);
+				final int length = out.readInt();
+				if (length < 8 || out.length() - end - 4 < length) {
+					break;
+				}
+				next = out.readLong() + 1;
+				end += 4 + length;
+			}
+		} catch (final EOFException e) {
+			// The end of the segment
+		}
+		out.setLength(end);
+		out.seek(end);
+		nextOffset = pendingOffset = next;
+	}
+	/**
+	 * Starts a new segment, and deletes the oldest past the amount to keep
+	 */
+	private void rotate(final long start) throws IOException {
+		final File file = new File(folder, name(start));
+		final RandomAccessFile next = new RandomAccessFile(file, "rw");
+		if (out != null) {
+			out.close();
+		}
+		out = next;
+		out.setLength(0);
+		writingName = file.getName();
+		final long[] starts = listSegments();
+		for (int i = 0; i < starts.length - segments; i++) {
+			if (!new File(folder, name(starts[i])).delete()) {
+				plugin.getLogger().warning("Failed to delete shop feed segment " + name(starts[i]));
+			}
+		}
+	}
+	public void shopsChanged(final List<Change> changes) {
+		if (closed) return;
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (final Change change : changes) {
+				final byte type;
+				if (change.isAdded()) {
+					type = change.isChunk() ? LOADED : CREATED;
+				} else if (change.isRemoved()) {
+					type = change.isChunk() ? UNLOADED : DESTROYED;
+				} else {
+					type = change.getCurrent().hasSameTerms(change.getPrevious()) ? STOCK : PRICE;
+				}
+				final Entry entry = change.isRemoved() ? change.getPrevious() : change.getCurrent();
+				record.reset();
+				try {
+					recordOut.writeLong(nextOffset++);
+					recordOut.writeByte(type);
+					recordOut.writeLong(now);
+					recordOut.writeUTF(entry.getWorld());
+					recordOut.writeLong(pack(entry.getX(), entry.getY(), entry.getZ()));
+					recordOut.writeUTF(entry.getOwner());
+					recordOut.writeInt(entry.getMaterial().getKey());
+					writeRate(recordOut, entry.getBuyRate());
+					writeRate(recordOut, entry.getSellRate());
+					recordOut.writeInt(entry.getItems());
+					recordOut.writeInt(entry.getBuyCapital());
+					recordOut.writeInt(entry.getSellCapital());
+					new DataOutputStream(pending).writeInt(record.size());
+					record.writeTo(pending);
+				} catch (final IOException e) {
+					// Not thrown by a byte array
+				}
+			}
+			if (scheduled) return;
+			scheduled = plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, writeTask) != -1;
+		}
+	}
+	/**
+	 * Closes the segment being written, and ignores anything afterwards
+	 */
+	private void stop() {
+		closed = true;
+		try {
+			out.close();
+		} catch (final IOException e) {
+		}
+		out = null;
+		synchronized (this) {
+			pending.reset();
+		}
+	}
+	/**
+	 * Prints the state of the feed
+	 * @param sender The person to send the output to
+	 */
+	public void verbose(final CommandSender sender) {
+		sender.sendMessage("Shop feed: " + written.get() + " records written, next offset " + nextOffset + ", writing " + writingName);
+	}
+	/**
+	 * Writes every record encoded since the last call. This is called from an async task.
+	 */
+	private void write() {
+		synchronized (writeLock) {
+			if (out == null) return;
+			final ByteArrayOutputStream group;
+			final long start;
+			final long count;
+			synchronized (this) {
+				scheduled = false;
+				if (pending.size() == 0) return;
+				group = pending;
+				pending = writing;
+				writing = group;
+				start = pendingOffset;
+				count = nextOffset - pendingOffset;
+				pendingOffset = nextOffset;
+			}
+			long end = -1;
+			try {
+				if (out.length() >= segmentSize) {
+					rotate(start);
+				}
+				out.seek(end = out.length());
+				out.write(group.toByteArray());
+				written.addAndGet(count);
+			} catch (final IOException e) {
+				if (++failures >= MAX_FAILURES) {
+					plugin.getLogger().log(SEVERE, "Failed to write the shop feed " + failures + " times in a row, stopping it", e);
+					stop();
+					return;
+				}
+				plugin.getLogger().log(SEVERE, "Failed to write the shop feed, trying again", e);
+				if (end != -1) {
+					try {
+						// Cut off anything partially written
+						out.setLength(end);
+					} catch (final IOException ex) {
+					}
+				}
+				synchronized (this) {
+					// Ahead of anything encoded meanwhile, so the offsets stay in order
+					try {
+						pending.writeTo(group);
+					} catch (final IOException ex) {
+						// Not thrown by a byte array
+					}
+					pending.reset();
+					writing = pending;
+					pending = group;
+					pendingOffset = start;
+					if (!scheduled) {
+						scheduled = plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, writeTask, RETRY_TICKS) != -1;
+					}
+				}
+				return;
+			}
+			failures = 0;
+			group.reset();
+		}
+	}
+}
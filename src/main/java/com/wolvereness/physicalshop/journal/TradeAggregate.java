@@ -0,0 +1,109 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.*;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Hourly totals for a shop, direction, material and currency, read back from a compacted segment
+ */
+public class TradeAggregate {
+	private final long amount;
+	private final int currency;
+	private final byte direction;
+	private final long hour;
+	private final int material;
+	private final long price;
+	private final long trades;
+	private final String world;
+	private final int x;
+	private final int y;
+	private final int z;
+	/**
+	 * Decodes an aggregate record
+	 * @param record bytes of the record
+	 * @param names name table to look up world names
+	 */
+	TradeAggregate(final byte[] record, final NameTable names) {
+		hour = readLong(record, 0);
+		final int id = readInt(record, 8);
+		final String name = names.getName(id);
+		world = name == null ? "#" + id : name;
+		final long location = readLong(record, 12);
+		x = unpackX(location);
+		y = unpackY(location);
+		z = unpackZ(location);
+		direction = record[20];
+		material = readInt(record, 24);
+		currency = readInt(record, 28);
+		trades = readLong(record, 32);
+		amount = readLong(record, 40);
+		price = readLong(record, 48);
+	}
+	/**
+	 * @return total amount of material traded
+	 */
+	public long getAmount() {
+		return amount;
+	}
+	/**
+	 * @return key of the currency material
+	 */
+	public int getCurrency() {
+		return currency;
+	}
+	/**
+	 * @return start of the hour, in milliseconds
+	 */
+	public long getHour() {
+		return hour;
+	}
+	/**
+	 * @return key of the shop material
+	 */
+	public int getMaterial() {
+		return material;
+	}
+	/**
+	 * @return total amount of currency traded
+	 */
+	public long getPrice() {
+		return price;
+	}
+	/**
+	 * @return amount of trades
+	 */
+	public long getTrades() {
+		return trades;
+	}
+	/**
+	 * @return name of the world the shop is in
+	 */
+	public String getWorld() {
+		return world;
+	}
+	/**
+	 * @return x coordinate of the shop sign
+	 */
+	public int getX() {
+		return x;
+	}
+	/**
+	 * @return y coordinate of the shop sign
+	 */
+	public int getY() {
+		return y;
+	}
+	/**
+	 * @return z coordinate of the shop sign
+	 */
+	public int getZ() {
+		return z;
+	}
+	/**
+	 * @return true if the players bought from the shop, false if they sold to it
+	 */
+	public boolean isBuy() {
+		return direction == BUY;
+	}
+}
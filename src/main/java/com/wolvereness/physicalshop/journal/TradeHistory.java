@@ -0,0 +1,266 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Answers {@link TradeQuery}s from the journal, newest trades first.<br>
+ * Sealed segments are indexed once, with the index saved next to the segment,
+ * so only blocks that may match are read. The segment being written is indexed on every query.
+ * Hourly aggregates of compacted segments are read with {@link #visitAggregates(AggregateVisitor)}.
+ * Queries may take a while, and should not be run on the main thread.
+ */
+public class TradeHistory {
+	/**
+	 * @author Wolfe
+	 * Receives hourly aggregates as they are read from the journal
+	 */
+	public interface AggregateVisitor {
+		/**
+		 * @param aggregate the aggregate read
+		 * @throws IOException if the aggregate could not be handled, which stops reading
+		 */
+		public void visit(TradeAggregate aggregate) throws IOException;
+	}
+	/**
+	 * @author Wolfe
+	 * Receives trades as they are read from the journal
+	 */
+	public interface Visitor {
+		/**
+		 * @param trade the trade read
+		 * @throws IOException if the trade could not be handled, which stops reading
+		 */
+		public void visit(TradeRecord trade) throws IOException;
+	}
+	private final HashMap<Long, SegmentIndex> indexes = new HashMap<Long, SegmentIndex>();
+	private final TradeJournal journal;
+	TradeHistory(final TradeJournal journal) {
+		this.journal = journal;
+	}
+	/**
+	 * Forgets the index of a segment, used when a segment is removed
+	 * @param segment sequence number of the segment
+	 */
+	synchronized void forget(final long segment) {
+		indexes.remove(segment);
+	}
+	/**
+	 * Gets the saved index of a sealed segment, building it if needed
+	 * @param segment sequence number of the segment
+	 * @param buffer the mapped segment
+	 * @return the index of the segment
+	 * @throws IOException if the index could not be read or saved
+	 */
+	synchronized SegmentIndex getIndex(final long segment, final MappedByteBuffer buffer) throws IOException {
+		SegmentIndex index = indexes.get(segment);
+		if (index != null) return index;
+		final File file = new File(journal.getFolder(), indexName(segment));
+		if (file.exists()) {
+			index = SegmentIndex.read(file);
+		}
+		if (index == null) {
+			buffer.position(HEADER_SIZE);
+			index = SegmentIndex.build(buffer);
+			index.write(file);
+		}
+		indexes.put(segment, index);
+		return index;
+	}
+	/**
+	 * @return the sequence numbers of all segments, newest first
+	 */
+	long[] getSegments() {
+		return getSegments(SEGMENT_EXTENSION);
+	}
+	/**
+	 * @param extension extension of the files to look for
+	 * @return the sequence numbers of all files with the extension, newest first
+	 */
+	private long[] getSegments(final String extension) {
+		final String[] files = journal.getFolder().list();
+		if (files == null) return new long[0];
+		long[] segments = new long[files.length];
+		int count = 0;
+		for (final String name : files) {
+			final long segment = parseName(name, extension);
+			if (segment != -1) {
+				segments[count++] = segment;
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		for (int i = 0, j = count - 1; i < j; i++, j--) {
+			final long temp = segments[i];
+			segments[i] = segments[j];
+			segments[j] = temp;
+		}
+		return segments;
+	}
+	/**
+	 * Maps a segment for reading
+	 * @param segment sequence number of the segment
+	 * @return the mapped segment, or null if it no longer exists
+	 * @throws IOException if the segment could not be read
+	 */
+	MappedByteBuffer map(final long segment) throws IOException {
+		return map(new File(journal.getFolder(), name(segment)));
+	}
+	private MappedByteBuffer map(final File file) throws IOException {
+		if (!file.exists()) return null;
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return in.getChannel().map(MapMode.READ_ONLY, 0, in.length());
+		} finally {
+			in.close();
+		}
+	}
+	/**
+	 * Looks up a page of trades, newest first
+	 * @param query criteria of the trades to look up
+	 * @param offset amount of matching trades to skip
+	 * @param limit maximum amount of trades to return
+	 * @return the matching trades
+	 * @throws IOException if the journal could not be read
+	 */
+	public List<TradeRecord> query(final TradeQuery query, int offset, final int limit) throws IOException {
+		final List<TradeRecord> results = new ArrayList<TradeRecord>(Math.min(limit, 64));
+		final NameTable names = journal.getNames();
+		final int player;
+		if (query.getPlayer() == null) {
+			player = -1;
+		} else if ((player = names.findId(query.getPlayer())) == -1) return results;
+		final int world;
+		if (query.getWorld() == null) {
+			world = -1;
+		} else if ((world = names.findId(query.getWorld())) == -1) return results;
+		final long location = query.getLocation();
+		final byte[] scratch = new byte[RECORD_SIZE];
+		final CRC32 checksum = new CRC32();
+		final long active = journal.getSequence();
+		for (final long segment : getSegments()) {
+			final MappedByteBuffer buffer = map(segment);
+			if (buffer == null) {
+				continue;
+			}
+			final SegmentIndex index;
+			if (segment >= active) {
+				buffer.position(HEADER_SIZE);
+				index = SegmentIndex.build(buffer);
+			} else {
+				index = getIndex(segment, buffer);
+			}
+			if (!query.overlaps(index.getStart(), index.getEnd())) {
+				continue;
+			}
+			for (int block = index.getBlocks() - 1; block >= 0; block--) {
+				if (!index.mayContain(block, player, world, location, query.getFrom(), query.getTo())) {
+					continue;
+				}
+				final int first = block * SegmentIndex.BLOCK_RECORDS;
+				for (int record = Math.min(index.getRecords(), first + SegmentIndex.BLOCK_RECORDS) - 1; record >= first; record--) {
+					buffer.position(HEADER_SIZE + record * RECORD_SIZE);
+					buffer.get(scratch, 0, RECORD_SIZE);
+					if (!isValid(scratch, checksum)) {
+						continue;
+					}
+					final long timestamp = readLong(scratch, 0);
+					if (timestamp < query.getFrom() || timestamp > query.getTo()) {
+						continue;
+					}
+					if (player != -1 && readInt(scratch, 20) != player) {
+						continue;
+					}
+					if (world != -1 && (readInt(scratch, 8) != world || readLong(scratch, 12) != location)) {
+						continue;
+					}
+					if (offset > 0) {
+						offset--;
+						continue;
+					}
+					results.add(new TradeRecord(scratch, names));
+					if (results.size() >= limit) return results;
+				}
+			}
+		}
+		return results;
+	}
+	/**
+	 * Reads every hourly aggregate of compacted segments, oldest first.
+	 * Aggregates of segments that still exist in raw form are skipped, as an interrupted compaction redoes them.
+	 * @param visitor the visitor to receive the aggregates
+	 * @return the amount of aggregates read
+	 * @throws IOException if the journal could not be read
+	 */
+	public long visitAggregates(final AggregateVisitor visitor) throws IOException {
+		final NameTable names = journal.getNames();
+		final byte[] scratch = new byte[AGGREGATE_RECORD_SIZE];
+		final CRC32 checksum = new CRC32();
+		final long[] segments = getSegments(AGGREGATE_EXTENSION);
+		long count = 0;
+		for (int i = segments.length - 1; i >= 0; i--) {
+			if (new File(journal.getFolder(), name(segments[i])).exists()) {
+				continue;
+			}
+			final File file = new File(journal.getFolder(), aggregateName(segments[i]));
+			final MappedByteBuffer buffer = map(file);
+			if (buffer == null || buffer.remaining() < HEADER_SIZE) {
+				continue;
+			}
+			if (buffer.getInt() != AGGREGATE_MAGIC) throw new IOException(file + " is not an aggregate file");
+			final int version = buffer.getInt();
+			if (version != AGGREGATE_VERSION || buffer.getInt() != AGGREGATE_RECORD_SIZE) throw new IOException(file + " has an unknown layout, version " + version);
+			buffer.position(HEADER_SIZE);
+			while (buffer.remaining() >= AGGREGATE_RECORD_SIZE) {
+				buffer.get(scratch);
+				if (!isValidAggregate(scratch, checksum)) {
+					break;
+				}
+				visitor.visit(new TradeAggregate(scratch, names));
+				count++;
+			}
+		}
+		return count;
+	}
+	/**
+	 * Reads every trade still in raw form, oldest first, without holding more than one trade at a time
+	 * @param visitor the visitor to receive the trades
+	 * @return the amount of trades read
+	 * @throws IOException if the journal could not be read
+	 */
+	public long visitAll(final Visitor visitor) throws IOException {
+		final NameTable names = journal.getNames();
+		final byte[] scratch = new byte[RECORD_SIZE];
+		final CRC32 checksum = new CRC32();
+		final long[] segments = getSegments();
+		long count = 0;
+		for (int i = segments.length - 1; i >= 0; i--) {
+			final MappedByteBuffer buffer = map(segments[i]);
+			if (buffer == null) {
+				continue;
+			}
+			buffer.position(HEADER_SIZE);
+			while (buffer.remaining() >= RECORD_SIZE) {
+				buffer.get(scratch, 0, RECORD_SIZE);
+				if (!isValid(scratch, checksum)) {
+					break;
+				}
+				visitor.visit(new TradeRecord(scratch, names));
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,299 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.*;
+import static java.util.logging.Level.SEVERE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.bukkit.command.CommandSender;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Append-only binary ledger of trades, written to memory-mapped segment files.<br>
+ * The main thread records trades into a ring of preallocated entries, and
+ * {@link #commit()} is called periodically from a background task to write
+ * everything pending as one group, forcing it to disk once.
+ * Segments are rotated when full, and a new segment is started every time the journal is opened.
+ * @see JournalFormat
+ */
+public class TradeJournal {
+	/**
+	 * A trade waiting to be written
+	 */
+	private static final class Trade {
+		private int amount;
+		private int currency;
+		private byte direction;
+		private int material;
+		private String player;
+		private int price;
+		private long timestamp;
+		private String world;
+		private int x;
+		private int y;
+		private int z;
+		void set(
+				final long timestamp,
+				final String player,
+				final String world,
+				final int x,
+				final int y,
+				final int z,
+				final byte direction,
+				final int material,
+				final int amount,
+				final int price,
+				final int currency) {
+			this.timestamp = timestamp;
+			this.player = player;
+			this.world = world;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.direction = direction;
+			this.material = material;
+			this.amount = amount;
+			this.price = price;
+			this.currency = currency;
+		}
+	}
+	/**
+	 * File name of the name table in the journal folder
+	 */
+	public static final String NAMES = "names.dat";
+	/**
+	 * Opens the journal in the folder, starting a new segment
+	 * @param folder folder to keep the segments in
+	 * @param segmentSize size of each segment in bytes
+	 * @param logger logger for reporting problems while committing
+	 * @return the opened journal
+	 * @throws IOException if the journal could not be opened
+	 */
+	public static TradeJournal open(final File folder, final int segmentSize, final Logger logger) throws IOException {
+		if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create " + folder);
+		long sequence = -1;
+		final String[] files = folder.list();
+		if (files != null) {
+			for (final String name : files) {
+				sequence = Math.max(sequence, parseName(name));
+				sequence = Math.max(sequence, parseName(name, AGGREGATE_EXTENSION));
+			}
+		}
+		final TradeJournal journal = new TradeJournal(folder, segmentSize, logger, new NameTable(new File(folder, NAMES)));
+		journal.rotate(sequence + 1);
+		return journal;
+	}
+	private MappedByteBuffer buffer;
+	private final CRC32 checksum = new CRC32();
+	private final AtomicLong committed = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final JournalCompactor compactor;
+	private RandomAccessFile file;
+	private final File folder;
+	private final AtomicLong head = new AtomicLong();
+	private final TradeHistory history = new TradeHistory(this);
+	private final Logger logger;
+	private final int mask;
+	private final NameTable names;
+	private final ConcurrentLinkedQueue<Trade> overflow = new ConcurrentLinkedQueue<Trade>();
+	private final AtomicLong overflowed = new AtomicLong();
+	private final byte[] scratch = new byte[RECORD_SIZE];
+	private final int segmentSize;
+	private volatile long sequence;
+	private final Trade[] slots;
+	private final AtomicLong tail = new AtomicLong();
+
+	private TradeJournal(final File folder, final int segmentSize, final Logger logger, final NameTable names) {
+		this.folder = folder;
+		this.segmentSize = HEADER_SIZE + (segmentSize - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+		this.logger = logger;
+		this.names = names;
+		compactor = new JournalCompactor(this, logger);
+		slots = new Trade[8192];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new Trade();
+		}
+		mask = slots.length - 1;
+	}
+
+	/**
+	 * Commits anything pending and closes the journal. Trades recorded afterwards are ignored.
+	 */
+	public synchronized void close() {
+		if (buffer == null) return;
+		commit();
+		try {
+			seal();
+		} catch (final IOException e) {
+			logger.log(SEVERE, "Failed to close trade journal segment " + name(sequence), e);
+		}
+		names.close();
+	}
+
+	/**
+	 * Writes all pending trades, and forces them to disk as one group.
+	 * This is meant to be called periodically from a background thread.
+	 */
+	public synchronized void commit() {
+		if (buffer == null) return;
+		int count = 0;
+		try {
+			final long end = head.get();
+			for (long position = tail.get(); position < end; position++) {
+				final Trade trade = slots[(int) position & mask];
+				write(trade);
+				trade.player = null;
+				trade.world = null;
+				count++;
+			}
+			tail.lazySet(end);
+			Trade trade;
+			while ((trade = overflow.poll()) != null) {
+				write(trade);
+				count++;
+			}
+			if (count == 0) return;
+			// Names have to be durable before the records that use them
+			names.sync();
+			buffer.force();
+			committed.addAndGet(count);
+			commits.incrementAndGet();
+		} catch (final IOException e) {
+			logger.log(SEVERE, "Failed to commit " + count + " trades to the journal", e);
+		}
+	}
+
+	/**
+	 * @return the background job compacting old segments of this journal
+	 */
+	public JournalCompactor getCompactor() {
+		return compactor;
+	}
+
+	/**
+	 * @return the folder containing the segments
+	 */
+	public File getFolder() {
+		return folder;
+	}
+
+	/**
+	 * @return the query engine for this journal
+	 */
+	public TradeHistory getHistory() {
+		return history;
+	}
+
+	/**
+	 * @return the name table used for world and player names
+	 */
+	public NameTable getNames() {
+		return names;
+	}
+
+	/**
+	 * @return the sequence number of the segment being written
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Records a trade to be committed later. This should only be called from the main thread.
+	 * @param player name of the player trading
+	 * @param world name of the world the shop is in
+	 * @param x x coordinate of the shop sign
+	 * @param y y coordinate of the shop sign
+	 * @param z z coordinate of the shop sign
+	 * @param direction {@link JournalFormat#BUY} or {@link JournalFormat#SELL}
+	 * @param material key of the shop material
+	 * @param amount amount of material traded
+	 * @param price amount of currency traded
+	 * @param currency key of the currency material
+	 */
+	public void record(
+			final String player,
+			final String world,
+			final int x,
+			final int y,
+			final int z,
+			final byte direction,
+			final int material,
+			final int amount,
+			final int price,
+			final int currency) {
+		final long timestamp = System.currentTimeMillis();
+		final long position = head.get();
+		if (position - tail.get() > mask) {
+			final Trade trade = new Trade();
+			trade.set(timestamp, player, world, x, y, z, direction, material, amount, price, currency);
+			overflow.add(trade);
+			overflowed.incrementAndGet();
+			return;
+		}
+		slots[(int) position & mask].set(timestamp, player, world, x, y, z, direction, material, amount, price, currency);
+		head.lazySet(position + 1);
+	}
+
+	private void rotate(final long sequence) throws IOException {
+		seal();
+		final File segment = new File(folder, name(sequence));
+		file = new RandomAccessFile(segment, "rw");
+		file.setLength(segmentSize);
+		buffer = file.getChannel().map(MapMode.READ_WRITE, 0, segmentSize);
+		writeHeader(buffer, sequence, System.currentTimeMillis());
+		buffer.position(HEADER_SIZE);
+		this.sequence = sequence;
+	}
+
+	private void seal() throws IOException {
+		if (buffer == null) return;
+		names.sync();
+		buffer.force();
+		buffer = null;
+		final FileChannel channel = file.getChannel();
+		channel.close();
+		file.close();
+		file = null;
+	}
+
+	/**
+	 * Prints the counters for this journal
+	 * @param sender The person to send the output to
+	 */
+	public void verbose(final CommandSender sender) {
+		sender.sendMessage(
+			"Trade journal: " + committed.get() + " committed in " + commits.get() + " groups, "
+			+ (head.get() - tail.get() + overflow.size()) + " pending, "
+			+ overflowed.get() + " overflowed, writing " + name(sequence));
+	}
+
+	private void write(final Trade trade) throws IOException {
+		if (buffer.remaining() < RECORD_SIZE) {
+			rotate(sequence + 1);
+		}
+		JournalFormat.write(
+			scratch,
+			checksum,
+			trade.timestamp,
+			names.getId(trade.world),
+			pack(trade.x, trade.y, trade.z),
+			names.getId(trade.player),
+			trade.direction,
+			trade.material,
+			trade.amount,
+			trade.price,
+			trade.currency);
+		buffer.put(scratch, 0, RECORD_SIZE);
+	}
+}
@@ -0,0 +1,82 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.pack;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Criteria for looking up trades in the journal, either by player or by shop, within a time range
+ */
+public class TradeQuery {
+	/**
+	 * @param player name of the player
+	 * @param from earliest time to include, in milliseconds
+	 * @param to latest time to include, in milliseconds
+	 * @return a query for the trades made by the player
+	 */
+	public static TradeQuery byPlayer(final String player, final long from, final long to) {
+		return new TradeQuery(player, null, 0, from, to);
+	}
+	/**
+	 * @param world name of the world the shop is in
+	 * @param x x coordinate of the shop sign
+	 * @param y y coordinate of the shop sign
+	 * @param z z coordinate of the shop sign
+	 * @param from earliest time to include, in milliseconds
+	 * @param to latest time to include, in milliseconds
+	 * @return a query for the trades made with the shop
+	 */
+	public static TradeQuery byShop(final String world, final int x, final int y, final int z, final long from, final long to) {
+		return new TradeQuery(null, world, pack(x, y, z), from, to);
+	}
+	private final long from;
+	private final long location;
+	private final String player;
+	private final long to;
+	private final String world;
+	private TradeQuery(final String player, final String world, final long location, final long from, final long to) {
+		this.player = player;
+		this.world = world;
+		this.location = location;
+		this.from = from;
+		this.to = to;
+	}
+	/**
+	 * @return earliest time to include, in milliseconds
+	 */
+	public long getFrom() {
+		return from;
+	}
+	/**
+	 * @return packed coordinates of the shop sign, only meaningful if {@link #getWorld()} is not null
+	 */
+	public long getLocation() {
+		return location;
+	}
+	/**
+	 * @return name of the player, or null if querying by shop
+	 */
+	public String getPlayer() {
+		return player;
+	}
+	/**
+	 * @return latest time to include, in milliseconds
+	 */
+	public long getTo() {
+		return to;
+	}
+	/**
+	 * @return name of the world of the shop, or null if querying by player
+	 */
+	public String getWorld() {
+		return world;
+	}
+	/**
+	 * @param start earliest time covered
+	 * @param end latest time covered
+	 * @return true if the time range overlaps this query
+	 */
+	boolean overlaps(final long start, final long end) {
+		return start <= to && end >= from;
+	}
+}
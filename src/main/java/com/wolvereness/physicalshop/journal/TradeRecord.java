@@ -0,0 +1,111 @@
+package com.wolvereness.physicalshop.journal;
+
+import static com.wolvereness.physicalshop.journal.JournalFormat.*;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * A single trade read back from the journal
+ */
+public class TradeRecord {
+	private final int amount;
+	private final int currency;
+	private final byte direction;
+	private final int material;
+	private final String player;
+	private final int price;
+	private final long timestamp;
+	private final String world;
+	private final int x;
+	private final int y;
+	private final int z;
+	/**
+	 * Decodes a record
+	 * @param record bytes of the record
+	 * @param names name table to look up world and player names
+	 */
+	TradeRecord(final byte[] record, final NameTable names) {
+		timestamp = readLong(record, 0);
+		world = nameOf(names, readInt(record, 8));
+		final long location = readLong(record, 12);
+		x = unpackX(location);
+		y = unpackY(location);
+		z = unpackZ(location);
+		player = nameOf(names, readInt(record, 20));
+		direction = record[24];
+		material = readInt(record, 28);
+		amount = readInt(record, 32);
+		price = readInt(record, 36);
+		currency = readInt(record, 40);
+	}
+	private static String nameOf(final NameTable names, final int id) {
+		final String name = names.getName(id);
+		return name == null ? "#" + id : name;
+	}
+	/**
+	 * @return amount of material traded
+	 */
+	public int getAmount() {
+		return amount;
+	}
+	/**
+	 * @return key of the currency material
+	 */
+	public int getCurrency() {
+		return currency;
+	}
+	/**
+	 * @return key of the shop material
+	 */
+	public int getMaterial() {
+		return material;
+	}
+	/**
+	 * @return name of the player trading
+	 */
+	public String getPlayer() {
+		return player;
+	}
+	/**
+	 * @return amount of currency traded
+	 */
+	public int getPrice() {
+		return price;
+	}
+	/**
+	 * @return time of the trade, in milliseconds
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	/**
+	 * @return name of the world the shop is in
+	 */
+	public String getWorld() {
+		return world;
+	}
+	/**
+	 * @return x coordinate of the shop sign
+	 */
+	public int getX() {
+		return x;
+	}
+	/**
+	 * @return y coordinate of the shop sign
+	 */
+	public int getY() {
+		return y;
+	}
+	/**
+	 * @return z coordinate of the shop sign
+	 */
+	public int getZ() {
+		return z;
+	}
+	/**
+	 * @return true if the player bought from the shop, false if the player sold to it
+	 */
+	public boolean isBuy() {
+		return direction == BUY;
+	}
+}
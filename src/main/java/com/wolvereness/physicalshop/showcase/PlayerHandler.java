@@ -1,8 +1,7 @@
 package com.wolvereness.physicalshop.showcase;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.logging.Level;
 
 import net.minecraft.server.EntityItem;
@@ -15,8 +14,8 @@ import org.bukkit.Location;
 import org.bukkit.craftbukkit.entity.CraftPlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
-import org.bukkit.util.NumberConversions;
 
+import com.wolvereness.physicalshop.ShopIndex;
 import com.wolvereness.physicalshop.ShopMaterial;
 
 /**
@@ -51,102 +50,418 @@ public class PlayerHandler {
 		return ((Packet29DestroyEntity) packet).a[0];
 	}
 
-	private static void putData(final byte[] store, final int index, final byte b) {
-		store[index] = b;
+	/**
+	 * A fake item entity that can be shown to the player.
+	 * The item and block are what should be shown, and the sent fields what the player was last sent.
+	 */
+	private static final class Slot {
+		private final Object destroyPacket;
+		private final int entityId;
+		private ShopMaterial item;
+		private final Packet21PickupSpawn itemPacket = new Packet21PickupSpawn();
+		/**
+		 * Shown because the shop is near, so removed once it is not
+		 */
+		private boolean nearby;
+		private ShopMaterial sentItem;
+		private String sentWorld;
+		private int sentX;
+		private int sentY;
+		private int sentZ;
+		private long used;
+		private String world;
+		private int x;
+		private int y;
+		private int z;
+		private Slot(final Object destroyPacket) {
+			this.destroyPacket = destroyPacket;
+			entityId = getEntityId(destroyPacket);
+		}
+		private boolean isAt(final String world, final int x, final int y, final int z) {
+			return this.x == x && this.y == y && this.z == z && world.equals(this.world);
+		}
+		private boolean isChanged() {
+			if (world == null) return sentWorld != null;
+			return x != sentX || y != sentY || z != sentZ || !world.equals(sentWorld) || !item.equals(sentItem);
+		}
+		private boolean isIn(final ShopIndex.Entry[] shops, final int count) {
+			for (int i = 0; i < count; i++) {
+				if (isAt(shops[i].getWorld(), shops[i].getX(), shops[i].getY(), shops[i].getZ())) return true;
+			}
+			return false;
+		}
 	}
 
-	private static void putData(final byte[] store, final int index, final int i) {
-		store[index] = (byte) ((i >>> 24) & 0xFF);
-        store[index + 1] = (byte) ((i >>> 16) & 0xFF);
-        store[index + 2] = (byte) ((i >>>  8) & 0xFF);
-        store[index + 3] = (byte) ((i >>>  0) & 0xFF);
+	private long clock;
+	private final Comparator<ShopIndex.Entry> closest = new Comparator<ShopIndex.Entry>() {
+		public int compare(final ShopIndex.Entry o1, final ShopIndex.Entry o2) {
+			final int d1 = distance(o1.getX(), o1.getY(), o1.getZ()), d2 = distance(o2.getX(), o2.getY(), o2.getZ());
+			return d1 < d2 ? -1 : d1 == d2 ? 0 : 1;
+		}};
+	private int centerX;
+	private int centerY;
+	private int centerZ;
+	private boolean dirty;
+	private final int index;
+	private final ShowcaseListener listener;
+	private NetServerHandler netHandler;
+	/**
+	 * Some slot could not be sent, as its chunk is not loaded by the player
+	 */
+	private boolean pending;
+	private final Slot[] slots;
+	private String viewWorld;
+	private int viewX;
+	private int viewZ;
+
+	/**
+	 * Creates a new PlayerHandler, with one reusable packet for each entity id of the listener.
+	 * It is not used until attached to a player.
+	 * @param showcaseListener The showcase listener using this handler
+	 * @param index the index of this handler in the pool of the listener
+	 */
+	public PlayerHandler(final ShowcaseListener showcaseListener, final int index) {
+		listener = showcaseListener;
+		this.index = index;
+		slots = new Slot[showcaseListener.getSlots()];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new Slot(showcaseListener.getDestroyPacket(i));
+		}
 	}
 
-	/* For later if needed
-	private static void putData(final byte[] store, final int index, final long l) {
-        store[index] = (byte) (l >>> 56);
-        store[index + 1] = (byte) (l >>> 48);
-        store[index + 2] = (byte) (l >>> 40);
-        store[index + 3] = (byte) (l >>> 32);
-        store[index + 4] = (byte) (l >>> 24);
-        store[index + 5] = (byte) (l >>> 16);
-        store[index + 6] = (byte) (l >>>  8);
-        store[index + 7] = (byte) (l >>>  0);
+	/**
+	 * Attaches this handler to a player that joined, until {@link #close()}
+	 * @param player the player for this handler
+	 */
+	public void attach(final Player player) {
+		netHandler = ((CraftPlayer) player).getHandle().netServerHandler;
+		setView(player.getLocation());
 	}
-	//*/
 
-	private static void putData(final byte[] store, final int index, final short s) {
-        store[index] = (byte) ((s >>> 8) & 0xFF);
-        store[index + 1] = (byte) ((s >>> 0) & 0xFF);
+	/**
+	 * Replays the items in a chunk that was just loaded, if they are waiting for it
+	 * @param world name of the world of the chunk
+	 * @param chunkX x coordinate of the chunk
+	 * @param chunkZ z coordinate of the chunk
+	 */
+	public void chunkLoaded(final String world, final int chunkX, final int chunkZ) {
+		if (!pending) return;
+		for (final Slot slot : slots) {
+			if (slot.world != null && slot.sentWorld == null
+					&& slot.x >> 4 == chunkX && slot.z >> 4 == chunkZ && world.equals(slot.world)) {
+				queue();
+				return;
+			}
+		}
 	}
 
-	private final byte[] dataArray = new byte[24];
-	private final DataInputStream inputStream = new DataInputStream(new InputStream() {
-		private final byte[] dataArray = PlayerHandler.this.dataArray;
-		@Override
-		public int read() throws IOException {
-			int m;
-			byte[] d;
-			if ((m = marker + 1) == (d = dataArray).length) {
-				m = 0;
+	/**
+	 * Sends a destroy packet right away for every item the player was sent.
+	 * This is used before {@link #close()} while the player stays online, as nothing would remove the items after.
+	 */
+	public void clear() {
+		int sent = 0;
+		for (final Slot slot : slots) {
+			if (slot.sentWorld == null) {
+				continue;
 			}
-			return d[marker = m] & 0xFF;
-		}});
-	private final Packet21PickupSpawn itemPacket = new Packet21PickupSpawn();
-	private final ShowcaseListener listener;
-	private int marker = -1;
-	private final NetServerHandler netHandler;
+			netHandler.sendPacket((Packet) slot.destroyPacket);
+			slot.sentWorld = null;
+			sent++;
+		}
+		listener.countRequested(sent);
+		listener.countSent(sent);
+	}
 
 	/**
-	 * Creates a new PlayerHandler, that will reuse one packet for updating
-	 * @param player the player for this handler
-	 * @param showcaseListener The showcase listener using this handler
+	 * This method detaches the handler from its player, clearing everything so it can be reused
 	 */
-	public PlayerHandler(final Player player, final ShowcaseListener showcaseListener) {
-		netHandler = ((CraftPlayer) player).getHandle().netServerHandler;
-		listener = showcaseListener;
+	public void close() {
+		netHandler = null;
+		viewWorld = null;
+		dirty = false;
+		pending = false;
+		clock = 0;
+		for (final Slot slot : slots) {
+			slot.world = null;
+			slot.item = null;
+			slot.sentWorld = null;
+			slot.sentItem = null;
+			slot.nearby = false;
+			slot.used = 0;
+		}
+	}
 
-		putData(dataArray, 0, showcaseListener.getEntityId());
-		putData(dataArray, 6, (byte) 16);
-		putData(dataArray, 22, (byte) (0.2d * 128.0D));
+	/**
+	 * @return the squared distance of the block from the center last set
+	 */
+	private int distance(final int x, final int y, final int z) {
+		final int dx = x - centerX, dy = y - centerY, dz = z - centerZ;
+		return dx * dx + dy * dy + dz * dz;
 	}
 
 	/**
-	 * This method is to indicate finalization of this handler
+	 * Forgets every item sent, as the player was sent a new world and dropped all entities.
+	 * The items are replayed where the player can see them.
+	 * @param location where the player now is
 	 */
-	public void close() {
-		try {
-			inputStream.close();
-		} catch (final IOException e) {
+	public void forget(final Location location) {
+		for (final Slot slot : slots) {
+			slot.sentWorld = null;
+		}
+		setView(location);
+	}
+
+	/**
+	 * Finds the slot showing the block
+	 * @return the slot, or null if none
+	 */
+	private Slot findSlot(final String world, final int x, final int y, final int z) {
+		for (final Slot slot : slots) {
+			if (slot.isAt(world, x, y, z)) return slot;
+		}
+		return null;
+	}
+
+	/**
+	 * Sends what changed since the last flush, so each slot only costs its final state for the tick.
+	 * This is called by the listener once the tick's requests were collected.
+	 */
+	void flush() {
+		if (!dirty) return;
+		dirty = false;
+		pending = false;
+		int sent = 0;
+		for (final Slot slot : slots) {
+			if (!slot.isChanged()) {
+				continue;
+			}
+			if (slot.sentWorld != null) {
+				netHandler.sendPacket((Packet) slot.destroyPacket);
+				slot.sentWorld = null;
+				sent++;
+			}
+			if (slot.world == null) {
+				continue;
+			}
+			if (!isVisible(slot.world, slot.x, slot.z)) {
+				// Sent once the player loads the chunk
+				pending = true;
+				continue;
+			}
+			spawn(slot);
+			sent++;
+			slot.sentWorld = slot.world;
+			slot.sentX = slot.x;
+			slot.sentY = slot.y;
+			slot.sentZ = slot.z;
+			slot.sentItem = slot.item;
 		}
+		listener.countSent(sent);
 	}
 
 	/**
-	 * This method will queue the appropriate packets to the player
+	 * @return the index of this handler in the pool of the listener
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Picks the slot showing the block, or else an unused slot, or else the least recently used one
+	 */
+	private Slot getSlot(final String world, final int x, final int y, final int z) {
+		Slot oldest = null;
+		for (final Slot slot : slots) {
+			if (slot.isAt(world, x, y, z)) return slot;
+			if (oldest == null || slot.used < oldest.used) {
+				oldest = slot;
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * This method will queue the appropriate packets to the player, to be sent with the final state at the end of the tick.
+	 * The item replaces the one already shown at the block, if any, or else takes the least recently used slot.
+	 * A destroy packet is only sent when the slot was showing something, and nothing is sent if the item is already shown.
 	 * @param loc Location to put the item
 	 * @param item the shop item to display
-	 * @param skipDestroy indicates if the destroy packet should not be sent
 	 */
 	public void handle(
 						final Location loc,
-						final ShopMaterial item,
-						final boolean skipDestroy) {
-		//*
-		if (!skipDestroy) {
-			netHandler.sendPacket((Packet) listener.getDestroyPacket());
-		}
-		//*/
-
-		final byte[] dataArray = this.dataArray;
-		putData(dataArray, 4, (short) item.getMaterial().getId());
-		putData(dataArray, 7, item.getDurability());
-		putData(dataArray, 9, NumberConversions.floor(loc.getX() * 32.0D));
-		putData(dataArray, 13, NumberConversions.floor(loc.getY() * 32.0D));
-		putData(dataArray, 17, NumberConversions.floor(loc.getZ() * 32.0D));
-
-		itemPacket.a(inputStream); // This prevents variable references, hopefully maintaining forward compatibility
-		if (marker != dataArray.length - 1)
-			throw new IllegalStateException("Packet length changed! Expected:" + (dataArray.length - 1) + " got:" + marker);
-		netHandler.sendPacket(itemPacket);
+						final ShopMaterial item) {
+		show(loc.getWorld().getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), item, false);
+	}
+
+	/**
+	 * @return true if attached to a player
+	 */
+	public boolean isAttached() {
+		return netHandler != null;
+	}
+
+	private boolean isVisible(final String world, final int x, final int z) {
+		final int distance = listener.getViewDistance();
+		return Math.abs((x >> 4) - viewX) <= distance && Math.abs((z >> 4) - viewZ) <= distance && world.equals(viewWorld);
+	}
+
+	/**
+	 * Shows the item of a shop created near the player, in an unused slot,
+	 * or else in place of the farthest shop shown for being near, if that one is farther.
+	 * @param world name of the world of the shop
+	 * @param x x coordinate of the shop sign
+	 * @param y y coordinate of the shop sign
+	 * @param z z coordinate of the shop sign
+	 * @param item the shop item to display
+	 * @param center the location of the player
+	 */
+	public void showCreated(final String world, final int x, final int y, final int z, final ShopMaterial item, final Location center) {
+		if (findSlot(world, x, y, z) != null) {
+			show(world, x, y, z, item, true);
+			return;
+		}
+		centerX = center.getBlockX();
+		centerY = center.getBlockY();
+		centerZ = center.getBlockZ();
+		int farthest = distance(x, y, z);
+		Slot replaced = null;
+		for (final Slot slot : slots) {
+			if (slot.world == null) {
+				replaced = slot;
+				break;
+			}
+			if (slot.nearby && distance(slot.x, slot.y, slot.z) > farthest) {
+				farthest = distance(slot.x, slot.y, slot.z);
+				replaced = slot;
+			}
+		}
+		if (replaced == null) return;
+		listener.countRequested(replaced.world != null ? 2 : 1);
+		replaced.world = world;
+		replaced.x = x;
+		replaced.y = y;
+		replaced.z = z;
+		replaced.item = item;
+		replaced.nearby = true;
+		replaced.used = ++clock;
+		queue();
+	}
+
+	/**
+	 * Shows the items of the shops closest to the player, as many as there are slots,
+	 * and removes the items shown for shops that are no longer near.
+	 * Items already shown are left alone, so only the difference is queued.
+	 * @param shops the shops near the player, which are reordered
+	 * @param count how many of the shops are used
+	 * @param center the location of the player
+	 */
+	public void showNearby(final ShopIndex.Entry[] shops, final int count, final Location center) {
+		final int shown = Math.min(count, slots.length);
+		if (count > shown) {
+			centerX = center.getBlockX();
+			centerY = center.getBlockY();
+			centerZ = center.getBlockZ();
+			Arrays.sort(shops, 0, count, closest);
+		}
+		for (final Slot slot : slots) {
+			if (slot.nearby && slot.world != null && !slot.isIn(shops, shown)) {
+				slot.world = null;
+				slot.item = null;
+				slot.nearby = false;
+				slot.used = 0;
+				listener.countRequested(1);
+				queue();
+			}
+		}
+		for (int i = 0; i < shown; i++) {
+			final ShopIndex.Entry shop = shops[i];
+			final Slot slot = findSlot(shop.getWorld(), shop.getX(), shop.getY(), shop.getZ());
+			if (slot != null && shop.getMaterial().equals(slot.item)) {
+				// Already shown, only kept from being recycled
+				slot.nearby = true;
+				slot.used = ++clock;
+				continue;
+			}
+			show(shop.getWorld(), shop.getX(), shop.getY(), shop.getZ(), shop.getMaterial(), true);
+		}
+	}
+
+	private void queue() {
+		if (dirty || netHandler == null) return;
+		dirty = true;
+		listener.queue(this);
+	}
+
+	/**
+	 * Removes the item shown for a shop that was destroyed, if any
+	 * @param world name of the world of the shop
+	 * @param x x coordinate of the shop sign
+	 * @param y y coordinate of the shop sign
+	 * @param z z coordinate of the shop sign
+	 */
+	public void remove(final String world, final int x, final int y, final int z) {
+		final Slot slot = findSlot(world, x, y, z);
+		if (slot == null) return;
+		slot.world = null;
+		slot.item = null;
+		slot.nearby = false;
+		slot.used = 0;
+		listener.countRequested(1);
+		queue();
+	}
+
+	/**
+	 * Updates the chunks the player has loaded, after moving to another chunk.
+	 * Items in chunks the player unloaded are forgotten, as the player dropped them with the chunk,
+	 * and items waiting for chunks the player now loads are replayed.
+	 * @param location where the player now is
+	 */
+	public void setView(final Location location) {
+		viewWorld = location.getWorld().getName();
+		viewX = location.getBlockX() >> 4;
+		viewZ = location.getBlockZ() >> 4;
+		for (final Slot slot : slots) {
+			if (slot.sentWorld != null && !isVisible(slot.sentWorld, slot.sentX, slot.sentZ)) {
+				slot.sentWorld = null;
+			}
+			if (slot.world != null && slot.sentWorld == null && isVisible(slot.world, slot.x, slot.z)) {
+				queue();
+			}
+		}
+	}
+
+	/**
+	 * Queues the item for the block, replacing the one already shown there, or else recycling a slot
+	 */
+	private void show(final String world, final int x, final int y, final int z, final ShopMaterial item, final boolean nearby) {
+		final Slot slot = getSlot(world, x, y, z);
+		final boolean same = slot.isAt(world, x, y, z);
+		// Both packets, as sending right away would have
+		listener.countRequested(slot.world != null ? 2 : 1);
+		// A shop clicked while near is still removed once it is not
+		slot.nearby = nearby || slot.nearby && same;
+		slot.used = ++clock;
+		if (same && item.equals(slot.item)) return;
+		slot.world = world;
+		slot.x = x;
+		slot.y = y;
+		slot.z = z;
+		slot.item = item;
+		queue();
+	}
+
+	private void spawn(final Slot slot) {
+		final ShopMaterial item = slot.item;
+		// Centered on the block, as fixed point with 5 fraction bits
+		listener.getEncoder().encode(
+			slot.itemPacket,
+			slot.entityId,
+			item.getMaterial().getId(),
+			item.getDurability(),
+			slot.x * 32 + 16,
+			slot.y * 32,
+			slot.z * 32 + 16);
+		netHandler.sendPacket(slot.itemPacket);
 	}
 }
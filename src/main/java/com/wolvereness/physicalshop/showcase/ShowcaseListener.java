@@ -1,20 +1,34 @@
 package com.wolvereness.physicalshop.showcase;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
+import org.bukkit.event.block.SignChangeEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
 
-import com.google.common.collect.MapMaker;
 import com.wolvereness.physicalshop.PhysicalShop;
 import com.wolvereness.physicalshop.Shop;
+import com.wolvereness.physicalshop.ShopIndex;
 import com.wolvereness.physicalshop.ShopMaterial;
+import com.wolvereness.physicalshop.events.ShopCreationEvent;
+import com.wolvereness.physicalshop.events.ShopDestructionEvent;
 import com.wolvereness.physicalshop.events.ShopInteractEvent;
 
 /**
@@ -22,12 +36,32 @@ import com.wolvereness.physicalshop.events.ShopInteractEvent;
  * @author Wolfe
  */
 public class ShowcaseListener implements Listener {
-	private Object destroyPacket = null;
-	private int entityId;
-	private final Map<String, PlayerHandler> handlers = new MapMaker().weakValues().makeMap();
+	private Object[] destroyPackets = new Object[0];
+	private SpawnEncoder encoder;
+	private final Runnable flush = new Runnable() {
+		public void run() {
+			flush();
+		}};
+	/**
+	 * Indexes of the handlers in the pool that are not attached
+	 */
+	private int[] free = new int[0];
+	private int freeCount;
+	private final Map<String, PlayerHandler> handlers = new HashMap<String, PlayerHandler>();
 	private boolean listening = false;
+	private ShopIndex.Entry[] nearby = new ShopIndex.Entry[64];
 	private final PhysicalShop plugin;
+	/**
+	 * Every handler created, by index, reused as players join and quit
+	 */
+	private PlayerHandler[] pool = new PlayerHandler[0];
+	private final List<PlayerHandler> queued = new ArrayList<PlayerHandler>();
+	private int radius = 0;
+	private long requested;
+	private long sent;
+	private int slots = 1;
 	private boolean status = false;
+	private int viewDistance;
 
 	/**
 	 * Constructor to initialize the referenced plugin
@@ -38,19 +72,92 @@ public class ShowcaseListener implements Listener {
 	}
 
 	/**
-	 * This returns the reusable destroy packet that was created when enabled.
-	 * @return the reusable destroyPacket
+	 * Makes sure there is a destroy packet, and so an entity id, for each slot
+	 * @return false if a packet could not be created
+	 */
+	private boolean allocate() {
+		if (destroyPackets.length >= slots) return true;
+		final Object[] packets = Arrays.copyOf(destroyPackets, slots);
+		for (int i = destroyPackets.length; i < slots; i++) {
+			if ((packets[i] = PlayerHandler.getDestroyPacket(plugin)) == null) return false;
+		}
+		destroyPackets = packets;
+		return true;
+	}
+
+	/**
+	 * Attaches a handler from the pool to a player, growing the pool if every handler is in use
 	 */
-	public Object getDestroyPacket() {
-		return destroyPacket;
+	private PlayerHandler attach(final Player player) {
+		if (freeCount == 0) {
+			grow(Math.max(pool.length * 2, 16));
+		}
+		final PlayerHandler handler = pool[free[--freeCount]];
+		handler.attach(player);
+		handlers.put(player.getName(), handler);
+		return handler;
+	}
+
+	/**
+	 * Detaches every handler, removing the items shown to the players that are still online
+	 */
+	private void clearHandlers() {
+		queued.clear();
+		for (final Map.Entry<String, PlayerHandler> entry : handlers.entrySet()) {
+			final PlayerHandler handler = entry.getValue();
+			if (handler.isAttached() && plugin.getServer().getPlayerExact(entry.getKey()) != null) {
+				handler.clear();
+			}
+			handler.close();
+			free[freeCount++] = handler.getIndex();
+		}
+		handlers.clear();
+	}
+
+	/**
+	 * Counts packets that would have been sent without coalescing
+	 * @param packets the amount of packets
+	 */
+	void countRequested(final int packets) {
+		requested += packets;
+	}
+
+	/**
+	 * Counts packets that were sent
+	 * @param packets the amount of packets
+	 */
+	void countSent(final int packets) {
+		sent += packets;
+	}
+
+	private void flush() {
+		final List<PlayerHandler> queued = this.queued;
+		for (int i = 0; i < queued.size(); i++) {
+			queued.get(i).flush();
+		}
+		queued.clear();
+	}
+
+	/**
+	 * This returns a reusable destroy packet that was created when enabled.
+	 * @param slot the slot, less than {@link #getSlots()}
+	 * @return the reusable destroyPacket, for the entity id of the slot
+	 */
+	public Object getDestroyPacket(final int slot) {
+		return destroyPackets[slot];
+	}
+
+	private PlayerHandler getHandler(final Player player) {
+		final PlayerHandler handler = handlers.get(player.getName());
+		// Only missing for players that joined before the listener was enabled
+		return handler != null ? handler : attach(player);
 	}
 
 	/**
-	 * This returns the currently assigned entityId for packets.
-	 * @return the entity id to be used
+	 * @return the encoder for item spawn packets, picked when first enabled
 	 */
-	public int getEntityId() {
-		return entityId;
+	SpawnEncoder getEncoder() {
+		return encoder;
 	}
 
 	/**
@@ -61,6 +168,37 @@ public class ShowcaseListener implements Listener {
 		return plugin;
 	}
 
+	/**
+	 * @return how many items each player can be shown at once
+	 */
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return how many chunks around them players have loaded
+	 */
+	int getViewDistance() {
+		return viewDistance;
+	}
+
+	/**
+	 * Creates handlers up to the size, so players joining later reuse them
+	 * @param size the new size of the pool
+	 */
+	private void grow(final int size) {
+		if (pool.length >= size) return;
+		final int[] free = new int[size];
+		System.arraycopy(this.free, 0, free, 0, freeCount);
+		final PlayerHandler[] pool = Arrays.copyOf(this.pool, size);
+		for (int i = size - 1; i >= this.pool.length; i--) {
+			pool[i] = new PlayerHandler(this, i);
+			free[freeCount++] = i;
+		}
+		this.free = free;
+		this.pool = pool;
+	}
+
 	/**
 	 * This indicates if the listener is active.
 	 * @return the current state
@@ -70,7 +208,63 @@ public class ShowcaseListener implements Listener {
 	}
 
 	/**
-	 * This method clears the stored packet and data streams
+	 * This method replays items waiting for a chunk to be sent
+	 * @param event The chunk load event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(final ChunkLoadEvent event) {
+		if (!status || handlers.isEmpty()) return;
+
+		final String world = event.getWorld().getName();
+		final int x = event.getChunk().getX();
+		final int z = event.getChunk().getZ();
+		// Handlers not attached have nothing waiting
+		for (final PlayerHandler handler : pool) {
+			handler.chunkLoaded(world, x, z);
+		}
+	}
+
+	/**
+	 * This method shows the shops near a player that joined
+	 * @param event The join event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(final PlayerJoinEvent event) {
+		if (!status) return;
+
+		getHandler(event.getPlayer());
+		if (radius == 0) return;
+		showNearby(event.getPlayer(), event.getPlayer().getLocation());
+	}
+
+	/**
+	 * This method updates the shops shown to a player that moved to another chunk.
+	 * Moves within a chunk cost nothing more than the check.
+	 * @param event The move event
+	 */
+	@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+	public void onPlayerMove(final PlayerMoveEvent event) {
+		if (!status) return;
+
+		final Location from = event.getFrom();
+		final Location to = event.getTo();
+		if (from.getBlockX() >> 4 == to.getBlockX() >> 4
+				&& from.getBlockZ() >> 4 == to.getBlockZ() >> 4
+				&& from.getWorld() == to.getWorld()) return;
+		final Player player = event.getPlayer();
+		final PlayerHandler handler = getHandler(player);
+		if (from.getWorld() != to.getWorld()) {
+			handler.forget(to);
+		} else {
+			handler.setView(to);
+		}
+		if (radius != 0) {
+			showNearby(player, to);
+		}
+	}
+
+	/**
+	 * This method clears the items sent to a player that quit
 	 * @param event The quit event
 	 */
 	@EventHandler
@@ -80,6 +274,76 @@ public class ShowcaseListener implements Listener {
 		final PlayerHandler handler = handlers.remove(event.getPlayer().getName());
 		if (handler == null) return;
 		handler.close();
+		free[freeCount++] = handler.getIndex();
+	}
+
+	/**
+	 * This method replays the items for a player that respawned, as the client dropped every entity
+	 * @param event The respawn event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerRespawn(final PlayerRespawnEvent event) {
+		if (!status) return;
+
+		final Player player = event.getPlayer();
+		getHandler(player).forget(event.getRespawnLocation());
+		if (radius != 0) {
+			showNearby(player, event.getRespawnLocation());
+		}
+	}
+
+	/**
+	 * This method updates the shops shown to a player that teleported to another chunk
+	 * @param event The teleport event
+	 */
+	@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+	public void onPlayerTeleport(final PlayerTeleportEvent event) {
+		onPlayerMove(event);
+	}
+
+	/**
+	 * This method shows the item of a new shop to the players it is near.
+	 * It is shown next tick, as a later listener of the cause may still cancel it.
+	 * @param event The creation event
+	 */
+	@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+	public void onShopCreation(final ShopCreationEvent event) {
+		if (!status || radius == 0) return;
+
+		final Block block;
+		if (event.getShop().getSign() != null) {
+			block = event.getShop().getSign().getBlock();
+		} else if (event.getCause() instanceof SignChangeEvent) {
+			block = ((SignChangeEvent) event.getCause()).getBlock();
+		} else return;
+		final ShopMaterial item = event.getShop().getMaterial();
+		final Cancellable cause = event.getCause();
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				if (status && !cause.isCancelled()) {
+					showCreated(block, item);
+				}
+			}});
+	}
+
+	/**
+	 * This method removes the items of destroyed shops from the players they were shown to
+	 * @param event The destruction event
+	 */
+	@EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+	public void onShopDestruction(final ShopDestructionEvent event) {
+		if (!status || handlers.isEmpty()) return;
+
+		for (final Shop shop : event.getShops()) {
+			if (shop.getSign() == null) {
+				continue;
+			}
+			final Block block = shop.getSign().getBlock();
+			final String world = block.getWorld().getName();
+			for (final PlayerHandler handler : handlers.values()) {
+				handler.remove(world, block.getX(), block.getY(), block.getZ());
+			}
+		}
 	}
 
 	/**
@@ -93,13 +357,54 @@ public class ShowcaseListener implements Listener {
 		final Shop shop = event.getShop();
 		final Location loc = shop.getSign().getLocation().add(.5d, 0d, .5d);
 		final ShopMaterial item = shop.getMaterial();
-		final Player player = event.getPlayer();
-		PlayerHandler handler = handlers.get(player.getName());
-		boolean skipDestroy;
-		if (skipDestroy = (handler == null)) {
-			handlers.put(player.getName(), handler = new PlayerHandler(player, this));
+		getHandler(event.getPlayer()).handle(loc, item);
+	}
+
+	/**
+	 * Queues a handler to send its changes at the end of the tick
+	 * @param handler the handler with changes
+	 */
+	void queue(final PlayerHandler handler) {
+		if (queued.isEmpty() && plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, flush) == -1) {
+			// Not scheduled, likely disabling
+			handler.flush();
+			return;
+		}
+		queued.add(handler);
+	}
+
+	/**
+	 * Sets how far from players shops show their items without being clicked.
+	 * Players that are online are updated right away.
+	 * This should be called after {@link #setStatus(boolean)}, once the shop index is loaded.
+	 * @param radius the new radius in chunks, or 0 to only show clicked shops
+	 */
+	public void setRadius(final int radius) {
+		final int amount = Math.max(0, radius);
+		final boolean changed = this.radius != amount;
+		this.radius = amount;
+		if (!status || amount == 0 && !changed) return;
+		for (final Player player : plugin.getServer().getOnlinePlayers()) {
+			showNearby(player, player.getLocation());
+		}
+	}
+
+	/**
+	 * Sets how many items each player can be shown at once, each having its own entity id.
+	 * This should be called before {@link #setStatus(boolean)}.
+	 * @param slots the new amount of slots, at least 1
+	 */
+	public void setSlots(final int slots) {
+		final int amount = Math.max(1, slots);
+		if (this.slots == amount) return;
+		this.slots = amount;
+		// Sized for the old amount
+		clearHandlers();
+		pool = new PlayerHandler[0];
+		freeCount = 0;
+		if (status && !start()) {
+			plugin.getLogger().warning("Showcase disabled, could not allocate entity ids");
 		}
-		handler.handle(loc, item, skipDestroy);
 	}
 
 	/**
@@ -114,19 +419,85 @@ public class ShowcaseListener implements Listener {
 				plugin.getLogger().info("Showcase listener active");
 				listening = true;
 			}
-			if (destroyPacket == null) {
-				destroyPacket = PlayerHandler.getDestroyPacket(plugin);
-				if (status = (destroyPacket != null)) {
-					entityId = PlayerHandler.getEntityId(destroyPacket);
-				}
+			viewDistance = plugin.getServer().getViewDistance();
+			if (encoder == null) {
+				encoder = SpawnEncoder.create(plugin, plugin.getServer().getVersion().contains(PlayerHandler.MC_VERSION));
 			}
+			start();
 		} else {
-			final Iterator<PlayerHandler> it = handlers.values().iterator();
-			while (it.hasNext()) {
-				final PlayerHandler handler = it.next();
-				it.remove();
-				handler.close();
+			clearHandlers();
+		}
+	}
+
+	/**
+	 * Allocates the entity ids, fills the handler pool for a full server, and attaches the players online
+	 * @return the new status
+	 */
+	private boolean start() {
+		if (!(status = allocate())) return false;
+		grow(plugin.getServer().getMaxPlayers());
+		for (final Player player : plugin.getServer().getOnlinePlayers()) {
+			getHandler(player);
+		}
+		return true;
+	}
+
+	/**
+	 * Shows the item of a new shop to the players with the shop within the radius.
+	 * The shop index may not have it yet, so it is placed without collecting the nearby shops again.
+	 */
+	private void showCreated(final Block block, final ShopMaterial item) {
+		if (radius == 0) return;
+		final String world = block.getWorld().getName();
+		final int chunkX = block.getX() >> 4;
+		final int chunkZ = block.getZ() >> 4;
+		for (final Player player : plugin.getServer().getOnlinePlayers()) {
+			final Location location = player.getLocation();
+			if (Math.abs((location.getBlockX() >> 4) - chunkX) > radius
+					|| Math.abs((location.getBlockZ() >> 4) - chunkZ) > radius
+					|| !world.equals(location.getWorld().getName())) {
+				continue;
+			}
+			getHandler(player).showCreated(world, block.getX(), block.getY(), block.getZ(), item, location);
+		}
+	}
+
+	/**
+	 * Collects the shops in the chunks within the radius from the shop index, and shows the closest ones.
+	 * With no radius, only removes what was shown for being near.
+	 */
+	private void showNearby(final Player player, final Location location) {
+		final ShopIndex index = plugin.getShopIndex();
+		final String world = location.getWorld().getName();
+		final int chunkX = location.getBlockX() >> 4;
+		final int chunkZ = location.getBlockZ() >> 4;
+		final int radius = this.radius;
+		ShopIndex.Entry[] nearby = this.nearby;
+		int count = 0;
+		for (int x = chunkX - radius; radius != 0 && x <= chunkX + radius; x++) {
+			for (int z = chunkZ - radius; z <= chunkZ + radius; z++) {
+				final ShopIndex.Entry[] shops = index.getChunk(world, x, z);
+				if (shops.length == 0) {
+					continue;
+				}
+				if (count + shops.length > nearby.length) {
+					this.nearby = nearby = Arrays.copyOf(nearby, Math.max(nearby.length * 2, count + shops.length));
+				}
+				System.arraycopy(shops, 0, nearby, count, shops.length);
+				count += shops.length;
 			}
 		}
+		getHandler(player).showNearby(nearby, count, location);
+		// Not kept past the update
+		Arrays.fill(nearby, 0, count, null);
+	}
+
+	/**
+	 * Prints the counters for the showcase packets
+	 * @param sender The person to send the output to
+	 */
+	public void verbose(final CommandSender sender) {
+		sender.sendMessage("Showcase packets: " + requested + " requested, " + sent + " sent"
+			+ (encoder == null ? "" : ", " + encoder.getName() + " encoder"));
 	}
 }
@@ -0,0 +1,178 @@
+package com.wolvereness.physicalshop.showcase;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+
+import net.minecraft.server.Packet21PickupSpawn;
+
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Licensed under GNU GPL v3
+ * @author Wolfe
+ * Fills the fields of item spawn packets. This should only be used from the main thread.<br>
+ * The direct encoder assigns the packet fields by name, and is only used on the server version it was compiled against,
+ * once a decoded probe packet shows each part lands in the field it expects.
+ * The stream encoder, which works on any version that keeps the wire format, is the fallback.
+ */
+public abstract class SpawnEncoder {
+	static final class DirectEncoder extends SpawnEncoder {
+		/**
+		 * Decodes a probe packet with a distinct value in each part
+		 * @param stream the stream encoder to decode with
+		 * @return true if every part was decoded into the field this encoder assigns it to
+		 */
+		static boolean matches(final StreamEncoder stream) {
+			final byte[] data = stream.dataArray;
+			for (int i = 0; i < LENGTH; i++) {
+				data[i] = (byte) (i + 1);
+			}
+			stream.marker = -1;
+			final Packet21PickupSpawn probe = new Packet21PickupSpawn();
+			probe.a(stream.inputStream);
+			final boolean matches = probe.a == readInt(data, 0)
+					&& probe.h == readShort(data, 4)
+					&& probe.i == data[6]
+					&& probe.l == readShort(data, 7)
+					&& probe.b == readInt(data, 9)
+					&& probe.c == readInt(data, 13)
+					&& probe.d == readInt(data, 17)
+					&& probe.e == data[21]
+					&& probe.f == data[22]
+					&& probe.g == data[23];
+			data[6] = COUNT;
+			data[21] = 0;
+			data[22] = MOTION;
+			data[23] = 0;
+			return matches;
+		}
+		@Override
+		public void encode(
+				final Packet21PickupSpawn packet,
+				final int entityId,
+				final int itemId,
+				final short durability,
+				final int x,
+				final int y,
+				final int z) {
+			packet.a = entityId;
+			packet.h = itemId;
+			packet.i = COUNT;
+			packet.l = durability;
+			packet.b = x;
+			packet.c = y;
+			packet.d = z;
+			packet.e = 0;
+			packet.f = MOTION;
+			packet.g = 0;
+		}
+		@Override
+		public String getName() {
+			return "direct";
+		}
+	}
+	static final class StreamEncoder extends SpawnEncoder {
+		private static void putData(final byte[] store, final int index, final int i) {
+			store[index] = (byte) (i >>> 24);
+			store[index + 1] = (byte) (i >>> 16);
+			store[index + 2] = (byte) (i >>> 8);
+			store[index + 3] = (byte) i;
+		}
+		private static void putData(final byte[] store, final int index, final short s) {
+			store[index] = (byte) (s >>> 8);
+			store[index + 1] = (byte) s;
+		}
+		private final byte[] dataArray = new byte[LENGTH];
+		private final DataInputStream inputStream = new DataInputStream(new InputStream() {
+			private final byte[] dataArray = StreamEncoder.this.dataArray;
+			@Override
+			public int read() throws IOException {
+				int m;
+				byte[] d;
+				if ((m = marker + 1) == (d = dataArray).length) {
+					m = 0;
+				}
+				return d[marker = m] & 0xFF;
+			}});
+		private int marker = -1;
+		StreamEncoder() {
+			dataArray[6] = COUNT;
+			dataArray[22] = MOTION;
+		}
+		@Override
+		public void encode(
+				final Packet21PickupSpawn packet,
+				final int entityId,
+				final int itemId,
+				final short durability,
+				final int x,
+				final int y,
+				final int z) {
+			final byte[] dataArray = this.dataArray;
+			putData(dataArray, 0, entityId);
+			putData(dataArray, 4, (short) itemId);
+			putData(dataArray, 7, durability);
+			putData(dataArray, 9, x);
+			putData(dataArray, 13, y);
+			putData(dataArray, 17, z);
+
+			packet.a(inputStream); // This prevents variable references, hopefully maintaining forward compatibility
+			if (marker != dataArray.length - 1)
+				throw new IllegalStateException("Packet length changed! Expected:" + (dataArray.length - 1) + " got:" + marker);
+		}
+		@Override
+		public String getName() {
+			return "stream";
+		}
+	}
+	private static final byte COUNT = 16;
+	private static final int LENGTH = 24;
+	private static final byte MOTION = (byte) (0.2d * 128.0D);
+	/**
+	 * Picks the encoder for the server
+	 * @param plugin Plugin to use for logging purposes
+	 * @param checkedVersion true if the server is the version the showcase was compiled against
+	 * @return the direct encoder if the packet fields matched, or else the stream encoder
+	 */
+	public static SpawnEncoder create(final Plugin plugin, final boolean checkedVersion) {
+		final StreamEncoder stream = new StreamEncoder();
+		if (!checkedVersion) return stream;
+		try {
+			if (DirectEncoder.matches(stream)) return new DirectEncoder();
+			plugin.getLogger().warning("Showcase packet fields could not be matched, using the stream encoder");
+		} catch (final Throwable t) {
+			plugin.getLogger().log(Level.WARNING, "Problem matching showcase packet fields, using the stream encoder", t);
+		}
+		return stream;
+	}
+	private static int readInt(final byte[] data, final int index) {
+		return (data[index] & 0xFF) << 24 | (data[index + 1] & 0xFF) << 16 | (data[index + 2] & 0xFF) << 8 | data[index + 3] & 0xFF;
+	}
+	private static short readShort(final byte[] data, final int index) {
+		return (short) ((data[index] & 0xFF) << 8 | data[index + 1] & 0xFF);
+	}
+	/**
+	 * Fills the packet for an item
+	 * @param packet the packet to fill
+	 * @param entityId the entity id for the item
+	 * @param itemId the material id of the item
+	 * @param durability the durability of the item
+	 * @param x x position, as fixed point with 5 fraction bits
+	 * @param y y position, as fixed point with 5 fraction bits
+	 * @param z z position, as fixed point with 5 fraction bits
+	 */
+	public abstract void encode(
+			Packet21PickupSpawn packet,
+			int entityId,
+			int itemId,
+			short durability,
+			int x,
+			int y,
+			int z);
+	/**
+	 * @return the name of the encoder, for verbose output
+	 */
+	public abstract String getName();
+}
@@ -0,0 +1,82 @@
+package com.wolvereness.physicalshop.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * A fixed size ring of time buckets, each counting trades, volume and revenue.
+ * A bucket is reset when reused for a later period, so memory never grows.
+ * There is only one writer, the main thread, so counts are published with
+ * ordered writes instead of compare-and-set, and readers may be on any thread.
+ */
+class RollingCounter {
+	private static final int FIELDS = 3;
+	private final int buckets;
+	private final long period;
+	private final AtomicLongArray periods;
+	private final AtomicLongArray values;
+	RollingCounter(final long period, final int buckets) {
+		this.period = period;
+		this.buckets = buckets;
+		periods = new AtomicLongArray(buckets);
+		values = new AtomicLongArray(buckets * FIELDS);
+		for (int i = 0; i < buckets; i++) {
+			periods.set(i, -1);
+		}
+	}
+	/**
+	 * Counts a trade, only called from the main thread
+	 * @param now current time, in milliseconds
+	 * @param amount amount of material traded
+	 * @param price amount of currency traded
+	 */
+	void add(final long now, final int amount, final int price) {
+		final long current = now / period;
+		final int bucket = (int) (current % buckets);
+		final int base = bucket * FIELDS;
+		if (periods.get(bucket) != current) {
+			periods.set(bucket, -1);
+			values.set(base, 0);
+			values.set(base + 1, 0);
+			values.set(base + 2, 0);
+			periods.set(bucket, current);
+		}
+		values.lazySet(base, values.get(base) + 1);
+		values.lazySet(base + 1, values.get(base + 1) + amount);
+		values.lazySet(base + 2, values.get(base + 2) + price);
+	}
+	/**
+	 * @return the amount of buckets in the ring
+	 */
+	int getBuckets() {
+		return buckets;
+	}
+	/**
+	 * Adds the latest buckets to the totals
+	 * @param now current time, in milliseconds
+	 * @param count amount of buckets to include, including the current one
+	 * @param totals array of trades, volume and revenue to add to
+	 */
+	void sum(final long now, final int count, final long[] totals) {
+		final long current = now / period;
+		final long oldest = current - Math.min(count, buckets) + 1;
+		for (int bucket = 0; bucket < buckets; bucket++) {
+			final long stamp = periods.get(bucket);
+			if (stamp < oldest || stamp > current) {
+				continue;
+			}
+			final int base = bucket * FIELDS;
+			final long trades = values.get(base);
+			final long volume = values.get(base + 1);
+			final long revenue = values.get(base + 2);
+			// Skip buckets reset while being read
+			if (periods.get(bucket) != stamp) {
+				continue;
+			}
+			totals[0] += trades;
+			totals[1] += volume;
+			totals[2] += revenue;
+		}
+	}
+}
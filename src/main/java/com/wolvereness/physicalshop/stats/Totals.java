@@ -0,0 +1,38 @@
+package com.wolvereness.physicalshop.stats;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Trade totals for a period of time
+ */
+public class Totals {
+	private final long revenue;
+	private final long trades;
+	private final long volume;
+	/**
+	 * @param totals amount of trades, material and currency traded, in that order
+	 */
+	public Totals(final long[] totals) {
+		trades = totals[0];
+		volume = totals[1];
+		revenue = totals[2];
+	}
+	/**
+	 * @return amount of currency traded
+	 */
+	public long getRevenue() {
+		return revenue;
+	}
+	/**
+	 * @return amount of trades
+	 */
+	public long getTrades() {
+		return trades;
+	}
+	/**
+	 * @return amount of material traded
+	 */
+	public long getVolume() {
+		return volume;
+	}
+}
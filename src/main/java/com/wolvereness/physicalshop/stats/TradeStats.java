@@ -0,0 +1,207 @@
+package com.wolvereness.physicalshop.stats;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bukkit.Location;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Rolling trade totals per shop and per material, at minute, hour and day resolution.<br>
+ * Shops and materials are counted per currency, as revenue in different currencies cannot be added.
+ * Only the most recently traded shops and materials are kept, so memory is bounded.
+ * Trades are recorded from the main thread, and totals may be read from any thread.
+ */
+public class TradeStats {
+	/**
+	 * @author Wolfe
+	 * Resolution of the rolling totals, and how far back they go
+	 */
+	public enum Resolution {
+		/**
+		 * One day buckets, for the last 30 days
+		 */
+		DAY(86400000L, 30),
+		/**
+		 * One hour buckets, for the last 24 hours
+		 */
+		HOUR(3600000L, 24),
+		/**
+		 * One minute buckets, for the last 60 minutes
+		 */
+		MINUTE(60000L, 60),
+		;
+		private final int buckets;
+		private final long period;
+		private Resolution(final long period, final int buckets) {
+			this.period = period;
+			this.buckets = buckets;
+		}
+		/**
+		 * @return the amount of buckets kept
+		 */
+		public int getBuckets() {
+			return buckets;
+		}
+		/**
+		 * @return the length of each bucket, in milliseconds
+		 */
+		public long getPeriod() {
+			return period;
+		}
+	}
+	private static class Counters {
+		private final RollingCounter[] counters = new RollingCounter[Resolution.values().length];
+		Counters() {
+			for (final Resolution resolution : Resolution.values()) {
+				counters[resolution.ordinal()] = new RollingCounter(resolution.getPeriod(), resolution.getBuckets());
+			}
+		}
+		void add(final long now, final int amount, final int price) {
+			for (final RollingCounter counter : counters) {
+				counter.add(now, amount, price);
+			}
+		}
+		Totals sum(final long now, final Resolution resolution, final int buckets) {
+			final long[] totals = new long[3];
+			counters[resolution.ordinal()].sum(now, buckets, totals);
+			return new Totals(totals);
+		}
+	}
+	/**
+	 * @param key a material key from {@link #getMaterialTotals(Resolution, int)}
+	 * @return the currency key
+	 */
+	public static int getCurrency(final long key) {
+		return (int) key;
+	}
+	/**
+	 * @param key a material key from {@link #getMaterialTotals(Resolution, int)}
+	 * @return the material key
+	 */
+	public static int getMaterial(final long key) {
+		return (int) (key >>> 32);
+	}
+	/**
+	 * @param material material key
+	 * @param currency currency key
+	 * @return the key of the pair, as in {@link #getMaterialTotals(Resolution, int)}
+	 */
+	public static long key(final int material, final int currency) {
+		return (long) material << 32 | currency & 0xFFFFFFFFL;
+	}
+	private final int maxKeys;
+	private final Map<Long, Counters> materials;
+	private final Map<Location, Map<Integer, Counters>> shops;
+	/**
+	 * @param maxKeys the amount of shops, and separately materials, to keep totals for
+	 */
+	@SuppressWarnings("serial")
+	public TradeStats(final int maxKeys) {
+		this.maxKeys = maxKeys;
+		materials = new LinkedHashMap<Long, Counters>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Long, Counters> eldest) {
+				return size() > TradeStats.this.maxKeys;
+			}
+		};
+		shops = new LinkedHashMap<Location, Map<Integer, Counters>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Location, Map<Integer, Counters>> eldest) {
+				return size() > TradeStats.this.maxKeys;
+			}
+		};
+	}
+	/**
+	 * Forgets all totals
+	 */
+	public synchronized void clear() {
+		materials.clear();
+		shops.clear();
+	}
+	/**
+	 * @param material material key, as in {@link com.wolvereness.physicalshop.ShopMaterial#getKey()}
+	 * @param currency currency key
+	 * @param resolution resolution to look at
+	 * @param buckets amount of latest buckets to add up
+	 * @return the totals for the material in the currency
+	 */
+	public Totals getMaterialTotals(final int material, final int currency, final Resolution resolution, final int buckets) {
+		final Counters counters;
+		synchronized (this) {
+			counters = materials.get(key(material, currency));
+		}
+		return counters == null ? new Totals(new long[3]) : counters.sum(System.currentTimeMillis(), resolution, buckets);
+	}
+	/**
+	 * @param resolution resolution to look at
+	 * @param buckets amount of latest buckets to add up
+	 * @return the totals for every material and currency pair, keyed as described by {@link #getMaterial(long)} and {@link #getCurrency(long)}
+	 */
+	public Map<Long, Totals> getMaterialTotals(final Resolution resolution, final int buckets) {
+		final Map<Long, Counters> copy;
+		synchronized (this) {
+			copy = new HashMap<Long, Counters>(materials);
+		}
+		final long now = System.currentTimeMillis();
+		final Map<Long, Totals> totals = new HashMap<Long, Totals>(copy.size() * 2);
+		for (final Map.Entry<Long, Counters> entry : copy.entrySet()) {
+			totals.put(entry.getKey(), entry.getValue().sum(now, resolution, buckets));
+		}
+		return totals;
+	}
+	/**
+	 * @param shop location of the shop sign
+	 * @param resolution resolution to look at
+	 * @param buckets amount of latest buckets to add up
+	 * @return the totals for the shop, keyed by currency
+	 */
+	public Map<Integer, Totals> getShopTotals(final Location shop, final Resolution resolution, final int buckets) {
+		final Map<Integer, Counters> copy;
+		synchronized (this) {
+			final Map<Integer, Counters> counters = shops.get(shop);
+			if (counters == null) return new HashMap<Integer, Totals>();
+			copy = new HashMap<Integer, Counters>(counters);
+		}
+		final long now = System.currentTimeMillis();
+		final Map<Integer, Totals> totals = new HashMap<Integer, Totals>(copy.size() * 2);
+		for (final Map.Entry<Integer, Counters> entry : copy.entrySet()) {
+			totals.put(entry.getKey(), entry.getValue().sum(now, resolution, buckets));
+		}
+		return totals;
+	}
+	/**
+	 * Counts a trade. This should only be called from the main thread.
+	 * @param shop location of the shop sign
+	 * @param material material key
+	 * @param currency currency key
+	 * @param amount amount of material traded
+	 * @param price amount of currency traded
+	 */
+	public void record(final Location shop, final int material, final int currency, final int amount, final int price) {
+		final long now = System.currentTimeMillis();
+		final Counters shopCounters;
+		final Counters materialCounters;
+		synchronized (this) {
+			Map<Integer, Counters> currencies = shops.get(shop);
+			if (currencies == null) {
+				shops.put(shop, currencies = new HashMap<Integer, Counters>(4));
+			}
+			Counters counters = currencies.get(currency);
+			if (counters == null) {
+				currencies.put(currency, counters = new Counters());
+			}
+			shopCounters = counters;
+			final Long key = key(material, currency);
+			counters = materials.get(key);
+			if (counters == null) {
+				materials.put(key, counters = new Counters());
+			}
+			materialCounters = counters;
+		}
+		shopCounters.add(now, amount, price);
+		materialCounters.add(now, amount, price);
+	}
+}
@@ -22,9 +22,20 @@ public interface CommandHandler {
 	}
 	/**
 	 * @author Wolfe
-	 *
+	 * Command handler to reload the config of a plugin, in the background if it is {@link AsyncReloadable}.
 	 */
 	public class Reload extends ShortCommand {
+		/**
+		 * @author Wolfe
+		 * Implemented by plugins that are able to reload in the background.
+		 */
+		public interface AsyncReloadable extends Plugin {
+			/**
+			 * Should start reloading the implementing plugin, and tell the sender once it is done or failed
+			 * @param sender The person that asked for the reload
+			 */
+			public void reloadConfig(CommandSender sender);
+		}
 		private final Plugin plugin;
 		/**
 		 * @see com.wolvereness.util.CommandHandler
@@ -36,6 +47,11 @@ public interface CommandHandler {
 		}
 		@Override
 		public boolean go(final CommandSender sender) {
+			if (plugin instanceof AsyncReloadable) {
+				((AsyncReloadable) plugin).reloadConfig(sender);
+				sender.sendMessage("Reloading " + plugin.getDescription().getFullName() + "...");
+				return true;
+			}
 			plugin.reloadConfig();
 			sender.sendMessage(plugin.getDescription().getFullName() + " reloaded.");
 			return true;
@@ -1,10 +1,18 @@
 package com.wolvereness.util;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -12,7 +20,9 @@ import org.bukkit.plugin.Plugin;
 
 /**
  * @author Wolfe
- *
+ * Collection of sign names for player names too long for a sign, shared by the plugins registered.<br>
+ * Names are looked up and registered in memory, and may be used from any thread.
+ * New names are appended to a log in the background, which is compacted into NameCollection.yml once it grows.
  */
 public final class NameCollection {
 	@SuppressWarnings("javadoc")
@@ -34,8 +44,47 @@ public final class NameCollection {
 			super(arg0);
 		}
 	}
-	private static YamlConfiguration config = new YamlConfiguration();
-	private static HashMap<String, File> plugins = new HashMap<String, File>();
+	/**
+	 * @author Wolfe
+	 * Sign names read from the files of a plugin, so the files can be read off the main thread before the plugin is registered
+	 */
+	public static final class Loaded {
+		private final Map<String, Map<String, String>> nameSets;
+		private final String pluginName;
+		private Loaded(final String pluginName, final Map<String, Map<String, String>> nameSets) {
+			this.pluginName = pluginName;
+			this.nameSets = nameSets;
+		}
+	}
+	private static final String COLLECTION_FILE = "NameCollection.yml";
+	/**
+	 * Lines appended to the log before it is compacted into the collection file
+	 */
+	private static final int COMPACT_LINES = 64;
+	/**
+	 * Sign name to full name, read without locking
+	 */
+	private static final Map<String, String> fullNames = new ConcurrentHashMap<String, String>();
+	/**
+	 * Held for every change, and for the plugins, suffixes, and pending names
+	 */
+	private static final Object lock = new Object();
+	private static final String LOG_FILE = "NameCollection.log";
+	private static int logged;
+	private static boolean needsCompaction;
+	private static final StringBuilder pending = new StringBuilder();
+	private static HashMap<String, Plugin> plugins = new HashMap<String, Plugin>();
+	/**
+	 * Full name to sign name, read without locking
+	 */
+	private static final Map<String, String> signNames = new ConcurrentHashMap<String, String>();
+	private static final Map<String, Character> suffixes = new HashMap<String, Character>();
+	private static final Object writeLock = new Object();
+	private static boolean writeScheduled;
+	private static final Runnable writer = new Runnable() {
+		public void run() {
+			write();
+		}};
 	private static Configuration getConfig(final File file) {
 		if(file.exists())
 			return YamlConfiguration.loadConfiguration(file);
@@ -43,67 +92,87 @@ public final class NameCollection {
 	}
 	/**
 	 * This method registers the said name (if needed) and will return a sign-safe length name.
+	 * New names are appended to the log of each registered plugin in the background.
+	 * Names already registered are found without locking; new names are registered one at a time, so a suffix is never given twice.
 	 * @param name Name to consider
 	 * @return Sign-safe name
 	 * @throws OutOfEntriesException if there are already 62 players with 16 character names and the same first 14 characters (insanity)
 	 */
 	public static String getSignName(final String name) throws OutOfEntriesException {
 		if(name.length() != 16) return name;
-		if(config.isSet(name)) return (String) config.get(name);
-		final String truncatedName = name.substring(0, 13);
-		char lastChar = '0';
-		if(config.isSet(truncatedName)) {
-			lastChar = String.valueOf(config.get(truncatedName)).charAt(0);
-			if(lastChar == '9') {
-				lastChar = 'a';
-			} else if (lastChar == 'z') {
-				lastChar = 'A';
-			} else if (lastChar == 'Z')
-				throw new OutOfEntriesException(name);
-			else {
-				lastChar += 1;
+		final String registered = signNames.get(name);
+		if(registered != null) return registered;
+		synchronized(lock) {
+			// Checked again, as another thread may have just registered it
+			final String existing = signNames.get(name);
+			if(existing != null) return existing;
+			final String truncatedName = name.substring(0, 13);
+			char lastChar = '0';
+			final Character last = suffixes.get(truncatedName);
+			if(last != null) {
+				lastChar = last;
+				if(lastChar == '9') {
+					lastChar = 'a';
+				} else if (lastChar == 'z') {
+					lastChar = 'A';
+				} else if (lastChar == 'Z')
+					throw new OutOfEntriesException(name);
+				else {
+					lastChar += 1;
+				}
 			}
+			final String signName = truncatedName + '~' + lastChar;
+			put(truncatedName, lastChar, name, signName);
+			pending.append(name).append(' ').append(signName).append('\n');
+			schedule();
+			return signName;
 		}
-		config.set(truncatedName, Character.toString(lastChar));
-		final String signName = truncatedName + '~' + lastChar;
-		config.set(name, signName);
-		config.set(signName, name);
-		saveAll();
-		return signName;
 	}
-	private static void load(final File file) {
-		final Configuration pluginConfig = getConfig(file);
+	/**
+	 * @param plugin Plugin to check
+	 * @return true if the plugin is registered with the name collection
+	 */
+	public static boolean isRegistered(final Plugin plugin) {
+		synchronized(lock) {
+			return plugins.containsKey(plugin.getDescription().getName());
+		}
+	}
+	/**
+	 * Reads the sign names in the files of a plugin, without registering it. This may be called from any thread.
+	 * @param plugin Plugin to read the files of
+	 * @return the names read, to pass to {@link #registerPlugin(Plugin, Loaded)}
+	 */
+	public static Loaded load(final Plugin plugin) {
+		return new Loaded(plugin.getDescription().getName(), load(plugin.getDataFolder()));
+	}
+	private static Map<String, Map<String, String>> load(final File folder) {
+		final Map<String, String> loaded = new HashMap<String, String>();
+		final Configuration pluginConfig = getConfig(new File(folder, COLLECTION_FILE));
 		if(pluginConfig != null) {
-			final Set<String> keys = pluginConfig.getKeys(false);
-			final Map<String, Map<String, String>> nameSets = new HashMap<String, Map<String, String>>();
-			for(final String key : keys) {
-				if(key.length() != 16) {
-					continue;
-				}
-				final String truncatedName = key.substring(0, 13);
-				if(!nameSets.containsKey(truncatedName)) {
-					nameSets.put(truncatedName, new HashMap<String,String>());
+			for(final String key : pluginConfig.getKeys(false)) {
+				if(key.length() == 16) {
+					loaded.put(key, String.valueOf(pluginConfig.get(key)));
 				}
-				nameSets.get(truncatedName).put(key, (String) pluginConfig.get(key));
 			}
-			for(final Map.Entry<String, Map<String, String>> nameSet : nameSets.entrySet()) {
-				char largest = '0'-1;
-				for(final Map.Entry<String, String> player : nameSet.getValue().entrySet()) {
-					largest = max(largest, player.getValue().charAt(14));
-				}
-				final char oldLargest = config.isSet(nameSet.getKey()) ? String.valueOf(config.get(nameSet.getKey())).charAt(0) : '0'-1;
-				if(max(largest,oldLargest) != oldLargest) {
-					config.set(nameSet.getKey(), String.valueOf(largest));
-					for(final Map.Entry<String, String> player : nameSet.getValue().entrySet()) {
-						config.set(player.getKey(), player.getValue());
-						config.set(player.getValue(), player.getKey());
-					}
-				}
+		}
+		readLog(new File(folder, LOG_FILE), loaded);
+		final Map<String, Map<String, String>> nameSets = new HashMap<String, Map<String, String>>();
+		for(final Map.Entry<String, String> entry : loaded.entrySet()) {
+			final String key = entry.getKey();
+			if(entry.getValue().length() != 15) {
+				continue;
 			}
+			final String truncatedName = key.substring(0, 13);
+			if(!nameSets.containsKey(truncatedName)) {
+				nameSets.put(truncatedName, new HashMap<String,String>());
+			}
+			nameSets.get(truncatedName).put(key, entry.getValue());
 		}
+		return nameSets;
 	}
 	/**
-	 * Checks to see if the two names match (considering extended sign names)
+	 * Checks to see if the two names match (considering extended sign names).
+	 * This may be called from any thread.
 	 * @param signName The name from the sign
 	 * @param name The name of the player
 	 * @return true if the signName matches said player
@@ -113,7 +182,7 @@ public final class NameCollection {
 			signName.length() == 15
 				&& signName.charAt(13) == '~'
 			?
-				name.equals(config.get(signName))
+				name.equals(fullNames.get(signName))
 			:
 				signName.equals(name);
 	}
@@ -132,47 +201,180 @@ public final class NameCollection {
 		if(c1 > c2) return c1;
 		return c2;
 	}
+	/**
+	 * Adds the names read from the files of a plugin, holding the lock
+	 */
+	private static void merge(final Map<String, Map<String, String>> nameSets) {
+		for(final Map.Entry<String, Map<String, String>> nameSet : nameSets.entrySet()) {
+			char largest = '0'-1;
+			for(final Map.Entry<String, String> player : nameSet.getValue().entrySet()) {
+				largest = max(largest, player.getValue().charAt(14));
+			}
+			final Character old = suffixes.get(nameSet.getKey());
+			final char oldLargest = old != null ? old : '0'-1;
+			if(max(largest,oldLargest) != oldLargest) {
+				for(final Map.Entry<String, String> player : nameSet.getValue().entrySet()) {
+					put(nameSet.getKey(), largest, player.getKey(), player.getValue());
+				}
+			}
+		}
+	}
+	/**
+	 * Adds a mapping, holding the lock. The sign name is mapped back first,
+	 * so a thread that finds the sign name of a player also finds the player for it.
+	 */
+	private static void put(final String truncatedName, final char suffix, final String name, final String signName) {
+		suffixes.put(truncatedName, suffix);
+		fullNames.put(signName, name);
+		signNames.put(name, signName);
+	}
+	private static void readLog(final File file, final Map<String, String> loaded) {
+		if(!file.exists()) return;
+		try {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				for(String line = in.readLine(); line != null; line = in.readLine()) {
+					final int space = line.indexOf(' ');
+					// A partially written line is the end of the log
+					if(space != 16 || line.length() != 32) {
+						continue;
+					}
+					loaded.put(line.substring(0, 16), line.substring(17));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
 	/**
 	 * Registers a plugin with the name collection, creating a file in the plugin's folder
 	 * @param plugin Plugin to register with name collection.
 	 */
 	public static void registerPlugin(final Plugin plugin) {
+		registerPlugin(plugin, load(plugin));
+	}
+	/**
+	 * Registers a plugin with the name collection, using its files as already read
+	 * @param plugin Plugin to register with name collection.
+	 * @param loaded the names read by {@link #load(Plugin)} for the plugin
+	 */
+	public static void registerPlugin(final Plugin plugin, final Loaded loaded) {
 		final String pluginName = plugin.getDescription().getName();
-		final File pluginFile = new File(plugin.getDataFolder(), "NameCollection.yml");
-		plugins.put(pluginName, pluginFile);
-		load(pluginFile);
-		saveAll();
+		if(!pluginName.equals(loaded.pluginName)) throw new IllegalArgumentException("Names were loaded for " + loaded.pluginName + ", not " + pluginName);
+		synchronized(lock) {
+			merge(loaded.nameSets);
+			plugins.put(pluginName, plugin);
+			needsCompaction = true;
+			schedule();
+		}
 	}
 	/**
 	 * Use this method to reload configurations from all associated plugins.
 	 */
 	public static void reloadAll() {
-		for(final Map.Entry<String, File> plugin : plugins.entrySet()) {
-			load(plugin.getValue());
+		final Plugin[] plugins;
+		synchronized(lock) {
+			plugins = NameCollection.plugins.values().toArray(new Plugin[0]);
 		}
-		saveAll();
-	}
-	private static void save(final File file) {
-		try {
-			config.save(file);
-		} catch (final IOException e) {
-			e.printStackTrace();
+		final List<Map<String, Map<String, String>>> loaded = new ArrayList<Map<String, Map<String, String>>>(plugins.length);
+		for(final Plugin plugin : plugins) {
+			loaded.add(load(plugin.getDataFolder()));
 		}
-	}
-	private static void saveAll() {
-		for(final Map.Entry<String, File> entry : plugins.entrySet()) {
-			save(entry.getValue());
+		synchronized(lock) {
+			for(final Map<String, Map<String, String>> nameSets : loaded) {
+				merge(nameSets);
+			}
+			needsCompaction = true;
+			schedule();
 		}
 	}
+	/**
+	 * Schedules the background write, with a registered plugin. Called holding the lock.
+	 */
+	private static void schedule() {
+		if(writeScheduled || plugins.isEmpty()) return;
+		final Plugin plugin = plugins.values().iterator().next();
+		writeScheduled = plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, writer) != -1;
+	}
 	/**
 	 * @param plugin plugin to unregister
 	 */
 	public static void unregisterPlugin(final Plugin plugin) {
 		final String pluginName = plugin.getDescription().getName();
-		if(!plugins.containsKey(pluginName)) throw new IllegalArgumentException(plugin+" not registered.");
-		plugins.remove(pluginName);
-		if(plugins.isEmpty()) {
-			config = new YamlConfiguration();
+		synchronized(lock) {
+			if(!plugins.containsKey(pluginName)) throw new IllegalArgumentException(plugin+" not registered.");
+			// Its own files get everything written so far
+			needsCompaction = true;
+		}
+		write();
+		synchronized(lock) {
+			plugins.remove(pluginName);
+			if(plugins.isEmpty()) {
+				suffixes.clear();
+				signNames.clear();
+				fullNames.clear();
+				logged = 0;
+			}
+			schedule();
+		}
+	}
+	/**
+	 * Appends the new names to the log of every registered plugin,
+	 * or once the log is long enough, compacts everything into their collection files and clears the logs.
+	 */
+	private static void write() {
+		synchronized(writeLock) {
+			final String lines;
+			final Plugin[] targets;
+			final YamlConfiguration snapshot;
+			synchronized(lock) {
+				writeScheduled = false;
+				lines = pending.toString();
+				pending.setLength(0);
+				targets = plugins.values().toArray(new Plugin[0]);
+				if(lines.length() == 0 && !needsCompaction) return;
+				// Each line is a 16 character name, a space, a 15 character sign name, and a new line
+				logged += lines.length() / 33;
+				if(needsCompaction || logged >= COMPACT_LINES) {
+					snapshot = new YamlConfiguration();
+					for(final Map.Entry<String, String> entry : signNames.entrySet()) {
+						snapshot.set(entry.getKey(), entry.getValue());
+						snapshot.set(entry.getValue(), entry.getKey());
+					}
+					for(final Map.Entry<String, Character> entry : suffixes.entrySet()) {
+						snapshot.set(entry.getKey(), entry.getValue().toString());
+					}
+					needsCompaction = false;
+					logged = 0;
+				} else {
+					snapshot = null;
+				}
+			}
+			for(final Plugin plugin : targets) {
+				final File folder = plugin.getDataFolder();
+				try {
+					if(snapshot != null) {
+						// Written in full before the log it replaces is cleared
+						final File collection = new File(folder, COLLECTION_FILE);
+						final File temp = new File(folder, COLLECTION_FILE + ".tmp");
+						snapshot.save(temp);
+						if(!temp.renameTo(collection) && (!collection.delete() || !temp.renameTo(collection))) throw new IOException("Could not replace " + collection);
+						final File log = new File(folder, LOG_FILE);
+						if(log.exists() && !log.delete()) throw new IOException("Could not clear " + log);
+					} else {
+						final Writer out = new OutputStreamWriter(new FileOutputStream(new File(folder, LOG_FILE), true), "UTF-8");
+						try {
+							out.write(lines);
+						} finally {
+							out.close();
+						}
+					}
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 }
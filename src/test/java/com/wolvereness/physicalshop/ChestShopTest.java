@@ -0,0 +1,149 @@
+package com.wolvereness.physicalshop;
+
+import static com.wolvereness.physicalshop.config.Localized.Message.PLAYER_INVENTORY_FULL;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.block.Sign;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.wolvereness.physicalshop.config.Localized;
+import com.wolvereness.physicalshop.config.MaterialConfig;
+import com.wolvereness.physicalshop.config.PatternHandler;
+import com.wolvereness.physicalshop.config.StandardConfig;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Inventories are kept in arrays, copying stacks in and out like the server does.
+ */
+public class ChestShopTest {
+	private static final String[] LINES = { "Stone", "B 1:1g", "", "owner" };
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Inventory> T inventory(final Class<T> type, final ItemStack...contents) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				final String name = method.getName();
+				if (name.equals("getContents")) {
+					final ItemStack[] copy = new ItemStack[contents.length];
+					for (int i = 0; i < copy.length; i++) {
+						copy[i] = contents[i] == null ? null : contents[i].clone();
+					}
+					return copy;
+				}
+				if (name.equals("setItem")) {
+					contents[(Integer) args[0]] = args[1] == null ? null : ((ItemStack) args[1]).clone();
+					return null;
+				}
+				if (name.equals("getSize")) return contents.length;
+				if (name.equals("hashCode")) return System.identityHashCode(proxy);
+				if (name.equals("equals")) return proxy == args[0];
+				if (name.equals("toString")) return type.getSimpleName();
+				throw new UnsupportedOperationException(name);
+			}});
+	}
+
+	private InventoryHolder chest;
+	private ItemStack[] chestContents;
+	private Localized locale;
+	private Player player;
+	private ItemStack[] playerContents;
+	private PhysicalShop plugin;
+	private Sign sign;
+
+	private ChestShop parse() throws Exception {
+		// Parsed again for every click, like the listener does
+		return new ChestShop(sign, plugin, chest);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		final ShopMaterial gold = new ShopMaterial(new ItemStack(Material.GOLD_INGOT));
+		plugin = mock(PhysicalShop.class);
+		locale = mock(Localized.class);
+		final StandardConfig config = mock(StandardConfig.class);
+		final MaterialConfig materials = mock(MaterialConfig.class);
+		final PatternHandler buyPattern = mock(PatternHandler.class);
+		final PatternHandler sellPattern = mock(PatternHandler.class);
+		when(plugin.getLocale()).thenReturn(locale);
+		when(plugin.getPluginConfig()).thenReturn(config);
+		when(plugin.getMaterialConfig()).thenReturn(materials);
+		when(plugin.getShopIndex()).thenReturn(mock(ShopIndex.class));
+		when(config.getBuyPatternHandler()).thenReturn(buyPattern);
+		when(config.getSellPatternHandler()).thenReturn(sellPattern);
+		when(materials.getShopMaterial(LINES[0])).thenReturn(new ShopMaterial(new ItemStack(Material.STONE)));
+		when(buyPattern.getRate(LINES[1], plugin)).thenReturn(new Rate(1, 1, gold));
+
+		final Block block = mock(Block.class);
+		when(block.getLocation()).thenReturn(new Location(null, 0, 64, 0));
+		sign = mock(Sign.class);
+		when(sign.getLines()).thenReturn(LINES);
+		when(sign.getBlock()).thenReturn(block);
+
+		chestContents = new ItemStack[27];
+		chestContents[0] = new ItemStack(Material.STONE, 64);
+		final Inventory chestInventory = inventory(Inventory.class, chestContents);
+		chest = mock(InventoryHolder.class);
+		when(chest.getInventory()).thenReturn(chestInventory);
+
+		// The gold is not used up, and every other slot is full, so there is no room for the stone
+		playerContents = new ItemStack[36];
+		playerContents[0] = new ItemStack(Material.GOLD_INGOT, 2);
+		for (int i = 1; i < playerContents.length; i++) {
+			playerContents[i] = new ItemStack(Material.DIRT, 64);
+		}
+		final PlayerInventory playerInventory = inventory(PlayerInventory.class, playerContents);
+		player = mock(Player.class);
+		when(player.getName()).thenReturn("player");
+		when(player.getInventory()).thenReturn(playerInventory);
+		when(player.getItemInHand()).thenReturn(new ItemStack(Material.GOLD_INGOT, 2));
+	}
+
+	@Test
+	public void repeatedFullInventoryIsSkipped() throws Exception {
+		parse().interact(player, plugin);
+
+		final ArgumentCaptor<Object> attempt = ArgumentCaptor.forClass(Object.class);
+		verify(locale).sendRepeatableMessage(same(player), attempt.capture(), same(PLAYER_INVENTORY_FULL), (Object[]) anyVararg());
+		assertNotNull(attempt.getValue());
+		// The chest is restored, and so is the attempt the next click is compared with
+		assertEquals(64, chestContents[0].getAmount());
+		assertNull(chestContents[1]);
+		assertEquals(2, playerContents[0].getAmount());
+		assertEquals(attempt.getValue(), parse().getTradeAttempt(player, true));
+
+		when(locale.hasRepeat(player)).thenReturn(true);
+		when(locale.isRepeating(player, attempt.getValue())).thenReturn(true);
+		parse().interact(player, plugin);
+
+		verify(locale).isRepeating(player, attempt.getValue());
+		verify(locale, times(1)).sendRepeatableMessage(same(player), any(), same(PLAYER_INVENTORY_FULL), (Object[]) anyVararg());
+		assertEquals(64, chestContents[0].getAmount());
+	}
+
+	@Test
+	public void noAttemptWithoutPendingFailure() throws Exception {
+		playerContents[1] = null;
+		parse().interact(player, plugin);
+
+		verify(locale).hasRepeat(player);
+		verify(locale, never()).isRepeating(same(player), any());
+		assertEquals(63, chestContents[0].getAmount());
+		assertEquals(Material.STONE, playerContents[1].getType());
+	}
+}
@@ -0,0 +1,45 @@
+package com.wolvereness.physicalshop.showcase;
+
+import net.minecraft.server.Packet21PickupSpawn;
+
+import com.wolvereness.physicalshop.showcase.SpawnEncoder.DirectEncoder;
+import com.wolvereness.physicalshop.showcase.SpawnEncoder.StreamEncoder;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * Times both encoders. It is run by hand, and is not part of the test suite.
+ */
+public class SpawnEncoderBenchmark {
+	private static final int ROUNDS = 5;
+	private static final int SPAWNS = 1000000;
+
+	/**
+	 * Prints the best time per spawn of each encoder
+	 * @param args ignored
+	 */
+	public static void main(final String[] args) {
+		final SpawnEncoder direct = new DirectEncoder();
+		final SpawnEncoder stream = new StreamEncoder();
+		final Packet21PickupSpawn packet = new Packet21PickupSpawn();
+		long directBest = Long.MAX_VALUE;
+		long streamBest = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			directBest = Math.min(directBest, time(direct, packet));
+			streamBest = Math.min(streamBest, time(stream, packet));
+		}
+		System.out.println(String.format(
+				"Spawn encoding, best of %d rounds: direct %.1f ns, stream %.1f ns",
+				ROUNDS,
+				(double) directBest / SPAWNS,
+				(double) streamBest / SPAWNS));
+	}
+
+	private static long time(final SpawnEncoder encoder, final Packet21PickupSpawn packet) {
+		final long start = System.nanoTime();
+		for (int i = 0; i < SPAWNS; i++) {
+			encoder.encode(packet, i, i & 0xFFF, (short) i, i, i >> 1, -i);
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,48 @@
+package com.wolvereness.physicalshop.showcase;
+
+import static org.junit.Assert.*;
+
+import net.minecraft.server.Packet21PickupSpawn;
+
+import org.junit.Test;
+
+import com.wolvereness.physicalshop.showcase.SpawnEncoder.DirectEncoder;
+import com.wolvereness.physicalshop.showcase.SpawnEncoder.StreamEncoder;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3
+ */
+public class SpawnEncoderTest {
+	private static void assertPacketsEqual(final Packet21PickupSpawn expected, final Packet21PickupSpawn actual) {
+		assertEquals(expected.a, actual.a);
+		assertEquals(expected.b, actual.b);
+		assertEquals(expected.c, actual.c);
+		assertEquals(expected.d, actual.d);
+		assertEquals(expected.e, actual.e);
+		assertEquals(expected.f, actual.f);
+		assertEquals(expected.g, actual.g);
+		assertEquals(expected.h, actual.h);
+		assertEquals(expected.i, actual.i);
+		assertEquals(expected.l, actual.l);
+	}
+
+	@Test
+	public void encodersAgree() {
+		final SpawnEncoder direct = new DirectEncoder();
+		final SpawnEncoder stream = new StreamEncoder();
+		final Packet21PickupSpawn expected = new Packet21PickupSpawn();
+		final Packet21PickupSpawn actual = new Packet21PickupSpawn();
+		final int[] values = { 0, 1, -1, 0x7FFF, Short.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		for (final int value : values) {
+			stream.encode(expected, value, value & 0x7FFF, (short) value, value, -value, value >> 3);
+			direct.encode(actual, value, value & 0x7FFF, (short) value, value, -value, value >> 3);
+			assertPacketsEqual(expected, actual);
+		}
+	}
+
+	@Test
+	public void fieldsMatch() {
+		assertTrue(DirectEncoder.matches(new StreamEncoder()));
+	}
+}
@@ -0,0 +1,98 @@
+package com.wolvereness.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.wolvereness.util.NameCollection.OutOfEntriesException;
+
+/**
+ * @author Wolfe
+ * Licensed under GNU GPL v3<br>
+ * No plugin is registered, so nothing is written and no server is needed.
+ */
+public class NameCollectionTest {
+	private static final int SUFFIXES = 62;
+	private static final int THREADS = 8;
+
+	private static List<String> names(final String prefix, final int count) {
+		final List<String> names = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			names.add(prefix + String.format("%03d", i));
+		}
+		return names;
+	}
+
+	@Test
+	public void concurrentSignNamesAreUnique() throws Exception {
+		final String prefix = "concurrentPre";
+		assertEquals(13, prefix.length());
+		final List<String> names = names(prefix, SUFFIXES);
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<List<String>>> results = new ArrayList<Future<List<String>>>(THREADS);
+		try {
+			for (int thread = 0; thread < THREADS; thread++) {
+				final List<String> order = new ArrayList<String>(names);
+				Collections.shuffle(order, new Random(thread));
+				results.add(executor.submit(new Callable<List<String>>() {
+					public List<String> call() throws Exception {
+						start.await();
+						final List<String> mappings = new ArrayList<String>(order.size());
+						for (final String name : order) {
+							mappings.add(name + ' ' + NameCollection.getSignName(name));
+						}
+						return mappings;
+					}}));
+			}
+			start.countDown();
+			final Set<String> mappings = new HashSet<String>();
+			for (final Future<List<String>> result : results) {
+				mappings.addAll(result.get());
+			}
+			// Every thread got the same sign name for each name
+			assertEquals(SUFFIXES, mappings.size());
+		} finally {
+			executor.shutdown();
+		}
+		final Set<String> signNames = new HashSet<String>();
+		for (final String name : names) {
+			final String signName = NameCollection.getSignName(name);
+			assertEquals(15, signName.length());
+			assertTrue(signName.startsWith(prefix + '~'));
+			assertTrue("Suffix given twice: " + signName, signNames.add(signName));
+			assertTrue(NameCollection.matches(signName, name));
+		}
+		for (final String name : names) {
+			for (final String signName : signNames) {
+				assertEquals(signName.equals(NameCollection.getSignName(name)), NameCollection.matches(signName, name));
+			}
+		}
+	}
+
+	@Test(expected = OutOfEntriesException.class)
+	public void outOfEntries() throws Exception {
+		for (final String name : names("exhaustedPre1", SUFFIXES + 1)) {
+			NameCollection.getSignName(name);
+		}
+	}
+
+	@Test
+	public void shortNamesAreKept() throws Exception {
+		assertEquals("short", NameCollection.getSignName("short"));
+		assertTrue(NameCollection.matches("short", "short"));
+		assertFalse(NameCollection.matches("short", "other"));
+	}
+}